@@ -0,0 +1,691 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Contraction hierarchy over a TrailGraph, for answering routing queries on a large trail network without
+ * searching most of it.
+ *
+ * Preprocessing contracts the vertices one at a time, least important first (importance being roughly how many
+ * shortcuts contracting the vertex would add, minus how many edges it removes, plus how much of its neighbourhood
+ * is already contracted). Contracting a vertex removes it, and adds a shortcut between two of its neighbours
+ * wherever the route through it was the shortest one - a short bounded witness search checks for a way around.
+ * The order the vertices went in is their rank.
+ *
+ * Every shortest route then climbs in rank and comes back down, so a query is two small Dijkstra searches, one
+ * from each end, that only follow edges to higher ranked vertices, and meet at the top. Trails go both ways, so
+ * both searches use the same upward edges, kept in CSR form like TrailGraph's arcs.
+ *
+ * A shortcut remembers the two edges it replaces, so a route can be unpacked into the graph's pieces. The
+ * hierarchy can be saved next to the way cache, keyed by OSM node ids so it can be matched to a graph rebuilt
+ * from the same ways later. Queries share scratch state, so use one thread at a time.
+ */
+public class ContractionHierarchy {
+
+	/** first bytes of a saved hierarchy **/
+	private static final int MAGIC = 0x54524348; // "TRCH"
+
+	/** format version - files with another version are refused **/
+	private static final int VERSION = 1;
+
+	/** witness searches give up after settling this many vertices, and add the shortcut to be safe **/
+	private static final int WITNESS_SETTLE_LIMIT = 60;
+
+	/** the graph the hierarchy is over **/
+	private final TrailGraph mGraph;
+
+	/** contraction order of each vertex, 0 first **/
+	private int[] mRanks;
+
+	/** endpoints of each edge, original or shortcut **/
+	private int[] mEdgeFrom;
+	private int[] mEdgeTo;
+
+	/** length of each edge, meters **/
+	private double[] mEdgeWeights;
+
+	/** the two edges a shortcut replaces, -1 for an original edge **/
+	private int[] mEdgeFirstChild;
+	private int[] mEdgeSecondChild;
+
+	/** the TrailGraph piece an original edge runs along, -1 for a shortcut **/
+	private int[] mEdgePieces;
+
+	/** number of edges **/
+	private int mEdgeCount = 0;
+
+	/** vertex v's upward edges are mUpEdges[mUpStarts[v]] to mUpEdges[mUpStarts[v+1] - 1] **/
+	private int[] mUpStarts;
+	private int[] mUpEdges;
+
+	/** query state, stamped like TrailRouter's - one set for each direction **/
+	private IndexedMinHeap mForwardQueue;
+	private IndexedMinHeap mBackwardQueue;
+	private double[] mForwardDistances;
+	private double[] mBackwardDistances;
+	private int[] mForwardParents;
+	private int[] mBackwardParents;
+	private int[] mForwardStamps;
+	private int[] mBackwardStamps;
+	private int mStamp = 0;
+
+	/** the last query's route: pieces in order, and the vertex each one leads to **/
+	private int[] mPathPieces = new int[64];
+	private int[] mPathTargets = new int[64];
+	private int mPathLength = 0;
+
+	/** which of the query's sources and targets the last route used, 0 or 1 **/
+	private int mPathSource;
+	private int mPathTarget;
+
+	/** the upward half of the last route, source first **/
+	private int[] mUpwardEdges = new int[64];
+
+	/** unpacking stack, edge and the vertex it's entered from **/
+	private int[] mUnpackEdges = new int[64];
+	private int[] mUnpackFrom = new int[64];
+
+	private ContractionHierarchy(TrailGraph graph) {
+		mGraph = graph;
+	}
+
+	/**
+	 * Preprocesses a graph. Takes a while on a big one - run it in the background.
+	 * @param graph the graph
+	 * @return the hierarchy
+	 */
+	public static ContractionHierarchy build(TrailGraph graph) {
+		ContractionHierarchy hierarchy = new ContractionHierarchy(graph);
+		new Builder(hierarchy).contractAll();
+		hierarchy.prepareQueries();
+		return hierarchy;
+	}
+
+	/**
+	 * Reads a hierarchy for a graph from a file, if there's a usable one there. Never builds one - that takes
+	 * too long for a caller that's waiting on the result.
+	 * @param file where the hierarchy is kept
+	 * @param graph the graph
+	 * @return the hierarchy, or null if the file is missing, unreadable or was made for a different graph
+	 */
+	public static ContractionHierarchy loadIfPresent(File file, TrailGraph graph) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			return load(file, graph);
+		}
+		catch (IOException e) {
+			Log.d("ContractionHierarchy", "Caught IOException while reading " + file.getName());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the hierarchy to a file. Vertices are written as OSM node ids and original edges as their two ends,
+	 * so the file still fits a graph built from the same ways in another order.
+	 * @param file where to write
+	 * @throws IOException if the file can't be written
+	 */
+	public void save(File file) throws IOException {
+		NodeTable nodes = mGraph.getNodeTable();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(mRanks.length);
+			out.writeInt(mEdgeCount);
+			for (int v = 0; v < mRanks.length; ++v) {
+				out.writeLong(nodes.getId(mGraph.getVertexNode(v)));
+				out.writeInt(mRanks[v]);
+			}
+			for (int e = 0; e < mEdgeCount; ++e) {
+				out.writeInt(mEdgeFrom[e]);
+				out.writeInt(mEdgeTo[e]);
+				out.writeDouble(mEdgeWeights[e]);
+				out.writeInt(mEdgeFirstChild[e]);
+				out.writeInt(mEdgeSecondChild[e]);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a hierarchy written by save().
+	 * @param file the file
+	 * @param graph the graph it's to be used with
+	 * @return the hierarchy, or null if the file was made for a different graph
+	 * @throws IOException if the file can't be read
+	 */
+	public static ContractionHierarchy load(File file, TrailGraph graph) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			int vertexCount = in.readInt();
+			int edgeCount = in.readInt();
+			if (vertexCount != graph.getVertexCount() || edgeCount < 0) {
+				return null;
+			}
+
+			// saved vertex numbers to this graph's
+			NodeTable nodes = graph.getNodeTable();
+			int[] vertices = new int[vertexCount];
+			ContractionHierarchy hierarchy = new ContractionHierarchy(graph);
+			hierarchy.mRanks = new int[vertexCount];
+			for (int v = 0; v < vertexCount; ++v) {
+				int node = nodes.find(in.readLong());
+				vertices[v] = node >= 0 ? graph.getNodeVertex(node) : -1;
+				if (vertices[v] < 0) {
+					return null;
+				}
+				hierarchy.mRanks[vertices[v]] = in.readInt();
+			}
+
+			hierarchy.allocateEdges(edgeCount);
+			for (int e = 0; e < edgeCount; ++e) {
+				int from = in.readInt(), to = in.readInt();
+				if (from < 0 || from >= vertexCount || to < 0 || to >= vertexCount) {
+					return null;
+				}
+				double weight = in.readDouble();
+				int first = in.readInt(), second = in.readInt();
+				int piece = -1;
+				if (first < 0) {
+					piece = shortestPiece(graph, vertices[from], vertices[to]);
+					if (piece < 0 || Math.abs(graph.getPieceLength(piece) - weight) > 1e-6) {
+						return null; // the ways changed since the hierarchy was saved
+					}
+				}
+				else if (first >= edgeCount || second < 0 || second >= edgeCount) {
+					return null;
+				}
+				hierarchy.addEdge(vertices[from], vertices[to], weight, first, second, piece);
+			}
+			hierarchy.prepareQueries();
+			return hierarchy;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the shortest piece between two vertices, or -1 if they aren't neighbours
+	 */
+	private static int shortestPiece(TrailGraph graph, int from, int to) {
+		int best = -1;
+		for (int arc = graph.getArcStart(from); arc < graph.getArcEnd(from); ++arc) {
+			if (graph.getArcTarget(arc) == to && (best < 0 || graph.getArcLength(arc) < graph.getPieceLength(best))) {
+				best = graph.getArcPiece(arc);
+			}
+		}
+		return best;
+	}
+
+	private void allocateEdges(int capacity) {
+		mEdgeFrom = new int[capacity];
+		mEdgeTo = new int[capacity];
+		mEdgeWeights = new double[capacity];
+		mEdgeFirstChild = new int[capacity];
+		mEdgeSecondChild = new int[capacity];
+		mEdgePieces = new int[capacity];
+	}
+
+	private int addEdge(int from, int to, double weight, int firstChild, int secondChild, int piece) {
+		if (mEdgeCount == mEdgeFrom.length) {
+			int capacity = Math.max(2 * mEdgeCount, 16);
+			mEdgeFrom = Arrays.copyOf(mEdgeFrom, capacity);
+			mEdgeTo = Arrays.copyOf(mEdgeTo, capacity);
+			mEdgeWeights = Arrays.copyOf(mEdgeWeights, capacity);
+			mEdgeFirstChild = Arrays.copyOf(mEdgeFirstChild, capacity);
+			mEdgeSecondChild = Arrays.copyOf(mEdgeSecondChild, capacity);
+			mEdgePieces = Arrays.copyOf(mEdgePieces, capacity);
+		}
+		mEdgeFrom[mEdgeCount] = from;
+		mEdgeTo[mEdgeCount] = to;
+		mEdgeWeights[mEdgeCount] = weight;
+		mEdgeFirstChild[mEdgeCount] = firstChild;
+		mEdgeSecondChild[mEdgeCount] = secondChild;
+		mEdgePieces[mEdgeCount] = piece;
+		return mEdgeCount++;
+	}
+
+	/**
+	 * Files every edge under its lower ranked end, and sets up the query state.
+	 */
+	private void prepareQueries() {
+		int vertexCount = mRanks.length;
+		mUpStarts = new int[vertexCount + 1];
+		for (int e = 0; e < mEdgeCount; ++e) {
+			++mUpStarts[lowerEnd(e) + 1];
+		}
+		for (int v = 0; v < vertexCount; ++v) {
+			mUpStarts[v + 1] += mUpStarts[v];
+		}
+		mUpEdges = new int[mEdgeCount];
+		int[] fill = Arrays.copyOf(mUpStarts, vertexCount);
+		for (int e = 0; e < mEdgeCount; ++e) {
+			mUpEdges[fill[lowerEnd(e)]++] = e;
+		}
+
+		mForwardQueue = new IndexedMinHeap(vertexCount);
+		mBackwardQueue = new IndexedMinHeap(vertexCount);
+		mForwardDistances = new double[vertexCount];
+		mBackwardDistances = new double[vertexCount];
+		mForwardParents = new int[vertexCount];
+		mBackwardParents = new int[vertexCount];
+		mForwardStamps = new int[vertexCount];
+		mBackwardStamps = new int[vertexCount];
+	}
+
+	private int lowerEnd(int edge) {
+		return mRanks[mEdgeFrom[edge]] < mRanks[mEdgeTo[edge]] ? mEdgeFrom[edge] : mEdgeTo[edge];
+	}
+
+	private int otherEnd(int edge, int vertex) {
+		return mEdgeFrom[edge] == vertex ? mEdgeTo[edge] : mEdgeFrom[edge];
+	}
+
+	/**
+	 * Finds the shortest route from either of two source vertices to either of two target vertices, each already
+	 * charged some distance - the two ends of the pieces a TrailRouter's spots are on.
+	 * @param maxMeters routes longer than this aren't looked for
+	 * @return the route's length in meters, charges included, or Double.POSITIVE_INFINITY if there's none within
+	 * maxMeters
+	 */
+	public double query(int source0, double sourceCost0, int source1, double sourceCost1,
+			int target0, double targetCost0, int target1, double targetCost1, double maxMeters) {
+		++mStamp;
+		mForwardQueue.clear();
+		mBackwardQueue.clear();
+		mPathLength = 0;
+		relax(mForwardQueue, mForwardDistances, mForwardParents, mForwardStamps, source0, sourceCost0, -1);
+		relax(mForwardQueue, mForwardDistances, mForwardParents, mForwardStamps, source1, sourceCost1, -1);
+		relax(mBackwardQueue, mBackwardDistances, mBackwardParents, mBackwardStamps, target0, targetCost0, -1);
+		relax(mBackwardQueue, mBackwardDistances, mBackwardParents, mBackwardStamps, target1, targetCost1, -1);
+
+		double best = Double.POSITIVE_INFINITY;
+		int meeting = -1;
+		while (true) {
+			double forwardKey = mForwardQueue.isEmpty() ? Double.POSITIVE_INFINITY : mForwardQueue.peekKey();
+			double backwardKey = mBackwardQueue.isEmpty() ? Double.POSITIVE_INFINITY : mBackwardQueue.peekKey();
+			double key = Math.min(forwardKey, backwardKey);
+			if (key >= best || key > maxMeters) {
+				break;
+			}
+			boolean forward = forwardKey <= backwardKey;
+			int vertex = forward ? mForwardQueue.pop() : mBackwardQueue.pop();
+			double distance = forward ? mForwardDistances[vertex] : mBackwardDistances[vertex];
+
+			boolean seenByOther = forward ? mBackwardStamps[vertex] == mStamp : mForwardStamps[vertex] == mStamp;
+			if (seenByOther) {
+				double total = distance + (forward ? mBackwardDistances[vertex] : mForwardDistances[vertex]);
+				if (total < best) {
+					best = total;
+					meeting = vertex;
+				}
+			}
+
+			for (int i = mUpStarts[vertex]; i < mUpStarts[vertex + 1]; ++i) {
+				int edge = mUpEdges[i];
+				double next = distance + mEdgeWeights[edge];
+				if (next > maxMeters) {
+					continue;
+				}
+				if (forward) {
+					relax(mForwardQueue, mForwardDistances, mForwardParents, mForwardStamps, otherEnd(edge, vertex),
+							next, edge);
+				}
+				else {
+					relax(mBackwardQueue, mBackwardDistances, mBackwardParents, mBackwardStamps, otherEnd(edge, vertex),
+							next, edge);
+				}
+			}
+		}
+		if (meeting < 0 || best > maxMeters) {
+			return Double.POSITIVE_INFINITY;
+		}
+		unpackRoute(meeting, source0, sourceCost0, target0, targetCost0);
+		return best;
+	}
+
+	private void relax(IndexedMinHeap queue, double[] distances, int[] parents, int[] stamps, int vertex,
+			double distance, int edge) {
+		if (stamps[vertex] == mStamp && distances[vertex] <= distance) {
+			return;
+		}
+		stamps[vertex] = mStamp;
+		distances[vertex] = distance;
+		parents[vertex] = edge;
+		queue.push(vertex, distance);
+	}
+
+	/**
+	 * Turns the two searches' parent edges, up from the source and down to the target through the meeting vertex,
+	 * into the pieces of the route.
+	 */
+	private void unpackRoute(int meeting, int source0, double sourceCost0, int target0, double targetCost0) {
+		// climb from the meeting vertex to the source, then unpack those edges source first
+		int edgeCount = 0;
+		int vertex = meeting;
+		while (mForwardParents[vertex] >= 0) {
+			++edgeCount;
+			vertex = otherEnd(mForwardParents[vertex], vertex);
+		}
+		mPathSource = vertex == source0 && mForwardDistances[vertex] == sourceCost0 ? 0 : 1;
+		if (edgeCount > mUpwardEdges.length) {
+			mUpwardEdges = new int[Math.max(edgeCount, 2 * mUpwardEdges.length)];
+		}
+		vertex = meeting;
+		for (int i = edgeCount - 1; i >= 0; --i) {
+			mUpwardEdges[i] = mForwardParents[vertex];
+			vertex = otherEnd(mUpwardEdges[i], vertex);
+		}
+		for (int i = 0; i < edgeCount; ++i) {
+			unpackEdge(mUpwardEdges[i], vertex);
+			vertex = otherEnd(mUpwardEdges[i], vertex);
+		}
+
+		// then down from the meeting vertex to the target
+		while (mBackwardParents[vertex] >= 0) {
+			int edge = mBackwardParents[vertex];
+			unpackEdge(edge, vertex);
+			vertex = otherEnd(edge, vertex);
+		}
+		mPathTarget = vertex == target0 && mBackwardDistances[vertex] == targetCost0 ? 0 : 1;
+	}
+
+	/**
+	 * Appends the pieces of an edge to the route, walking it from the given end.
+	 */
+	private void unpackEdge(int edge, int from) {
+		int depth = 0;
+		mUnpackEdges[depth] = edge;
+		mUnpackFrom[depth] = from;
+		++depth;
+		while (depth > 0) {
+			--depth;
+			int current = mUnpackEdges[depth];
+			int start = mUnpackFrom[depth];
+			if (mEdgeFirstChild[current] < 0) {
+				addPathPiece(mEdgePieces[current], otherEnd(current, start));
+				continue;
+			}
+			// both children meet at the contracted vertex in the middle - push the far half first
+			int first = mEdgeFirstChild[current];
+			int second = mEdgeSecondChild[current];
+			if (mEdgeFrom[first] != start && mEdgeTo[first] != start) {
+				int swap = first;
+				first = second;
+				second = swap;
+			}
+			int middle = otherEnd(first, start);
+			if (depth + 2 > mUnpackEdges.length) {
+				mUnpackEdges = Arrays.copyOf(mUnpackEdges, 2 * mUnpackEdges.length);
+				mUnpackFrom = Arrays.copyOf(mUnpackFrom, 2 * mUnpackFrom.length);
+			}
+			mUnpackEdges[depth] = second;
+			mUnpackFrom[depth] = middle;
+			++depth;
+			mUnpackEdges[depth] = first;
+			mUnpackFrom[depth] = start;
+			++depth;
+		}
+	}
+
+	private void addPathPiece(int piece, int target) {
+		if (mPathLength == mPathPieces.length) {
+			mPathPieces = Arrays.copyOf(mPathPieces, 2 * mPathLength);
+			mPathTargets = Arrays.copyOf(mPathTargets, 2 * mPathLength);
+		}
+		mPathPieces[mPathLength] = piece;
+		mPathTargets[mPathLength] = target;
+		++mPathLength;
+	}
+
+	/**
+	 * @return number of pieces in the last query's route
+	 */
+	public int getPathLength() {
+		return mPathLength;
+	}
+
+	/**
+	 * @param index position in the last route
+	 * @return the TrailGraph piece there
+	 */
+	public int getPathPiece(int index) {
+		return mPathPieces[index];
+	}
+
+	/**
+	 * @param index position in the last route
+	 * @return the vertex the piece there leads to
+	 */
+	public int getPathTarget(int index) {
+		return mPathTargets[index];
+	}
+
+	/**
+	 * @return which of the last query's sources its route started from, 0 or 1
+	 */
+	public int getPathSourceIndex() {
+		return mPathSource;
+	}
+
+	/**
+	 * @return which of the last query's targets its route ended at, 0 or 1
+	 */
+	public int getPathTargetIndex() {
+		return mPathTarget;
+	}
+
+	/**
+	 * Contracts the vertices of a hierarchy's graph, adding its edges and ranks. Only lives while building.
+	 */
+	private static class Builder {
+		private final ContractionHierarchy mHierarchy;
+		private final int mVertexCount;
+
+		/** edges of each vertex to vertices not yet contracted **/
+		private int[][] mAdjacent;
+		private int[] mDegrees;
+
+		/** true once a vertex is contracted **/
+		private final boolean[] mContracted;
+
+		/** number of each vertex's neighbours already contracted - spreads contraction evenly over the graph **/
+		private final int[] mContractedNeighbours;
+
+		/** one more than the highest level among each vertex's contracted neighbours - keeps the hierarchy flat **/
+		private final int[] mLevels;
+
+		/** witness search state **/
+		private final IndexedMinHeap mQueue;
+		private final double[] mDistances;
+		private final int[] mStamps;
+		private int mStamp = 0;
+
+		Builder(ContractionHierarchy hierarchy) {
+			mHierarchy = hierarchy;
+			TrailGraph graph = hierarchy.mGraph;
+			mVertexCount = graph.getVertexCount();
+			mAdjacent = new int[mVertexCount][];
+			mDegrees = new int[mVertexCount];
+			mContracted = new boolean[mVertexCount];
+			mContractedNeighbours = new int[mVertexCount];
+			mLevels = new int[mVertexCount];
+			mQueue = new IndexedMinHeap(mVertexCount);
+			mDistances = new double[mVertexCount];
+			mStamps = new int[mVertexCount];
+			for (int v = 0; v < mVertexCount; ++v) {
+				mAdjacent[v] = new int[Math.max(graph.getArcEnd(v) - graph.getArcStart(v), 2)];
+			}
+
+			hierarchy.mRanks = new int[mVertexCount];
+			hierarchy.allocateEdges(graph.getPieceCount());
+			for (int piece = 0; piece < graph.getPieceCount(); ++piece) {
+				int from = graph.getPieceFrom(piece), to = graph.getPieceTo(piece);
+				if (from != to) {
+					addOrShorten(from, to, graph.getPieceLength(piece), -1, -1, piece);
+				}
+			}
+		}
+
+		void contractAll() {
+			IndexedMinHeap order = new IndexedMinHeap(mVertexCount);
+			for (int v = 0; v < mVertexCount; ++v) {
+				order.push(v, priority(v));
+			}
+			int rank = 0;
+			while (!order.isEmpty()) {
+				int vertex = order.pop();
+				// priorities go stale as neighbours are contracted - recheck lazily
+				double current = priority(vertex);
+				if (!order.isEmpty() && current > order.peekKey()) {
+					order.push(vertex, current);
+					continue;
+				}
+				contract(vertex, false);
+				mHierarchy.mRanks[vertex] = rank++;
+			}
+		}
+
+		private double priority(int vertex) {
+			return 2 * (contract(vertex, true) - mDegrees[vertex]) + mContractedNeighbours[vertex] + mLevels[vertex];
+		}
+
+		/**
+		 * Contracts a vertex, or just counts the shortcuts that would take.
+		 * @param simulate true to only count
+		 * @return number of shortcuts needed
+		 */
+		private int contract(int vertex, boolean simulate) {
+			int shortcuts = 0;
+			int[] edges = mAdjacent[vertex];
+			int degree = mDegrees[vertex];
+			double[] weights = mHierarchy.mEdgeWeights;
+			double longestOut = 0;
+			for (int i = 0; i < degree; ++i) {
+				longestOut = Math.max(longestOut, weights[edges[i]]);
+			}
+
+			for (int i = 0; i < degree; ++i) {
+				int inEdge = edges[i];
+				int from = mHierarchy.otherEnd(inEdge, vertex);
+				witnessSearch(from, vertex, weights[inEdge] + longestOut);
+				for (int j = i + 1; j < degree; ++j) {
+					int outEdge = edges[j];
+					int to = mHierarchy.otherEnd(outEdge, vertex);
+					double via = weights[inEdge] + weights[outEdge];
+					if (to == from || (mStamps[to] == mStamp && mDistances[to] <= via)) {
+						continue;
+					}
+					++shortcuts;
+					if (!simulate) {
+						addOrShorten(from, to, via, inEdge, outEdge, -1);
+					}
+				}
+			}
+
+			if (!simulate) {
+				mContracted[vertex] = true;
+				for (int i = 0; i < mDegrees[vertex]; ++i) {
+					int neighbour = mHierarchy.otherEnd(mAdjacent[vertex][i], vertex);
+					removeEdge(neighbour, mAdjacent[vertex][i]);
+					++mContractedNeighbours[neighbour];
+					mLevels[neighbour] = Math.max(mLevels[neighbour], mLevels[vertex] + 1);
+				}
+			}
+			return shortcuts;
+		}
+
+		/**
+		 * Dijkstra from a vertex among the vertices not yet contracted, avoiding one, up to a distance or a
+		 * number of settled vertices. Leaves its distances in mDistances, stamped with mStamp.
+		 */
+		private void witnessSearch(int source, int avoid, double maxMeters) {
+			++mStamp;
+			mQueue.clear();
+			mStamps[source] = mStamp;
+			mDistances[source] = 0;
+			mQueue.push(source, 0);
+			int settled = 0;
+			double[] weights = mHierarchy.mEdgeWeights;
+			while (!mQueue.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+				if (mQueue.peekKey() > maxMeters) {
+					break;
+				}
+				int vertex = mQueue.pop();
+				++settled;
+				double distance = mDistances[vertex];
+				for (int i = 0; i < mDegrees[vertex]; ++i) {
+					int edge = mAdjacent[vertex][i];
+					int next = mHierarchy.otherEnd(edge, vertex);
+					if (next == avoid) {
+						continue;
+					}
+					double nextDistance = distance + weights[edge];
+					if (mStamps[next] != mStamp || nextDistance < mDistances[next]) {
+						mStamps[next] = mStamp;
+						mDistances[next] = nextDistance;
+						mQueue.push(next, nextDistance);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Adds an edge between two vertices not yet contracted, or shortens the one they already have.
+		 */
+		private void addOrShorten(int from, int to, double weight, int firstChild, int secondChild, int piece) {
+			for (int i = 0; i < mDegrees[from]; ++i) {
+				int edge = mAdjacent[from][i];
+				if (mHierarchy.otherEnd(edge, from) == to) {
+					if (weight < mHierarchy.mEdgeWeights[edge]) {
+						// nothing refers to an edge between uncontracted vertices yet, so it can change in place
+						mHierarchy.mEdgeWeights[edge] = weight;
+						mHierarchy.mEdgeFirstChild[edge] = firstChild;
+						mHierarchy.mEdgeSecondChild[edge] = secondChild;
+						mHierarchy.mEdgePieces[edge] = piece;
+					}
+					return;
+				}
+			}
+			int edge = mHierarchy.addEdge(from, to, weight, firstChild, secondChild, piece);
+			appendEdge(from, edge);
+			appendEdge(to, edge);
+		}
+
+		private void appendEdge(int vertex, int edge) {
+			if (mDegrees[vertex] == mAdjacent[vertex].length) {
+				mAdjacent[vertex] = Arrays.copyOf(mAdjacent[vertex], 2 * mDegrees[vertex]);
+			}
+			mAdjacent[vertex][mDegrees[vertex]++] = edge;
+		}
+
+		private void removeEdge(int vertex, int edge) {
+			int[] edges = mAdjacent[vertex];
+			for (int i = 0; i < mDegrees[vertex]; ++i) {
+				if (edges[i] == edge) {
+					edges[i] = edges[--mDegrees[vertex]];
+					return;
+				}
+			}
+		}
+	}
+}
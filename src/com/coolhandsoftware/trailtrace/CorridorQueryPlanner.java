@@ -0,0 +1,384 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.osmdroid.util.BoundingBoxE6;
+
+/**
+ * Works out which parts of which WayTileCache tiles a snap needs, and how to download the ones that aren't cached.
+ *
+ * Instead of the bounding box of the whole trace - mostly empty for a long diagonal route - the trace is buffered
+ * into a corridor CORRIDOR_METERS wide on each side. Each cache tile is split into CELLS_PER_SIDE by
+ * CELLS_PER_SIDE cells (zoom 17 tiles, a few hundred meters across), and only the cells the corridor touches are
+ * downloaded: a 200 m wide corridor fills a small part of the 2 km tiles it crosses. The tile stays the cache's
+ * unit, and the cache records which of a tile's cells it holds - see WayTileCache.getCells.
+ *
+ * A tile's missing cells are merged into as few rectangles as the greedy pass below finds (runs along each row,
+ * then identical runs in the rows below), and the rectangles of several tiles go into one Overpass query as a
+ * union of boxes, so the many small boxes don't mean many requests.
+ *
+ * Tile math is done in zoom 22 world pixels, where a cache tile is exactly TILE_PIXELS across.
+ */
+public class CorridorQueryPlanner {
+
+	/** how far either side of the trace to look for ways - comfortably past MapMatcher's search radius **/
+	public static final double CORRIDOR_METERS = 100;
+
+	/** cells along each side of a cache tile - a tile's cells fit the 64 bits of a long, row by row **/
+	public static final int CELLS_PER_SIDE = 8;
+
+	/** cell bits of a whole tile **/
+	public static final long ALL_CELLS = -1L;
+
+	/** most boxes in one query - keeps the URL a few kilobytes long, and fits any tile's rectangles **/
+	private static final int MAX_BOXES_PER_QUERY = CELLS_PER_SIDE * CELLS_PER_SIDE / 2;
+
+	/** width of a cache tile in zoom 22 world pixels **/
+	private static final int TILE_PIXELS = WebMercator.TILE_SIZE << (WebMercator.MAX_ZOOM - WayTileCache.TILE_ZOOM);
+
+	/** width of a cell in zoom 22 world pixels **/
+	private static final int CELL_PIXELS = TILE_PIXELS / CELLS_PER_SIDE;
+
+	/** tile column of each corridor tile, in the order they were found **/
+	private int[] mTileX = new int[64];
+
+	/** tile row of each corridor tile **/
+	private int[] mTileY = new int[64];
+
+	/** cells of each corridor tile the corridor touches, see CELLS_PER_SIDE **/
+	private long[] mTileCells = new long[64];
+
+	/** number of corridor tiles **/
+	private int mTileCount = 0;
+
+	/** (column, row) packed into a long, to index in mTileX / mTileY **/
+	private final LongIntHashMap mTileIndex = new LongIntHashMap(64);
+
+	/** bounding box of the corridor, E6 **/
+	private int mMinLatE6 = Integer.MAX_VALUE, mMinLonE6 = Integer.MAX_VALUE;
+	private int mMaxLatE6 = Integer.MIN_VALUE, mMaxLonE6 = Integer.MIN_VALUE;
+
+	/**
+	 * The missing cells of a few tiles, fetched with one query.
+	 */
+	public static class Query {
+		/** areas to download - rectangles of cells **/
+		public final List<BoundingBoxE6> mBoxes;
+
+		/** quadkeys of the tiles the boxes are in **/
+		public final List<String> mTiles;
+
+		/** for each tile, the cells the boxes cover **/
+		public final long[] mCells;
+
+		Query(List<BoundingBoxE6> boxes, List<String> tiles, long[] cells) {
+			mBoxes = boxes;
+			mTiles = tiles;
+			mCells = cells;
+		}
+	}
+
+	/**
+	 * Finds the cache tiles the corridor around a trace touches.
+	 * @param trace the trace - only read. Each of its segments is buffered on its own, the gaps between them aren't.
+	 * @param corridorMeters how far either side of the trace the corridor reaches
+	 */
+	public CorridorQueryPlanner(PackedTrace trace, double corridorMeters) {
+		for (int segment = 0; segment < trace.getSegmentCount(); ++segment) {
+			int start = trace.getSegmentStart(segment);
+			int end = trace.getSegmentEnd(segment);
+			for (int i = start; i < end; ++i) {
+				int previous = i > start ? i - 1 : i;
+				addCorridorTiles(trace.getLatitudeE6(previous), trace.getLongitudeE6(previous),
+						trace.getLatitudeE6(i), trace.getLongitudeE6(i), corridorMeters);
+			}
+		}
+	}
+
+	/**
+	 * Takes every cache tile an area touches as the corridor, for fetching ways ahead of a trace.
+	 * @param area the area
+	 */
+	public CorridorQueryPlanner(BoundingBoxE6 area) {
+		int zoom = WebMercator.MAX_ZOOM;
+		int maxTile = (1 << WayTileCache.TILE_ZOOM) - 1;
+		int firstX = Math.max(WebMercator.longitudeE6ToPixelX(area.getLonWestE6(), zoom) / TILE_PIXELS, 0);
+		int lastX = Math.min(WebMercator.longitudeE6ToPixelX(area.getLonEastE6(), zoom) / TILE_PIXELS, maxTile);
+		int firstY = Math.max(WebMercator.latitudeE6ToPixelY(area.getLatNorthE6(), zoom) / TILE_PIXELS, 0);
+		int lastY = Math.min(WebMercator.latitudeE6ToPixelY(area.getLatSouthE6(), zoom) / TILE_PIXELS, maxTile);
+		for (int y = firstY; y <= lastY; ++y) {
+			for (int x = firstX; x <= lastX; ++x) {
+				mTileCells[addTile(x, y)] = ALL_CELLS;
+			}
+		}
+		mMinLatE6 = area.getLatSouthE6();
+		mMaxLatE6 = area.getLatNorthE6();
+		mMinLonE6 = area.getLonWestE6();
+		mMaxLonE6 = area.getLonEastE6();
+	}
+
+	/**
+	 * @return number of tiles the corridor touches
+	 */
+	public int getTileCount() {
+		return mTileCount;
+	}
+
+	/**
+	 * @param tile index of a corridor tile
+	 * @return the tile's quadkey
+	 */
+	public String getQuadkey(int tile) {
+		return WayTileCache.quadkey(mTileX[tile], mTileY[tile], WayTileCache.TILE_ZOOM);
+	}
+
+	/**
+	 * @param tile index of a corridor tile
+	 * @return the tile's cells the corridor touches, see CELLS_PER_SIDE
+	 */
+	public long getCells(int tile) {
+		return mTileCells[tile];
+	}
+
+	/**
+	 * @param tile index of a corridor tile
+	 * @return the tile's column at the cache zoom
+	 */
+	public int getTileX(int tile) {
+		return mTileX[tile];
+	}
+
+	/**
+	 * @param tile index of a corridor tile
+	 * @return the tile's row at the cache zoom
+	 */
+	public int getTileY(int tile) {
+		return mTileY[tile];
+	}
+
+	/**
+	 * @return bounding box of the corridor - ways outside it are too far from the trace to snap to
+	 */
+	public BoundingBoxE6 getCorridorBounds() {
+		return new BoundingBoxE6(mMaxLatE6, mMaxLonE6, mMinLatE6, mMinLonE6);
+	}
+
+	/**
+	 * Finds the WayTileCache region (see WayTileCache.REGION_ZOOM) holding the whole corridor, for keeping things
+	 * built from a region's ways, like a ContractionHierarchy. Regions are fixed parent tiles, so every snap in
+	 * the same area finds the same one.
+	 * @return the region's quadkey, or null if the corridor crosses into another region
+	 */
+	public String getRegion() {
+		if (mTileCount == 0) {
+			return null;
+		}
+		int shift = WayTileCache.TILE_ZOOM - WayTileCache.REGION_ZOOM;
+		int regionX = mTileX[0] >> shift;
+		int regionY = mTileY[0] >> shift;
+		for (int t = 1; t < mTileCount; ++t) {
+			if (mTileX[t] >> shift != regionX || mTileY[t] >> shift != regionY) {
+				return null;
+			}
+		}
+		return WayTileCache.quadkey(regionX, regionY, WayTileCache.REGION_ZOOM);
+	}
+
+	/**
+	 * Plans the queries for the cells of the corridor tiles that need downloading. Each wanted cell ends up in
+	 * exactly one box, and no box holds a cell that isn't wanted.
+	 * @param wanted for each corridor tile, the cells that need downloading - 0 for none
+	 * @return the queries
+	 */
+	public List<Query> planQueries(long[] wanted) {
+		ArrayList<String> tiles = new ArrayList<String>(mTileCount);
+		long[] cells = new long[mTileCount];
+		for (int t = 0; t < mTileCount; ++t) {
+			if (wanted[t] != 0) {
+				cells[tiles.size()] = wanted[t];
+				tiles.add(getQuadkey(t));
+			}
+		}
+		return planQueries(tiles, cells);
+	}
+
+	/**
+	 * Plans the queries for some cells of some tiles - each tile's cells are merged into rectangles, and the
+	 * tiles are packed into queries in order, a whole tile to a query.
+	 * @param quadkeys the tiles' quadkeys, all at WayTileCache.TILE_ZOOM
+	 * @param cells for each tile, the cells to download - not 0
+	 * @return the queries
+	 */
+	public static List<Query> planQueries(List<String> quadkeys, long[] cells) {
+		ArrayList<Query> queries = new ArrayList<Query>();
+		ArrayList<BoundingBoxE6> boxes = new ArrayList<BoundingBoxE6>();
+		ArrayList<BoundingBoxE6> tileBoxes = new ArrayList<BoundingBoxE6>();
+		int first = 0;
+		for (int t = 0; t < quadkeys.size(); ++t) {
+			tileBoxes.clear();
+			addCellBoxes(quadkeys.get(t), cells[t], tileBoxes);
+			if (boxes.size() + tileBoxes.size() > MAX_BOXES_PER_QUERY) {
+				queries.add(new Query(boxes, quadkeys.subList(first, t), Arrays.copyOfRange(cells, first, t)));
+				boxes = new ArrayList<BoundingBoxE6>();
+				first = t;
+			}
+			boxes.addAll(tileBoxes);
+		}
+		if (!boxes.isEmpty()) {
+			queries.add(new Query(boxes, quadkeys.subList(first, quadkeys.size()),
+					Arrays.copyOfRange(cells, first, quadkeys.size())));
+		}
+		return queries;
+	}
+
+	/**
+	 * Merges some cells of a tile into rectangles: grows a run of cells along a row, then down while the rows
+	 * below have the same run.
+	 * @param quadkey the tile's quadkey
+	 * @param cells the cells
+	 * @param boxes gets the rectangles
+	 */
+	private static void addCellBoxes(String quadkey, long cells, List<BoundingBoxE6> boxes) {
+		int tileX = 0, tileY = 0;
+		for (int i = 0; i < quadkey.length(); ++i) {
+			int digit = quadkey.charAt(i) - '0';
+			tileX = (tileX << 1) | (digit & 1);
+			tileY = (tileY << 1) | (digit >> 1);
+		}
+		double originX = tileX * (double) TILE_PIXELS;
+		double originY = tileY * (double) TILE_PIXELS;
+		int zoom = WebMercator.MAX_ZOOM;
+
+		long remaining = cells;
+		while (remaining != 0) {
+			int cell = Long.numberOfTrailingZeros(remaining);
+			int row = cell / CELLS_PER_SIDE;
+			int left = cell % CELLS_PER_SIDE, right = left;
+			while (right + 1 < CELLS_PER_SIDE && (remaining & cellBit(right + 1, row)) != 0) {
+				++right;
+			}
+			long run = 0;
+			for (int x = left; x <= right; ++x) {
+				run |= cellBit(x, row);
+			}
+			remaining &= ~run;
+			int bottom = row;
+			while (bottom + 1 < CELLS_PER_SIDE && (remaining & (run << CELLS_PER_SIDE)) == run << CELLS_PER_SIDE) {
+				run <<= CELLS_PER_SIDE;
+				remaining &= ~run;
+				++bottom;
+			}
+			boxes.add(new BoundingBoxE6(
+					WebMercator.pixelYToLatitudeE6(originY + row * (double) CELL_PIXELS, zoom),
+					WebMercator.pixelXToLongitudeE6(originX + (right + 1) * (double) CELL_PIXELS, zoom),
+					WebMercator.pixelYToLatitudeE6(originY + (bottom + 1) * (double) CELL_PIXELS, zoom),
+					WebMercator.pixelXToLongitudeE6(originX + left * (double) CELL_PIXELS, zoom)));
+		}
+	}
+
+	/**
+	 * @param x column of a cell within its tile
+	 * @param y row of a cell within its tile
+	 * @return the cell's bit, see CELLS_PER_SIDE
+	 */
+	public static long cellBit(int x, int y) {
+		return 1L << (y * CELLS_PER_SIDE + x);
+	}
+
+	/**
+	 * Adds every cell within the corridor distance of a trace segment, and the tiles they're in. The test is
+	 * against each cell grown by the corridor width, which is a little generous at the cell corners - that only
+	 * ever adds a cell, never loses one.
+	 */
+	private void addCorridorTiles(int fromLatE6, int fromLonE6, int toLatE6, int toLonE6, double corridorMeters) {
+		int zoom = WebMercator.MAX_ZOOM;
+		double x0 = WebMercator.longitudeE6ToPixelX(fromLonE6, zoom);
+		double y0 = WebMercator.latitudeE6ToPixelY(fromLatE6, zoom);
+		double x1 = WebMercator.longitudeE6ToPixelX(toLonE6, zoom);
+		double y1 = WebMercator.latitudeE6ToPixelY(toLatE6, zoom);
+		double latitude = Math.max(Math.abs(fromLatE6), Math.abs(toLatE6)) / 1e6;
+		double buffer = corridorMeters / WebMercator.groundResolution(latitude, zoom);
+
+		int maxCell = (CELLS_PER_SIDE << WayTileCache.TILE_ZOOM) - 1;
+		int firstX = Math.max((int) ((Math.min(x0, x1) - buffer) / CELL_PIXELS), 0);
+		int lastX = Math.min((int) ((Math.max(x0, x1) + buffer) / CELL_PIXELS), maxCell);
+		int firstY = Math.max((int) ((Math.min(y0, y1) - buffer) / CELL_PIXELS), 0);
+		int lastY = Math.min((int) ((Math.max(y0, y1) + buffer) / CELL_PIXELS), maxCell);
+		for (int y = firstY; y <= lastY; ++y) {
+			for (int x = firstX; x <= lastX; ++x) {
+				if (segmentHitsBox(x0, y0, x1, y1, x * (double) CELL_PIXELS - buffer, y * (double) CELL_PIXELS - buffer,
+						(x + 1) * (double) CELL_PIXELS + buffer, (y + 1) * (double) CELL_PIXELS + buffer)) {
+					int tile = addTile(x / CELLS_PER_SIDE, y / CELLS_PER_SIDE);
+					mTileCells[tile] |= cellBit(x % CELLS_PER_SIDE, y % CELLS_PER_SIDE);
+				}
+			}
+		}
+
+		// grow the corridor's bounding box by the buffer, converted back to degrees
+		int minLat = WebMercator.pixelYToLatitudeE6(Math.max(y0, y1) + buffer, zoom);
+		int maxLat = WebMercator.pixelYToLatitudeE6(Math.min(y0, y1) - buffer, zoom);
+		int minLon = WebMercator.pixelXToLongitudeE6(Math.min(x0, x1) - buffer, zoom);
+		int maxLon = WebMercator.pixelXToLongitudeE6(Math.max(x0, x1) + buffer, zoom);
+		mMinLatE6 = Math.min(mMinLatE6, minLat);
+		mMaxLatE6 = Math.max(mMaxLatE6, maxLat);
+		mMinLonE6 = Math.min(mMinLonE6, minLon);
+		mMaxLonE6 = Math.max(mMaxLonE6, maxLon);
+	}
+
+	/**
+	 * Slab test of a line segment against an axis-aligned box.
+	 * @return true if any part of the segment is inside the box
+	 */
+	private static boolean segmentHitsBox(double x0, double y0, double x1, double y1,
+			double left, double top, double right, double bottom) {
+		double enter = 0, leave = 1;
+		double dx = x1 - x0, dy = y1 - y0;
+		if (dx == 0) {
+			if (x0 < left || x0 > right) {
+				return false;
+			}
+		}
+		else {
+			double t0 = (left - x0) / dx, t1 = (right - x0) / dx;
+			enter = Math.max(enter, Math.min(t0, t1));
+			leave = Math.min(leave, Math.max(t0, t1));
+		}
+		if (dy == 0) {
+			if (y0 < top || y0 > bottom) {
+				return false;
+			}
+		}
+		else {
+			double t0 = (top - y0) / dy, t1 = (bottom - y0) / dy;
+			enter = Math.max(enter, Math.min(t0, t1));
+			leave = Math.min(leave, Math.max(t0, t1));
+		}
+		return enter <= leave;
+	}
+
+	/**
+	 * @return index of the tile, added with no cells if it's new
+	 */
+	private int addTile(int x, int y) {
+		long key = key(x, y);
+		int existing = mTileIndex.get(key, -1);
+		if (existing >= 0) {
+			return existing;
+		}
+		if (mTileCount == mTileX.length) {
+			mTileX = Arrays.copyOf(mTileX, 2 * mTileCount);
+			mTileY = Arrays.copyOf(mTileY, 2 * mTileCount);
+			mTileCells = Arrays.copyOf(mTileCells, 2 * mTileCount);
+		}
+		mTileX[mTileCount] = x;
+		mTileY[mTileCount] = y;
+		mTileIndex.put(key, mTileCount);
+		return mTileCount++;
+	}
+
+	private static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+}
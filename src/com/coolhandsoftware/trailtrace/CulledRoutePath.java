@@ -0,0 +1,196 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.List;
+
+import org.osmdroid.util.GeoPoint;
+
+import android.graphics.Path;
+import android.graphics.Rect;
+
+/**
+ * Turns a route's points into a screen Path holding only the parts that can be seen. The points are projected
+ * once, to world pixels at WebMercator.MAX_ZOOM, and cut into chunks of CHUNK_SIZE lines with a bounding box
+ * each. Building the path then goes chunk by chunk:
+ *
+ * - a chunk whose box misses the viewport is skipped without looking at its points
+ * - a chunk whose box is inside the viewport is copied straight into the path
+ * - a chunk whose box crosses the viewport's edge has each of its lines clipped (Liang-Barsky), so the path
+ *   never holds coordinates far off screen
+ *
+ * so the cost of a frame follows what's on screen, not how long the route is.
+ */
+public class CulledRoutePath {
+
+	/** number of lines per chunk **/
+	private static final int CHUNK_SIZE = 64;
+
+	/** world pixel x-coordinates of the points at WebMercator.MAX_ZOOM **/
+	private int[] mX = new int[0];
+
+	/** world pixel y-coordinates of the points at WebMercator.MAX_ZOOM **/
+	private int[] mY = new int[0];
+
+	/** number of valid points in mX/mY **/
+	private int mPointCount = 0;
+
+	/** bounding box of each chunk, world pixels at WebMercator.MAX_ZOOM **/
+	private int[] mChunkMinX = new int[0];
+	private int[] mChunkMinY = new int[0];
+	private int[] mChunkMaxX = new int[0];
+	private int[] mChunkMaxY = new int[0];
+
+	/** number of valid chunks **/
+	private int mChunkCount = 0;
+
+	/** parameters of the visible part of the line being clipped, 0 is its start and 1 its end **/
+	private double mClipStart;
+	private double mClipEnd;
+
+	public CulledRoutePath() {
+
+	}
+
+	/**
+	 * Projects a new set of points and rebuilds the chunks.
+	 * @param points the route, as one continuous line
+	 */
+	public void setPoints(List<GeoPoint> points) {
+		mPointCount = points.size();
+		if (mX.length < mPointCount) {
+			mX = new int[mPointCount];
+			mY = new int[mPointCount];
+		}
+		for (int i = 0; i < mPointCount; ++i) {
+			GeoPoint point = points.get(i);
+			mX[i] = WebMercator.longitudeE6ToPixelX(point.getLongitudeE6(), WebMercator.MAX_ZOOM);
+			mY[i] = WebMercator.latitudeE6ToPixelY(point.getLatitudeE6(), WebMercator.MAX_ZOOM);
+		}
+
+		int lineCount = Math.max(mPointCount - 1, 0);
+		mChunkCount = (lineCount + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if (mChunkMinX.length < mChunkCount) {
+			mChunkMinX = new int[mChunkCount];
+			mChunkMinY = new int[mChunkCount];
+			mChunkMaxX = new int[mChunkCount];
+			mChunkMaxY = new int[mChunkCount];
+		}
+		for (int c = 0; c < mChunkCount; ++c) {
+			// chunk c holds the lines starting at its points, so it also needs the end of its last line
+			int first = c * CHUNK_SIZE;
+			int last = Math.min(first + CHUNK_SIZE, mPointCount - 1);
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+			int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			for (int i = first; i <= last; ++i) {
+				minX = Math.min(minX, mX[i]);
+				minY = Math.min(minY, mY[i]);
+				maxX = Math.max(maxX, mX[i]);
+				maxY = Math.max(maxY, mY[i]);
+			}
+			mChunkMinX[c] = minX;
+			mChunkMinY[c] = minY;
+			mChunkMaxX[c] = maxX;
+			mChunkMaxY[c] = maxY;
+		}
+	}
+
+	/**
+	 * Refills a path with the visible part of the route, in screen pixels.
+	 * @param path the path to refill
+	 * @param zoom the map's zoom level
+	 * @param originX world pixel x-coordinate of the screen's left edge, at the map's zoom level
+	 * @param originY world pixel y-coordinate of the screen's top edge, at the map's zoom level
+	 * @param visible the part of the canvas that ends up on screen, in screen pixels from the origin - bigger than
+	 * the screen itself while the map is zoomed out by a pinch or rotated
+	 * @param margin how far past the visible edges to keep drawing (e.g. the stroke width), pixels
+	 * @return number of lines in the path
+	 */
+	public int buildPath(Path path, int zoom, int originX, int originY, Rect visible, float margin) {
+		path.rewind();
+		double scale = 1 << (WebMercator.MAX_ZOOM - zoom);
+
+		// viewport in MAX_ZOOM world pixels
+		double left = (originX + visible.left - margin) * scale;
+		double top = (originY + visible.top - margin) * scale;
+		double right = (originX + visible.right + margin) * scale;
+		double bottom = (originY + visible.bottom + margin) * scale;
+
+		int lines = 0;
+		boolean penAtLineStart = false; // true if the path already ends where the next line starts
+		for (int c = 0; c < mChunkCount; ++c) {
+			if (mChunkMaxX[c] < left || mChunkMinX[c] > right || mChunkMaxY[c] < top || mChunkMinY[c] > bottom) {
+				penAtLineStart = false;
+				continue;
+			}
+			boolean inside = mChunkMinX[c] >= left && mChunkMaxX[c] <= right
+					&& mChunkMinY[c] >= top && mChunkMaxY[c] <= bottom;
+
+			int first = c * CHUNK_SIZE;
+			int last = Math.min(first + CHUNK_SIZE, mPointCount - 1);
+			for (int i = first; i < last; ++i) {
+				double x0 = mX[i], y0 = mY[i], x1 = mX[i + 1], y1 = mY[i + 1];
+				if (!inside && !clip(x0, y0, x1, y1, left, top, right, bottom)) {
+					penAtLineStart = false;
+					continue;
+				}
+				if (!inside) {
+					double dx = x1 - x0, dy = y1 - y0;
+					x1 = x0 + mClipEnd * dx;
+					y1 = y0 + mClipEnd * dy;
+					x0 += mClipStart * dx;
+					y0 += mClipStart * dy;
+				}
+				if (!penAtLineStart || (!inside && mClipStart > 0)) {
+					path.moveTo((float) (x0 / scale - originX), (float) (y0 / scale - originY));
+				}
+				path.lineTo((float) (x1 / scale - originX), (float) (y1 / scale - originY));
+				penAtLineStart = inside || mClipEnd == 1;
+				++lines;
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Liang-Barsky clipping of a line against a rectangle. On success the visible part runs from mClipStart to
+	 * mClipEnd along the line.
+	 * @return false if no part of the line is inside the rectangle
+	 */
+	private boolean clip(double x0, double y0, double x1, double y1, double left, double top, double right, double bottom) {
+		double dx = x1 - x0;
+		double dy = y1 - y0;
+		mClipStart = 0;
+		mClipEnd = 1;
+		return clipAgainstEdge(-dx, x0 - left) && clipAgainstEdge(dx, right - x0)
+				&& clipAgainstEdge(-dy, y0 - top) && clipAgainstEdge(dy, bottom - y0);
+	}
+
+	/**
+	 * Narrows mClipStart/mClipEnd to the inside of one edge.
+	 * @param p negated (for left/top) or plain (for right/bottom) component of the line's direction
+	 * @param q distance from the line's start to the edge, positive when the start is inside
+	 * @return false if the line is entirely outside the edge
+	 */
+	private boolean clipAgainstEdge(double p, double q) {
+		if (p == 0) {
+			return q >= 0; // parallel to the edge
+		}
+		double t = q / p;
+		if (p < 0) {
+			if (t > mClipEnd) {
+				return false;
+			}
+			if (t > mClipStart) {
+				mClipStart = t;
+			}
+		}
+		else {
+			if (t < mClipStart) {
+				return false;
+			}
+			if (t < mClipEnd) {
+				mClipEnd = t;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,186 @@
+package com.coolhandsoftware.trailtrace;
+
+/**
+ * Pure-Java distance kernels for measuring routes, so measuring doesn't need android.location.Location
+ * (which round-trips through its iterative Vincenty solution and a float[] for every pair of points).
+ *
+ * There are three modes, from cheapest to most accurate. The error bounds are relative to the WGS84
+ * ellipsoid, for a single segment of the given length at latitudes up to about 70 degrees:
+ *
+ * - EQUIRECTANGULAR: flat-earth approximation with cos(latitude) taken at the segment's midpoint. Under
+ *   about 0.001% extra error on top of the sphere's for segments shorter than 1 km (well under a
+ *   centimeter) and about 0.02% at 10 km, but it grows with the square of the length, so it's only used
+ *   for short segments.
+ * - HAVERSINE: great circle on a sphere with the mean earth radius. Exact on the sphere at any length;
+ *   the sphere itself is at most about 0.5% off the ellipsoid (typically 0.1-0.3% on north-south legs).
+ * - VINCENTY: Vincenty's inverse formula on the WGS84 ellipsoid. Accurate to well under a millimeter,
+ *   but iterative, so several times slower than the others.
+ *
+ * auto() picks a mode from the segment's rough length. Traced segments are a few meters long and take
+ * the equirectangular path; only long straight legs (imported tracks, snapped gaps) pay for more.
+ */
+public class GeoDistance {
+
+	/** which formula to use **/
+	public enum Mode { EQUIRECTANGULAR, HAVERSINE, VINCENTY }
+
+	/** mean earth radius, meters (IUGG) - used by the spherical modes **/
+	public static final double MEAN_EARTH_RADIUS_METERS = 6371008.8;
+
+	/** WGS84 semi-major axis, meters **/
+	private static final double WGS84_A = 6378137.0;
+
+	/** WGS84 flattening **/
+	private static final double WGS84_F = 1 / 298.257223563;
+
+	/** WGS84 semi-minor axis, meters **/
+	private static final double WGS84_B = WGS84_A * (1 - WGS84_F);
+
+	/** segments shorter than this (by the equirectangular estimate) are measured with the equirectangular mode **/
+	public static final double EQUIRECTANGULAR_MAX_METERS = 2000;
+
+	/** segments shorter than this (but longer than EQUIRECTANGULAR_MAX_METERS) are measured with haversine **/
+	public static final double HAVERSINE_MAX_METERS = 50000;
+
+	/** Vincenty gives up after this many iterations (only happens for nearly antipodal points) **/
+	private static final int VINCENTY_MAX_ITERATIONS = 100;
+
+	/** no instances - this is a bag of static functions **/
+	private GeoDistance() {
+
+	}
+
+	/**
+	 * Measures a segment with the given mode.
+	 * @param mode which formula to use
+	 * @param lat1E6 latitude of the first point, E6 format
+	 * @param lon1E6 longitude of the first point, E6 format
+	 * @param lat2E6 latitude of the second point, E6 format
+	 * @param lon2E6 longitude of the second point, E6 format
+	 * @return distance in meters
+	 */
+	public static double meters(Mode mode, int lat1E6, int lon1E6, int lat2E6, int lon2E6) {
+		switch (mode) {
+		case EQUIRECTANGULAR:
+			return equirectangular(lat1E6, lon1E6, lat2E6, lon2E6);
+		case HAVERSINE:
+			return haversine(lat1E6, lon1E6, lat2E6, lon2E6);
+		default:
+			return vincenty(lat1E6, lon1E6, lat2E6, lon2E6);
+		}
+	}
+
+	/**
+	 * Measures a segment, picking the cheapest mode that's accurate enough for its length.
+	 * @return distance in meters
+	 */
+	public static double auto(int lat1E6, int lon1E6, int lat2E6, int lon2E6) {
+		double estimate = equirectangular(lat1E6, lon1E6, lat2E6, lon2E6);
+		if (estimate < EQUIRECTANGULAR_MAX_METERS) {
+			return estimate;
+		}
+		else if (estimate < HAVERSINE_MAX_METERS) {
+			return haversine(lat1E6, lon1E6, lat2E6, lon2E6);
+		}
+		return vincenty(lat1E6, lon1E6, lat2E6, lon2E6);
+	}
+
+	/**
+	 * Flat-earth distance, with the east-west scale taken at the segment's midpoint.
+	 * @return distance in meters
+	 */
+	public static double equirectangular(int lat1E6, int lon1E6, int lat2E6, int lon2E6) {
+		double cosLatitude = Math.cos(Math.toRadians((lat1E6 + (double) lat2E6) / 2e6));
+		double x = Math.toRadians(longitudeDeltaE6(lon1E6, lon2E6) / 1e6) * cosLatitude;
+		double y = Math.toRadians((lat2E6 - (double) lat1E6) / 1e6);
+		return Math.sqrt(x * x + y * y) * MEAN_EARTH_RADIUS_METERS;
+	}
+
+	/**
+	 * Same as equirectangular, for callers measuring many segments near one latitude - they can compute the
+	 * cosine once and skip the trig entirely.
+	 * @param cosLatitude cosine of a latitude near both points
+	 * @return distance in meters
+	 */
+	public static double equirectangular(int lat1E6, int lon1E6, int lat2E6, int lon2E6, double cosLatitude) {
+		double x = Math.toRadians(longitudeDeltaE6(lon1E6, lon2E6) / 1e6) * cosLatitude;
+		double y = Math.toRadians((lat2E6 - (double) lat1E6) / 1e6);
+		return Math.sqrt(x * x + y * y) * MEAN_EARTH_RADIUS_METERS;
+	}
+
+	/**
+	 * Great circle distance on a sphere.
+	 * @return distance in meters
+	 */
+	public static double haversine(int lat1E6, int lon1E6, int lat2E6, int lon2E6) {
+		double lat1 = Math.toRadians(lat1E6 / 1e6);
+		double lat2 = Math.toRadians(lat2E6 / 1e6);
+		double sinHalfDeltaLat = Math.sin((lat2 - lat1) / 2);
+		double sinHalfDeltaLon = Math.sin(Math.toRadians(longitudeDeltaE6(lon1E6, lon2E6) / 1e6) / 2);
+		double h = sinHalfDeltaLat * sinHalfDeltaLat + Math.cos(lat1) * Math.cos(lat2) * sinHalfDeltaLon * sinHalfDeltaLon;
+		return 2 * MEAN_EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+
+	/**
+	 * Vincenty's inverse formula on the WGS84 ellipsoid. Falls back to haversine in the rare case it doesn't
+	 * converge (nearly antipodal points - not something you trace by hand).
+	 * @return distance in meters
+	 */
+	public static double vincenty(int lat1E6, int lon1E6, int lat2E6, int lon2E6) {
+		double L = Math.toRadians(longitudeDeltaE6(lon1E6, lon2E6) / 1e6);
+		double U1 = Math.atan((1 - WGS84_F) * Math.tan(Math.toRadians(lat1E6 / 1e6)));
+		double U2 = Math.atan((1 - WGS84_F) * Math.tan(Math.toRadians(lat2E6 / 1e6)));
+		double sinU1 = Math.sin(U1), cosU1 = Math.cos(U1);
+		double sinU2 = Math.sin(U2), cosU2 = Math.cos(U2);
+
+		double lambda = L;
+		double sinSigma, cosSigma, sigma, cosSqAlpha, cos2SigmaM;
+		int iterations = 0;
+		while (true) {
+			double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+			double t1 = cosU2 * sinLambda;
+			double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+			sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+			if (sinSigma == 0) {
+				return 0; // same point
+			}
+			cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+			sigma = Math.atan2(sinSigma, cosSigma);
+			double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+			cosSqAlpha = 1 - sinAlpha * sinAlpha;
+			cos2SigmaM = cosSqAlpha != 0 ? cosSigma - 2 * sinU1 * sinU2 / cosSqAlpha : 0; // 0 on the equator
+			double C = WGS84_F / 16 * cosSqAlpha * (4 + WGS84_F * (4 - 3 * cosSqAlpha));
+			double lambdaPrevious = lambda;
+			lambda = L + (1 - C) * WGS84_F * sinAlpha
+					* (sigma + C * sinSigma * (cos2SigmaM + C * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+			if (Math.abs(lambda - lambdaPrevious) < 1e-12) {
+				break;
+			}
+			if (++iterations >= VINCENTY_MAX_ITERATIONS) {
+				return haversine(lat1E6, lon1E6, lat2E6, lon2E6);
+			}
+		}
+
+		double uSq = cosSqAlpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+		double A = 1 + uSq / 16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+		double B = uSq / 1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+		double deltaSigma = B * sinSigma * (cos2SigmaM + B / 4 * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)
+				- B / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+		return WGS84_B * A * (sigma - deltaSigma);
+	}
+
+	/**
+	 * Longitude difference from the first point to the second, taking the short way across the date line.
+	 * @return difference in E6 degrees, between -180e6 and 180e6
+	 */
+	private static double longitudeDeltaE6(int lon1E6, int lon2E6) {
+		double delta = lon2E6 - (double) lon1E6;
+		if (delta > 180e6) {
+			delta -= 360e6;
+		}
+		else if (delta < -180e6) {
+			delta += 360e6;
+		}
+		return delta;
+	}
+}
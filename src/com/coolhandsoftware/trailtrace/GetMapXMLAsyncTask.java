@@ -1,10 +1,5 @@
 package com.coolhandsoftware.trailtrace;
 
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 
 import org.osmdroid.util.BoundingBoxE6;
@@ -12,6 +7,7 @@ import org.osmdroid.util.GeoPoint;
 
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.Process;
 import android.util.Log;
 
 public class GetMapXMLAsyncTask extends AsyncTask<MeasuredRoute, Void, ArrayList<GeoPoint>> {
@@ -20,6 +16,12 @@ public class GetMapXMLAsyncTask extends AsyncTask<MeasuredRoute, Void, ArrayList
 		public abstract void storeSnappedRoute(ArrayList<GeoPoint> route);
 	}
 	
+	/** snaps whose corridor covers more cache tiles than this are refused - too long a route to download **/
+	private static final int MAX_TILES_PER_SNAP = 64;
+	
+	/** most of the snap's Overpass queries in flight at once - prefetches share the same slots, see WayDownloader **/
+	private static final int MAX_CONCURRENT_QUERIES = 2;
+	
 	ISnappedRouteReceiver mReceiver;
 	Context mContext;
 	
@@ -33,84 +35,113 @@ public class GetMapXMLAsyncTask extends AsyncTask<MeasuredRoute, Void, ArrayList
 		// display loading bar or something
 	}
 	
-	@Override
-	protected ArrayList<GeoPoint> doInBackground(MeasuredRoute... params) {
-		// TODO
-		return null;
-	}
-	
-	@Override
-	protected void onPostExecute(ArrayList<GeoPoint> results) {
-		mReceiver.storeSnappedRoute(results);
-	}
-	
 	/**
-	 * Uses XMLPullParser to check XML from stream for OSM "ways", and "snap" the trace
-	 * to a way or ways if close enough to the trace.
-	 * 
-	 * @param trace Original path from the map
-	 * @param inStream Stream containing results from our XML map query
+	 * Gathers the ways in a corridor around the route - from the WayTileCache where it has them, downloading only
+	 * the cells it's missing - then indexes them and matches the route onto them. If the corridor lies in a
+	 * region with a ContractionHierarchy and all of its cells cached, the whole region's network is used instead,
+	 * so the hierarchy fits the graph - see snapInRegion.
+	 * @return the snapped route, or null if there were no ways to snap to
 	 */
-	private void parseXMLForWays(InputStream inStream) {
+	@Override
+	protected ArrayList<GeoPoint> doInBackground(MeasuredRoute... params) {
+		PackedTrace trace = params[0].mPoints;
 		
-	}
-	
-	private String buildUrlForQuery(BoundingBoxE6 bbox) {
+		CorridorQueryPlanner planner = new CorridorQueryPlanner(trace, CorridorQueryPlanner.CORRIDOR_METERS);
+		if (planner.getTileCount() > MAX_TILES_PER_SNAP) {
+			Log.d("MapXMLDownload", "Snap corridor covers " + planner.getTileCount() + " tiles, too big to download");
+			return null;
+		}
+		
+		BoundingBoxE6 corridor = planner.getCorridorBounds();
+		WayTileCache cache = WayTileCache.getInstance(mContext);
+		WaySet ways = new WaySet();
+		long[] missing = new long[planner.getTileCount()];
+		for (int t = 0; t < missing.length; ++t) {
+			missing[t] = planner.getCells(t) & ~cache.getCells(planner.getQuadkey(t));
+		}
+		String region = planner.getRegion();
+		boolean regionCached = region != null && (cache.hasHierarchy(region)
+				|| RegionGraphCache.getInstance().hasHierarchy(region, cache.getRegionVersion(region)));
+		for (int t = 0; t < missing.length && regionCached; ++t) {
+			regionCached = missing[t] == 0;
+		}
+		if (regionCached) {
+			return snapInRegion(trace, region, cache);
+		}
 		
-		// EXAMPLE FORMAT: "http://overpass-api.de/api/interpreter?data=(way(42.55,-71.49,42.59,-71.45)[highway];node(w));out skel;&"
-		// bounding box syntax is (south, west, north, east)
+		for (int t = 0; t < missing.length; ++t) {
+			if (missing[t] != planner.getCells(t) && !cache.load(planner.getQuadkey(t), corridor, ways)) {
+				missing[t] = planner.getCells(t); // dropped as unreadable since
+			}
+		}
+		// a snap superseded by a newer one stops at each expensive step rather than finishing for nothing
+		if (isCancelled()) {
+			return null;
+		}
+		new WayDownloader(mContext, MAX_CONCURRENT_QUERIES, Process.THREAD_PRIORITY_BACKGROUND)
+				.fetchAll(planner.planQueries(missing), cache, ways);
+		if (ways.size() == 0 || isCancelled()) {
+			return null;
+		}
 		
-		return null;
+		TrailGraph graph = new TrailGraph(ways.getNodeTable(), ways.getWays());
+		MapMatcher matcher = new MapMatcher(new WaySegmentIndex(ways.getNodeTable(), ways.getWays()), graph);
+		if (region != null) {
+			// building one takes too long to wait for - this snap routes without, a later one in the region won't.
+			// The builder skips regions too small to need one.
+			HierarchyBuilder.getInstance(mContext).request(region);
+		}
+		if (isCancelled()) {
+			return null;
+		}
+		return toGeoPoints(matcher.match(trace));
 	}
 	
-	
-	
-	
-	
-	
 	/**
-	 * Opens an HttpUrlConnection to the given URL.
-	 * 
-	 * @param myUrl the complete URL to connect to
-	 * @return the InputStream from the GET query, or null on failure
+	 * Matches a route onto the whole network of the region its corridor lies in, with the region's hierarchy. The
+	 * network is kept in memory between snaps by RegionGraphCache, so only the first snap in a region, or the
+	 * first after its tiles change, reads the region's ways and builds the graph and index.
+	 * @param trace the route
+	 * @param region the region's quadkey
+	 * @param cache holds the region's ways and hierarchy
+	 * @return the snapped route, or null if there were no ways to snap to
 	 */
-	private InputStream downloadURL(String myUrl) {
-		
-		InputStream inStream = null;
-		
-		NetworkChecker networkChecker = new NetworkChecker();
-		if (networkChecker.hasNetworkConnectivity(mContext)) {
-			
-			try {
-				
-				
-				
-				
-				
-				
-				
-				
-				
-				
-				URL url = new URL(myUrl);
-				
-				HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-				
-		        conn.setReadTimeout(10000 /* milliseconds */);
-		        conn.setConnectTimeout(15000 /* milliseconds */);
-		        conn.setRequestMethod("GET");
-		        conn.setDoInput(true);
-		        conn.connect();
-		        int response = conn.getResponseCode();
-		        Log.d("MapXMLDownload", "Downloading map XML, the response is: " + response);
-		        inStream = conn.getInputStream();
+	private ArrayList<GeoPoint> snapInRegion(PackedTrace trace, String region, WayTileCache cache) {
+		RegionGraphCache graphs = RegionGraphCache.getInstance();
+		RegionGraphCache.RegionGraph network = graphs.take(region, cache);
+		try {
+			if (network.mHierarchy == null) {
+				// the saved one no longer fits - this snap routes without
+				HierarchyBuilder.getInstance(mContext).request(region);
 			}
-			catch (IOException e) {
-				inStream = null;
-				Log.d("MapXMLDownload", "Caught IOException while attempting to download map XML data");
+			if (network.mIndex.getSegmentCount() == 0 || isCancelled()) {
+				return null;
 			}
+			MapMatcher matcher = new MapMatcher(network.mIndex, network.mGraph);
+			if (network.mHierarchy != null) {
+				matcher.setHierarchy(network.mHierarchy);
+			}
+			return toGeoPoints(matcher.match(trace));
 		}
-		
-		return inStream;
-	} // end downloadUrl(str)
+		finally {
+			graphs.putBack(network);
+		}
+	}
+	
+	/**
+	 * @param snapped a snapped route
+	 * @return its points, for the receiver
+	 */
+	private static ArrayList<GeoPoint> toGeoPoints(PackedTrace snapped) {
+		ArrayList<GeoPoint> result = new ArrayList<GeoPoint>(snapped.getPointCount());
+		for (int i = 0; i < snapped.getPointCount(); ++i) {
+			result.add(snapped.getGeoPoint(i, null));
+		}
+		return result;
+	}
+	
+	@Override
+	protected void onPostExecute(ArrayList<GeoPoint> results) {
+		mReceiver.storeSnappedRoute(results);
+	}
 }
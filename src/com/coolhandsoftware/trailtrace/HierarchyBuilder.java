@@ -0,0 +1,118 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Builds the ContractionHierarchy of a WayTileCache region in the background, over all of the region's cached
+ * ways, and saves it in the cache. Building one takes a while on a big trail network, so snaps never wait for it:
+ * a snap uses the region's hierarchy if one is already saved, and otherwise asks for one here and routes without.
+ * Snaps ask whatever the size of their region - regions found too small to need one aren't read again until one
+ * of their tiles changes.
+ *
+ * Builds run one at a time on a single lowest-priority thread. This class is a singleton, like WayTileCache.
+ */
+public class HierarchyBuilder {
+
+	/** regions whose trail networks have at least this many junctions get a hierarchy **/
+	public static final int MIN_VERTICES = 20000;
+
+	/** used to find the cache **/
+	private final Context mContext;
+
+	/** runs builds one after another **/
+	private final ExecutorService mExecutor;
+
+	/** regions waiting for or being built, so asking twice doesn't build twice - guarded by this **/
+	private final HashSet<String> mQueued = new HashSet<String>();
+
+	/** regions too small for a hierarchy, to the WayTileCache region version they were found so at - guarded by this **/
+	private final HashMap<String, Integer> mTooSmall = new HashMap<String, Integer>();
+
+	/** for singleton pattern **/
+	private static HierarchyBuilder mSingleton = null;
+
+	/**
+	 * for singleton pattern
+	 * @param context any context - only its application context is kept
+	 * @return the builder
+	 */
+	public static synchronized HierarchyBuilder getInstance(Context context) {
+		if (mSingleton == null) {
+			mSingleton = new HierarchyBuilder(context.getApplicationContext());
+		}
+		return mSingleton;
+	}
+
+	private HierarchyBuilder(Context context) {
+		mContext = context;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+						runnable.run();
+					}
+				}, "HierarchyBuild");
+			}
+		});
+	}
+
+	/**
+	 * Queues a build of a region's hierarchy, unless one is already queued or the region's ways haven't changed
+	 * since it was found too small to need one.
+	 * @param region the region's quadkey, see WayTileCache.regionOf
+	 */
+	public synchronized void request(final String region) {
+		Integer tooSmallAt = mTooSmall.get(region);
+		if (tooSmallAt != null && tooSmallAt == WayTileCache.getInstance(mContext).getRegionVersion(region)) {
+			return;
+		}
+		if (!mQueued.add(region)) {
+			return;
+		}
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					build(region);
+				}
+				finally {
+					synchronized (HierarchyBuilder.this) {
+						mQueued.remove(region);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Builds and saves a region's hierarchy, if the region's network is big enough to need one. If a tile of the
+	 * region is stored meanwhile, the saved hierarchy won't fit the region's ways any more - the next snap finds
+	 * that out when it reads the hierarchy, and asks for another.
+	 */
+	private void build(String region) {
+		WayTileCache cache = WayTileCache.getInstance(mContext);
+		int version = cache.getRegionVersion(region);
+		WaySet ways = new WaySet();
+		cache.loadRegion(region, ways);
+		TrailGraph graph = new TrailGraph(ways.getNodeTable(), ways.getWays());
+		if (graph.getVertexCount() < MIN_VERTICES) {
+			synchronized (this) {
+				mTooSmall.put(region, version);
+			}
+			return;
+		}
+		Log.d("HierarchyBuilder", "Building the hierarchy of region " + region + ", " + graph.getVertexCount() + " junctions");
+		cache.putHierarchy(region, ContractionHierarchy.build(graph));
+	}
+}
@@ -0,0 +1,149 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of small int items (graph vertices) keyed by doubles, with decrease-key. The heap and each
+ * item's position in it are plain int arrays sized once for the largest item, so a shortest path search can
+ * push, pop and lower keys as often as it likes without allocating. clear() only touches the items still in the
+ * heap, so a search that stopped early doesn't pay for the whole graph.
+ */
+public class IndexedMinHeap {
+
+	/** items in heap order **/
+	private final int[] mItems;
+
+	/** key of each heap slot, parallel to mItems **/
+	private final double[] mKeys;
+
+	/** slot of each item in mItems, -1 if it isn't in the heap **/
+	private final int[] mPositions;
+
+	/** number of items in the heap **/
+	private int mSize = 0;
+
+	/**
+	 * @param capacity items are 0 to capacity - 1
+	 */
+	public IndexedMinHeap(int capacity) {
+		mItems = new int[capacity];
+		mKeys = new double[capacity];
+		mPositions = new int[capacity];
+		Arrays.fill(mPositions, -1);
+	}
+
+	/**
+	 * @return true if the heap is empty
+	 */
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * @param item an item
+	 * @return true if the item is in the heap
+	 */
+	public boolean contains(int item) {
+		return mPositions[item] >= 0;
+	}
+
+	/**
+	 * Adds an item, or lowers its key if it's already in the heap with a bigger one.
+	 * @param item the item
+	 * @param key its key
+	 */
+	public void push(int item, double key) {
+		int slot = mPositions[item];
+		if (slot < 0) {
+			slot = mSize++;
+		}
+		else if (key >= mKeys[slot]) {
+			return;
+		}
+		mItems[slot] = item;
+		mKeys[slot] = key;
+		mPositions[item] = slot;
+		siftUp(slot);
+	}
+
+	/**
+	 * @return the smallest key in the heap - don't call on an empty heap
+	 */
+	public double peekKey() {
+		return mKeys[0];
+	}
+
+	/**
+	 * Removes the item with the smallest key.
+	 * @return the item - don't call on an empty heap
+	 */
+	public int pop() {
+		int top = mItems[0];
+		mPositions[top] = -1;
+		--mSize;
+		if (mSize > 0) {
+			mItems[0] = mItems[mSize];
+			mKeys[0] = mKeys[mSize];
+			mPositions[mItems[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	/**
+	 * Empties the heap.
+	 */
+	public void clear() {
+		for (int slot = 0; slot < mSize; ++slot) {
+			mPositions[mItems[slot]] = -1;
+		}
+		mSize = 0;
+	}
+
+	private void siftUp(int slot) {
+		int item = mItems[slot];
+		double key = mKeys[slot];
+		while (slot > 0) {
+			int parent = (slot - 1) >>> 1;
+			if (mKeys[parent] <= key) {
+				break;
+			}
+			move(parent, slot);
+			slot = parent;
+		}
+		mItems[slot] = item;
+		mKeys[slot] = key;
+		mPositions[item] = slot;
+	}
+
+	private void siftDown(int slot) {
+		int item = mItems[slot];
+		double key = mKeys[slot];
+		while (true) {
+			int child = 2 * slot + 1;
+			if (child >= mSize) {
+				break;
+			}
+			if (child + 1 < mSize && mKeys[child + 1] < mKeys[child]) {
+				++child;
+			}
+			if (key <= mKeys[child]) {
+				break;
+			}
+			move(child, slot);
+			slot = child;
+		}
+		mItems[slot] = item;
+		mKeys[slot] = key;
+		mPositions[item] = slot;
+	}
+
+	/**
+	 * Copies the entry in one slot to another, keeping its position up to date.
+	 */
+	private void move(int from, int to) {
+		mItems[to] = mItems[from];
+		mKeys[to] = mKeys[from];
+		mPositions[mItems[to]] = to;
+	}
+}
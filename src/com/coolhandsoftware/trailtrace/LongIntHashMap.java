@@ -0,0 +1,158 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from long keys to int values, made for turning 64-bit OSM ids into small indices without boxing.
+ * Keys and values sit in two parallel primitive arrays (open addressing, linear probing), so a lookup never
+ * allocates and an entry costs 12 bytes per slot instead of a HashMap's boxed Long, Integer and entry object.
+ *
+ * The capacity is always a power of two, so a mask replaces the modulo, and it doubles whenever the table
+ * would get more than MAX_LOAD full. Entries can't be removed - nothing that uses this needs to.
+ */
+public class LongIntHashMap {
+
+	/** the table grows before it gets fuller than this **/
+	private static final float MAX_LOAD = 0.75f;
+
+	/** marks an empty slot - the zero key itself is stored off to the side **/
+	private static final long EMPTY_KEY = 0;
+
+	/** keys of each slot, EMPTY_KEY if the slot is free **/
+	private long[] mKeys;
+
+	/** values of each slot **/
+	private int[] mValues;
+
+	/** capacity - 1 **/
+	private int mMask;
+
+	/** number of entries, not counting the zero key **/
+	private int mSize = 0;
+
+	/** size at which the table grows **/
+	private int mResizeAt;
+
+	/** true if the zero key has been put **/
+	private boolean mHasZeroKey = false;
+
+	/** value of the zero key **/
+	private int mZeroKeyValue;
+
+	/**
+	 * @param expectedSize number of entries to make room for up front
+	 */
+	public LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / MAX_LOAD), 8) - 1) << 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * @param key the key
+	 * @param missingValue what to return if the key isn't in the map
+	 * @return the key's value, or missingValue
+	 */
+	public int get(long key, int missingValue) {
+		if (key == EMPTY_KEY) {
+			return mHasZeroKey ? mZeroKeyValue : missingValue;
+		}
+		int slot = hash(key) & mMask;
+		while (true) {
+			long slotKey = mKeys[slot];
+			if (slotKey == key) {
+				return mValues[slot];
+			}
+			if (slotKey == EMPTY_KEY) {
+				return missingValue;
+			}
+			slot = (slot + 1) & mMask;
+		}
+	}
+
+	/**
+	 * Adds a key or changes its value.
+	 * @param key the key
+	 * @param value the key's new value
+	 */
+	public void put(long key, int value) {
+		if (key == EMPTY_KEY) {
+			mHasZeroKey = true;
+			mZeroKeyValue = value;
+			return;
+		}
+		int slot = hash(key) & mMask;
+		while (true) {
+			long slotKey = mKeys[slot];
+			if (slotKey == key) {
+				mValues[slot] = value;
+				return;
+			}
+			if (slotKey == EMPTY_KEY) {
+				mKeys[slot] = key;
+				mValues[slot] = value;
+				if (++mSize >= mResizeAt) {
+					grow();
+				}
+				return;
+			}
+			slot = (slot + 1) & mMask;
+		}
+	}
+
+	/**
+	 * @return number of entries in the map
+	 */
+	public int size() {
+		return mSize + (mHasZeroKey ? 1 : 0);
+	}
+
+	/**
+	 * Empties the map, keeping its arrays.
+	 */
+	public void clear() {
+		Arrays.fill(mKeys, EMPTY_KEY);
+		mSize = 0;
+		mHasZeroKey = false;
+	}
+
+	/**
+	 * Doubles the capacity and puts every entry back in.
+	 */
+	private void grow() {
+		long[] oldKeys = mKeys;
+		int[] oldValues = mValues;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; ++i) {
+			long key = oldKeys[i];
+			if (key != EMPTY_KEY) {
+				int slot = hash(key) & mMask;
+				while (mKeys[slot] != EMPTY_KEY) {
+					slot = (slot + 1) & mMask;
+				}
+				mKeys[slot] = key;
+				mValues[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * @param capacity number of slots, a power of two
+	 */
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		mValues = new int[capacity];
+		mMask = capacity - 1;
+		mResizeAt = (int) (capacity * MAX_LOAD);
+	}
+
+	/**
+	 * Scrambles a key so ids that are close together (as OSM ids in one area tend to be) don't end up in one
+	 * long run of neighbouring slots.
+	 * @param key the key
+	 * @return the scrambled key, to be masked down to a slot
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
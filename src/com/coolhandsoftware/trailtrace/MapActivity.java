@@ -1,6 +1,6 @@
 package com.coolhandsoftware.trailtrace;
 
-import java.util.ArrayList;
+import java.io.File;
 
 import org.osmdroid.api.IGeoPoint;
 import org.osmdroid.util.GeoPoint;
@@ -14,7 +14,8 @@ import android.app.SearchManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Point;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -39,9 +40,11 @@ import com.coolhandsoftware.topogen.R;
  *
  */
 public class MapActivity extends Activity implements RouteDrawView.IRouteDrawReceiver, 
+														MapTraceCoordinateManager.IRouteLengthReceiver,
 														NoNetworkDialogFragment.INoNetworkDialogListener, 
 														View.OnLayoutChangeListener, // used to delay drawing to map until it is laid out 
-														SnappablePolyline.IPolylineDoubleTapReceiver 
+														SnappablePolyline.IPolylineDoubleTapReceiver,
+														PbfImportAsyncTask.IPbfImportReceiver
 														{
 
 	/** convenience reference for class functions after onCreate **/
@@ -123,6 +126,11 @@ public class MapActivity extends Activity implements RouteDrawView.IRouteDrawRec
         mMapFragment.setZoomLevel(MapTraceCoordinateManager.getInstance().getZoomLevel());
                 
         checkIntentForCoordinatesOrFailQuery();
+        checkIntentForExtract();
+        
+        // keep the distance readout on the drawing screen current while the user traces
+        MapTraceCoordinateManager.getInstance().setRouteLengthReceiver(this);
+        mRouteDrawFragment.showLiveDistance(MapTraceCoordinateManager.getInstance().getRouteLengthInMiles());
         
         if (MapTraceCoordinateManager.getInstance().isRouteDrawOpen() == true) {
         	scheduleRouteDrawRefreshOnMapViewLaidOut();
@@ -158,6 +166,9 @@ public class MapActivity extends Activity implements RouteDrawView.IRouteDrawRec
     	
     	MapTraceCoordinateManager.getInstance().storeCurrentMapCenter((GeoPoint) mMapFragment.getCurrentMapCenter()); 
     	MapTraceCoordinateManager.getInstance().storeZoomLevel(mMapFragment.getZoomLevel());
+    	
+    	// the manager outlives us, so don't let it hold on to this activity
+    	MapTraceCoordinateManager.getInstance().setRouteLengthReceiver(null);
     }
     
     /**
@@ -196,6 +207,40 @@ public class MapActivity extends Activity implements RouteDrawView.IRouteDrawRec
     	super.startActivity(intent);
     }
     
+	/**
+	 * Checks current intent for an OSM .pbf extract to open, and imports its trails into the way cache so snapping
+	 * works offline there.
+	 */
+	private void checkIntentForExtract() {
+		Intent intent = getIntent();
+		Uri data = intent.getData();
+		if (!Intent.ACTION_VIEW.equals(intent.getAction()) || data == null || data.getPath() == null
+				|| !data.getPath().endsWith(".pbf")) {
+			return;
+		}
+		
+		File file = new File(data.getPath());
+		intent.setAction(null); // so coming back to the activity doesn't import it again
+		Toast.makeText(this, "Importing trails from " + file.getName(), Toast.LENGTH_SHORT).show();
+		new PbfImportAsyncTask(this, this).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, file);
+	}
+	
+	/**
+	 * Tells the user how the extract import went.
+	 * @see com.coolhandsoftware.trailtrace.PbfImportAsyncTask.IPbfImportReceiver#onPbfImported(int)
+	 */
+	public void onPbfImported(int tileCount) {
+		if (tileCount < 0) {
+			Toast.makeText(this, "Couldn't import trails from that file", Toast.LENGTH_LONG).show();
+		}
+		else if (tileCount == 0) {
+			Toast.makeText(this, "No trails found in that file", Toast.LENGTH_LONG).show();
+		}
+		else {
+			Toast.makeText(this, "Trails imported - snapping now works offline there", Toast.LENGTH_LONG).show();
+		}
+	}
+	
 	/**
 	 * Refreshes user-drawn trace from most recently stored set of raw user-inputted coordinates.
 	 */
@@ -203,7 +248,7 @@ public class MapActivity extends Activity implements RouteDrawView.IRouteDrawRec
         if (MapTraceCoordinateManager.getInstance().hasStoredTouchPoints()) {
         	// get them, and send them to the RouteDrawFragment for drawing
         	Projection projection = mMapFragment.getCurrentProjection();
-          	ArrayList<ArrayList<Point>> storedLineSegments = MapTraceCoordinateManager.getInstance().getStoredTouchPoints(projection);
+          	PixelTrace storedLineSegments = MapTraceCoordinateManager.getInstance().getStoredTouchPoints(projection);
         	mRouteDrawFragment.drawRouteFromPixels(storedLineSegments);
         }    	
     }
@@ -327,11 +372,19 @@ public class MapActivity extends Activity implements RouteDrawView.IRouteDrawRec
     		// erase the blue line on the map, but don't forget the points - we need them to redraw the route trace
     		refreshRouteDrawTrace();
     		mMapFragment.eraseTracedRoute();
+    		
+    		// start fetching ways for the area being drawn over, so snapping doesn't have to wait for them
+    		WayPrefetcher prefetcher = WayPrefetcher.getInstance(this);
+    		MapTraceCoordinateManager.getInstance().setWayPrefetcher(prefetcher);
+    		prefetcher.start(mMapFragment.getVisibleBounds());
     	}
     	else {
     		fm.beginTransaction().hide(mRouteDrawFragment).setTransition(FragmentTransaction.TRANSIT_FRAGMENT_FADE).commit();
     		MenuItem drawMenuItem = mMenu.findItem(R.id.action_traceroute); 
     		drawMenuItem.setIcon(R.drawable.ic_menu_edit_disabled); // set icon to closed one
+    		
+    		MapTraceCoordinateManager.getInstance().setWayPrefetcher(null);
+    		WayPrefetcher.getInstance(this).stop();
     	}
     }
     
@@ -342,11 +395,27 @@ public class MapActivity extends Activity implements RouteDrawView.IRouteDrawRec
     }
         
     /**
-     * Pass coordinates to mDrawnPathManager.
-     * @see com.coolhandsoftware.trailtrace.IRouteDrawReceiver#storeXyCoordinates(java.util.ArrayList)
+     * Pass one MotionEvent's worth of coordinates to the MapTraceCoordinateManager in a single call.
+     * @see com.coolhandsoftware.trailtrace.RouteDrawView.IRouteDrawReceiver#storePixelPoints(int[], int, boolean)
      */
-	public void storePixelPoint(Point coordinate, boolean isNewSegment) {
-		MapTraceCoordinateManager.getInstance().storeTouchPoint(coordinate, isNewSegment, mMapFragment.getCurrentProjection());
+	public void storePixelPoints(int[] coordinates, int count, boolean isNewSegment) {
+		MapTraceCoordinateManager.getInstance().storeTouchPoints(coordinates, count, isNewSegment, mMapFragment.getCurrentProjection());
+	}
+	
+	/**
+	 * Tells the MapTraceCoordinateManager the stroke is over, so it can simplify it.
+	 * @see com.coolhandsoftware.trailtrace.RouteDrawView.IRouteDrawReceiver#finishPixelStroke()
+	 */
+	public void finishPixelStroke() {
+		MapTraceCoordinateManager.getInstance().finishTouchStroke();
+	}
+	
+	/**
+	 * Passes the trace's current length on to the drawing screen's readout.
+	 * @see com.coolhandsoftware.trailtrace.MapTraceCoordinateManager.IRouteLengthReceiver#onRouteLengthChanged(float)
+	 */
+	public void onRouteLengthChanged(float miles) {
+		mRouteDrawFragment.showLiveDistance(miles);
 	}
 	
 	/**
@@ -370,7 +439,7 @@ public class MapActivity extends Activity implements RouteDrawView.IRouteDrawRec
 		Projection projection = mMapFragment.getCurrentProjection();
 		MeasuredRoute route = MapTraceCoordinateManager.getInstance().getMeasuredPoints(projection);
 	
-		if (route.mPoints.size() > 0 && route.mPoints.get(0).size() > 0) {
+		if (route.mPoints.getPointCount() > 0) {
 			mMapFragment.drawRoute(route);
 			toggleRouteDrawFragmentVisibility();
 		}
@@ -382,7 +451,7 @@ public class MapActivity extends Activity implements RouteDrawView.IRouteDrawRec
 	 */
 	public void onPolylineDoubletapped() {
 		if (MapTraceCoordinateManager.getInstance().hasStoredTouchPoints()) {
-			MapTraceCoordinateManager.getInstance().snapTraceToWays(mMapFragment.getCurrentProjection().getBoundingBox(), this, this);
+			MapTraceCoordinateManager.getInstance().snapTraceToWays(this, this);
 		}
 	}
 }
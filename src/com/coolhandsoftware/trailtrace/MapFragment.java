@@ -8,8 +8,10 @@ import java.util.ArrayList;
 import org.osmdroid.ResourceProxy;
 import org.osmdroid.api.IGeoPoint;
 import org.osmdroid.bonuspack.overlays.BasicInfoWindow;
+import org.osmdroid.bonuspack.overlays.Marker;
 import org.osmdroid.tileprovider.tilesource.ITileSource;
 import org.osmdroid.tileprovider.tilesource.XYTileSource;
+import org.osmdroid.util.BoundingBoxE6;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.util.ResourceProxyImpl;
 import org.osmdroid.views.MapView;
@@ -51,6 +53,12 @@ public class MapFragment extends Fragment {
 	/** this is the object which is the user's measured trace, and is drawn on top of the map **/
 	private SnappablePolyline mPolyline;
 	private SnappablePolyline.IPolylineDoubleTapReceiver mPolylineListener;
+	
+	/** one marker per whole mile along the measured route **/
+	private ArrayList<Marker> mMileMarkers = new ArrayList<Marker>();
+	
+	/** routes longer than this many miles don't get mile markers - they'd bury the map **/
+	private static final int MAX_MILE_MARKERS = 100;
 		
 	/**
 	 * Sets up and returns mMapView with its overlays. Sets parent activity as myMapView's 
@@ -125,6 +133,8 @@ public class MapFragment extends Fragment {
 			mPolyline.hideInfoWindow();
 		}
 		myMapView.getOverlays().remove(mPolyline);
+		myMapView.getOverlays().removeAll(mMileMarkers);
+		mMileMarkers.clear();
 	}
 	
 	/**
@@ -155,6 +165,13 @@ public class MapFragment extends Fragment {
 		}
 	}
 	
+	/**
+	 * @return the area of the map currently on screen
+	 */
+	public BoundingBoxE6 getVisibleBounds() {
+		return myMapView.getBoundingBox();
+	}
+	
 	/**
 	 * Remember not to hold onto this projection - it goes out of date as soon as the map zoom level changes. 
 	 * @return an up-to-date projection for converting to/from pixels and lat/lon.
@@ -170,8 +187,9 @@ public class MapFragment extends Fragment {
 	public void drawRoute(MeasuredRoute route) {
 		eraseTracedRoute();
 		mPolyline = new SnappablePolyline(getActivity(), mPolylineListener);
-		ArrayList<GeoPoint> geoPointsList = combineGeoPointArrays(route.mPoints);
-		mPolyline.setPoints(geoPointsList);
+		RouteLodPyramid pyramid = new RouteLodPyramid(route.mPoints);
+		mPolyline.setLodPyramid(pyramid, myMapView.getZoomLevel());
+		ArrayList<GeoPoint> geoPointsList = pyramid.getFullResolution();
 		mPolyline.getPaint().setColor(Color.BLUE);
 		
 		// multiplies by constant factor to compensate for smoothness of trace vs jaggedness of average trail
@@ -185,22 +203,25 @@ public class MapFragment extends Fragment {
 		mPolyline.setTitle("Distance");
 		mPolyline.setSnippet(df.format(route.mLength) + " miles");
 		myMapView.getOverlays().add(mPolyline);
+		addMileMarkers(route);
 		mPolyline.getInfoWindow().open(mPolyline, geoPointsList.get(geoPointsList.size()-1), 0, 0);
 	}
 	
 	/**
-	 * Helper function to combine an array of arrays of GeoPoints to a single continuous array of GeoPoints.
-	 * @param points array of arrays
-	 * @return one array
+	 * Puts a marker at every whole mile along the route. Each one is a binary search into the route's distance
+	 * index, so this doesn't rescan the route per marker.
+	 * @param route the measured route
 	 */
-	private ArrayList<GeoPoint> combineGeoPointArrays(ArrayList<ArrayList<GeoPoint>> points) {
-		ArrayList<GeoPoint> result = new ArrayList<GeoPoint>();
-		
-		for (int x = 0; x < points.size(); ++x) {
-			result.addAll(points.get(x));
+	private void addMileMarkers(MeasuredRoute route) {
+		int miles = (int) Math.min(Math.floor(route.mLength), MAX_MILE_MARKERS);
+		for (int mile = 1; mile <= miles; ++mile) {
+			Marker marker = new Marker(myMapView);
+			marker.setPosition(route.pointAtDistance(mile * MeasuredRoute.METERS_PER_MILE, null));
+			marker.setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_BOTTOM);
+			marker.setTitle("Mile " + mile);
+			myMapView.getOverlays().add(marker);
+			mMileMarkers.add(marker);
 		}
-		
-		return result;
 	}
 	
 	/**
@@ -0,0 +1,276 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+
+/**
+ * Snaps a hand-drawn trace onto the trails around it with a hidden Markov model, in the style of Newson and
+ * Krumm's GPS map matching. Every trace point gets up to CANDIDATES_PER_POINT candidate spots on nearby way
+ * segments (the hidden states), and Viterbi picks the sequence of candidates that best explains the trace:
+ *
+ * - emission: how likely the point was drawn that far from the candidate - Gaussian in the distance
+ * - transition: how likely the trail gets from one candidate to the next - exponential in how much the distance
+ *   along the trails (found with a TrailRouter when the candidates are on different ways) differs from the
+ *   straight line between the two trace points, so detours are punished and hopping between trails that don't
+ *   connect nearby is punished harder
+ *
+ * Scores are kept as log probabilities. With the candidates per point capped, the work is linear in the number
+ * of trace points: at most CANDIDATES_PER_POINT squared transitions per point.
+ *
+ * A trace point with no candidate in range breaks the chain - it's kept where it was drawn, and matching starts
+ * over after it.
+ */
+public class MapMatcher {
+
+	/** the most candidates kept per trace point **/
+	private static final int CANDIDATES_PER_POINT = 5;
+
+	/** candidates farther than this from their trace point are ignored, meters **/
+	private static final double SEARCH_RADIUS_METERS = 60;
+
+	/** standard deviation of how far a traced point lands from its trail, meters - a fingertip is not a GPS **/
+	private static final double SIGMA_METERS = 12;
+
+	/** scale of the transition penalty, meters of detour per factor e of probability **/
+	private static final double BETA_METERS = 25;
+
+	/** along-trail distance charged, on top of the straight line, for moving between trails that don't connect -
+	 * also the longest detour the router looks for **/
+	private static final double DISCONNECTED_PENALTY_METERS = 200;
+
+	/** the index candidates are looked up in **/
+	private final WaySegmentIndex mIndex;
+
+	/** routes between candidates on different ways, over a graph of the same ways **/
+	private final TrailRouter mRouter;
+
+	/** reused for candidate queries **/
+	private final SegmentHits mHits = new SegmentHits();
+
+	/** candidates of every trace point - point i's live in slots i*CANDIDATES_PER_POINT onward **/
+	private int[] mCandidateCounts = new int[0];
+	private int[] mCandidateSegments = new int[0];
+	private double[] mCandidateFractions = new double[0];
+	private int[] mCandidateLatE6 = new int[0];
+	private int[] mCandidateLonE6 = new int[0];
+
+	/** best log probability of reaching each candidate **/
+	private double[] mScores = new double[0];
+
+	/** slot of the best previous candidate for each candidate, or -1 at the start of a chain **/
+	private int[] mBackPointers = new int[0];
+
+	/**
+	 * @param index the ways to match onto
+	 * @param graph the same ways, as a trail graph
+	 */
+	public MapMatcher(WaySegmentIndex index, TrailGraph graph) {
+		mIndex = index;
+		mRouter = new TrailRouter(graph);
+	}
+
+	/**
+	 * Lets the router answer with a contraction hierarchy - worth it when the ways cover a big network.
+	 * @param hierarchy a hierarchy of the graph the matcher was made with, or null for plain A*
+	 */
+	public void setHierarchy(ContractionHierarchy hierarchy) {
+		mRouter.setHierarchy(hierarchy);
+	}
+
+	/**
+	 * Matches a trace onto the index's ways. The trace's segments are treated as one continuous route.
+	 * @param trace the points as drawn - only read
+	 * @return the matched route, as one segment that follows the trails' own nodes between matched points
+	 */
+	public PackedTrace match(PackedTrace trace) {
+		int pointCount = trace.getPointCount();
+		ensureCapacity(pointCount);
+
+		// forward pass
+		for (int i = 0; i < pointCount; ++i) {
+			int latE6 = trace.getLatitudeE6(i);
+			int lonE6 = trace.getLongitudeE6(i);
+			int count = mIndex.findNearest(latE6, lonE6, CANDIDATES_PER_POINT, SEARCH_RADIUS_METERS, mHits);
+			mCandidateCounts[i] = count;
+			int base = i * CANDIDATES_PER_POINT;
+			boolean chainStarts = i == 0 || mCandidateCounts[i - 1] == 0;
+			double straight = chainStarts ? 0 : GeoDistance.equirectangular(trace.getLatitudeE6(i - 1),
+					trace.getLongitudeE6(i - 1), latE6, lonE6);
+
+			for (int c = 0; c < count; ++c) {
+				int slot = base + c;
+				mCandidateSegments[slot] = mHits.getSegment(c);
+				mCandidateFractions[slot] = mHits.getFraction(c);
+				mCandidateLatE6[slot] = mHits.getFootLatitudeE6(c);
+				mCandidateLonE6[slot] = mHits.getFootLongitudeE6(c);
+				double distance = mHits.getDistance(c) / SIGMA_METERS;
+				double emission = -0.5 * distance * distance;
+
+				if (chainStarts) {
+					mScores[slot] = emission;
+					mBackPointers[slot] = -1;
+					continue;
+				}
+
+				double best = Double.NEGATIVE_INFINITY;
+				int bestSlot = -1;
+				int previousBase = base - CANDIDATES_PER_POINT;
+				for (int p = 0; p < mCandidateCounts[i - 1]; ++p) {
+					int previousSlot = previousBase + p;
+					double route = routeDistance(previousSlot, slot);
+					double score = mScores[previousSlot] - Math.abs(route - straight) / BETA_METERS;
+					if (score > best) {
+						best = score;
+						bestSlot = previousSlot;
+					}
+				}
+				mScores[slot] = best + emission;
+				mBackPointers[slot] = bestSlot;
+			}
+		}
+
+		// backtrack from the best candidate at the end of each chain, marking the winners
+		int[] chosen = new int[pointCount];
+		Arrays.fill(chosen, -1);
+		for (int i = pointCount - 1; i >= 0; --i) {
+			if (mCandidateCounts[i] == 0 || chosen[i] >= 0) {
+				continue;
+			}
+			// i ends a chain (nothing after it was matched from it) - start at its best candidate
+			int base = i * CANDIDATES_PER_POINT;
+			int slot = base;
+			for (int c = 1; c < mCandidateCounts[i]; ++c) {
+				if (mScores[base + c] > mScores[slot]) {
+					slot = base + c;
+				}
+			}
+			for (int j = i; slot >= 0; --j) {
+				chosen[j] = slot;
+				slot = mBackPointers[slot];
+			}
+		}
+
+		// build the route, following each way's nodes between consecutive matches on it
+		PackedTrace result = new PackedTrace();
+		int previousSlot = -1;
+		for (int i = 0; i < pointCount; ++i) {
+			int slot = chosen[i];
+			if (slot < 0) {
+				result.addPoint(trace.getLatitudeE6(i), trace.getLongitudeE6(i));
+				previousSlot = -1;
+				continue;
+			}
+			if (previousSlot >= 0) {
+				addNodesBetween(result, previousSlot, slot);
+			}
+			addIfNew(result, mCandidateLatE6[slot], mCandidateLonE6[slot]);
+			previousSlot = slot;
+		}
+		return result;
+	}
+
+	/**
+	 * Estimates how far it is along the trails from one candidate to another.
+	 * @param fromSlot the earlier candidate
+	 * @param toSlot the later candidate
+	 * @return distance in meters
+	 */
+	private double routeDistance(int fromSlot, int toSlot) {
+		int fromSegment = mCandidateSegments[fromSlot];
+		int toSegment = mCandidateSegments[toSlot];
+		if (mIndex.getSegmentRun(fromSegment) == mIndex.getSegmentRun(toSegment)) {
+			return Math.abs(wayPosition(toSlot) - wayPosition(fromSlot));
+		}
+
+		// different ways, or across a hole in one - route between them, giving up once the route is worse than not being connected
+		double straight = GeoDistance.equirectangular(mCandidateLatE6[fromSlot], mCandidateLonE6[fromSlot],
+				mCandidateLatE6[toSlot], mCandidateLonE6[toSlot]);
+		return Math.min(routeBetween(fromSlot, toSlot, straight + DISCONNECTED_PENALTY_METERS),
+				straight + DISCONNECTED_PENALTY_METERS);
+	}
+
+	/**
+	 * Routes along the trails from one candidate to another.
+	 * @param maxMeters longest route to look for
+	 * @return the route's length, meters, or Double.POSITIVE_INFINITY if there's none within maxMeters
+	 */
+	private double routeBetween(int fromSlot, int toSlot, double maxMeters) {
+		int fromSegment = mCandidateSegments[fromSlot];
+		int toSegment = mCandidateSegments[toSlot];
+		return mRouter.route(mIndex.getSegmentStartNode(fromSegment), mIndex.getSegmentEndNode(fromSegment),
+				mCandidateFractions[fromSlot], mIndex.getSegmentStartNode(toSegment), mIndex.getSegmentEndNode(toSegment),
+				mCandidateFractions[toSlot], maxMeters);
+	}
+
+	/**
+	 * @param slot a candidate
+	 * @return distance along the candidate's run of way from the run's first node to the candidate, meters
+	 */
+	private double wayPosition(int slot) {
+		int segment = mCandidateSegments[slot];
+		return mIndex.getSegmentOffset(segment) + mCandidateFractions[slot] * mIndex.getSegmentLength(segment);
+	}
+
+	/**
+	 * Adds the way nodes passed going from one candidate to the next - walking the way if both are on the same
+	 * run of it, otherwise along the route between them, so the gap is filled along real trails.
+	 */
+	private void addNodesBetween(PackedTrace result, int fromSlot, int toSlot) {
+		int fromSegment = mCandidateSegments[fromSlot];
+		int toSegment = mCandidateSegments[toSlot];
+		if (mIndex.getSegmentRun(fromSegment) != mIndex.getSegmentRun(toSegment)) {
+			double straight = GeoDistance.equirectangular(mCandidateLatE6[fromSlot], mCandidateLonE6[fromSlot],
+					mCandidateLatE6[toSlot], mCandidateLonE6[toSlot]);
+			if (routeBetween(fromSlot, toSlot, straight + DISCONNECTED_PENALTY_METERS) != Double.POSITIVE_INFINITY) {
+				int count = mRouter.buildPath();
+				for (int i = 0; i < count; ++i) {
+					addNode(result, mRouter.getPathNode(i));
+				}
+			}
+			return;
+		}
+		// a run's segments have consecutive ids, so walking the ids walks the way
+		if (fromSegment < toSegment) {
+			for (int s = fromSegment + 1; s <= toSegment; ++s) {
+				addNode(result, mIndex.getSegmentStartNode(s));
+			}
+		}
+		else {
+			for (int s = fromSegment; s > toSegment; --s) {
+				addNode(result, mIndex.getSegmentStartNode(s));
+			}
+		}
+	}
+
+	private void addNode(PackedTrace result, int node) {
+		NodeTable nodes = mIndex.getNodeTable();
+		addIfNew(result, nodes.getLatitudeE6(node), nodes.getLongitudeE6(node));
+	}
+
+	/**
+	 * Adds a point unless it's the same as the last one - consecutive trace points often snap to the same spot.
+	 */
+	private void addIfNew(PackedTrace result, int latitudeE6, int longitudeE6) {
+		int last = result.getPointCount() - 1;
+		if (last >= 0 && result.getLatitudeE6(last) == latitudeE6 && result.getLongitudeE6(last) == longitudeE6) {
+			return;
+		}
+		result.addPoint(latitudeE6, longitudeE6);
+	}
+
+	/**
+	 * Makes room for the candidates of the given number of trace points.
+	 */
+	private void ensureCapacity(int pointCount) {
+		if (mCandidateCounts.length >= pointCount) {
+			return;
+		}
+		int slots = pointCount * CANDIDATES_PER_POINT;
+		mCandidateCounts = new int[pointCount];
+		mCandidateSegments = new int[slots];
+		mCandidateFractions = new double[slots];
+		mCandidateLatE6 = new int[slots];
+		mCandidateLonE6 = new int[slots];
+		mScores = new double[slots];
+		mBackPointers = new int[slots];
+	}
+}
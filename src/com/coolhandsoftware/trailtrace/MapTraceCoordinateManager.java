@@ -1,8 +1,8 @@
 package com.coolhandsoftware.trailtrace;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import org.osmdroid.util.BoundingBoxE6;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.Projection;
 
@@ -11,6 +11,8 @@ import android.content.Context;
 import android.graphics.Point;
 import android.location.Location;
 import android.location.LocationManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Pair;
 
 /**
@@ -21,10 +23,24 @@ import android.util.Pair;
  * This class is a singleton, so that its instance survives the activity lifecycle. To get the instance, you have
  * to call the static member function MapTraceCoordinateManager.getInstance(), similar to elsewhere in Android.
  * 
+ * Traced points are converted and committed by the TraceCapturePipeline's worker thread, so everything that
+ * touches the stored trace synchronizes on this object, and readers flush the pipeline before they look.
+ * 
  * @author David Cully (david.a.cully@gmail.com)
  *
  */
-public class MapTraceCoordinateManager implements GetMapXMLAsyncTask.ISnappedRouteReceiver {
+public class MapTraceCoordinateManager {
+
+	/**
+	 * Implemented by whoever wants to show the length of the trace while it's being drawn.
+	 */
+	public interface IRouteLengthReceiver {
+		/**
+		 * Called on the UI thread whenever stored points change the trace's length.
+		 * @param miles current length of the trace
+		 */
+		public abstract void onRouteLengthChanged(float miles);
+	}
 
 	/** whether the route draw fragment is on top or not (default is not) **/
 	private boolean routeDrawOpen = false;
@@ -35,8 +51,72 @@ public class MapTraceCoordinateManager implements GetMapXMLAsyncTask.ISnappedRou
 	/** last stored map center  **/
 	private GeoPoint mMapCenter = null;
 	
-	/** user-generated pixel coordinate pairs, stored as GeoPoints **/
-	private ArrayList<ArrayList<GeoPoint>> mTouchPoints = new ArrayList<ArrayList<GeoPoint>>();
+	/** user-generated pixel coordinate pairs, stored as E6 lat/lon columns **/
+	private PackedTrace mTouchPoints = new PackedTrace();
+	
+	/** reused for every projection call, so storing/converting points doesn't allocate a GeoPoint each time **/
+	private GeoPoint mScratchGeoPoint = new GeoPoint(0, 0);
+	
+	/** absolute world pixel x-coordinates of the stored points at WebMercator.MAX_ZOOM **/
+	private int[] mWorldX = new int[256];
+	
+	/** absolute world pixel y-coordinates of the stored points at WebMercator.MAX_ZOOM **/
+	private int[] mWorldY = new int[256];
+	
+	/** how many of the stored points have been projected into mWorldX/mWorldY so far **/
+	private int mWorldPointCount = 0;
+	
+	/** refilled by getStoredTouchPoints on every redraw **/
+	private PixelTrace mPixelTrace = new PixelTrace();
+	
+	/** reused to read the viewport's offset out of the projection **/
+	private Point mScratchPoint = new Point();
+	
+	/** thins out redundant samples before they are stored **/
+	private TraceDecimator mDecimator = new TraceDecimator();
+	
+	/** simplifies each segment once it's finished - only used with this object's lock held **/
+	private RouteSimplifier mSimplifier = new RouteSimplifier();
+	
+	/** finished segments are simplified with this tolerance, in screen pixels at the zoom they were traced at **/
+	private static final double STORAGE_TOLERANCE_PIXELS = 0.5;
+	
+	/** zoom level the most recently stored point was traced at **/
+	private int mLastTraceZoom = 0;
+	
+	/** distance along the trace to each stored point, meters, kept in step with mTouchPoints as points are
+	 * added, replaced, simplified or erased - the last entry is the trace's length. Jumps between segments
+	 * don't count, so a segment's first point shares its predecessor's distance. **/
+	private double[] mCumulativeMeters = new double[256];
+	
+	/** Kahan compensation left over after adding up to each entry of mCumulativeMeters - what the sum still owes
+	 * from rounding - so thousands of short legs add up without drifting, and a replaced leg picks up from the
+	 * right state **/
+	private double[] mCumulativeCompensation = new double[256];
+	
+	/** gets told about length changes, can be null **/
+	private IRouteLengthReceiver mRouteLengthReceiver = null;
+	
+	/** true while a length update is waiting to run on the UI thread, so batches don't pile up posts **/
+	private boolean mRouteLengthUpdatePosted = false;
+	
+	/** used to deliver length updates on the UI thread **/
+	private Handler mMainHandler = new Handler(Looper.getMainLooper());
+	
+	/** bumped on every change to mTouchPoints, so a snap can tell whether its result still fits the trace **/
+	private int mTraceVersion = 0;
+	
+	/** trace version the last segment was last simplified at, so a segment that hasn't changed isn't redone **/
+	private int mSimplifiedVersion = -1;
+	
+	/** runs snaps one at a time, for the latest trace version only **/
+	private SnapCoordinator mSnapCoordinator = new SnapCoordinator(this);
+	
+	/** told about every traced point while drawing is open, null otherwise **/
+	private volatile WayPrefetcher mWayPrefetcher = null;
+	
+	/** converts traced pixels to lat/lon off the UI thread and commits them back here **/
+	private TraceCapturePipeline mCapturePipeline = new TraceCapturePipeline(this);
 	
 	/** for singleton pattern **/
 	private static MapTraceCoordinateManager mSingleton = null;
@@ -55,48 +135,326 @@ public class MapTraceCoordinateManager implements GetMapXMLAsyncTask.ISnappedRou
     }
 	
 	/**
-	 * Stores this point as the next one in a continuous user-generated trace.
-	 * If end of segment, pass isEndOfSegment as true.
-	 * @param point point to be stored
-	 * @param isStartOfSegment flag to either store the point or delimit a segment
+	 * Queues a batch of points to be stored as the next ones in a continuous user-generated trace.
+	 * If the batch begins a new segment, pass isStartOfSegment as true. Called on the UI thread - the
+	 * conversion to lat/lon happens on the capture pipeline's worker, which then calls storeTouchPoint.
+	 * @param coordinates packed x,y pixel pairs, as delivered by RouteDrawView (only read, never kept)
+	 * @param count number of x,y pairs to store
+	 * @param isStartOfSegment true if the first pair should start a new segment
 	 * @param projection current map projection
 	 */
-	public void storeTouchPoint(Point point, boolean isStartOfSegment, Projection projection) {
+	public void storeTouchPoints(int[] coordinates, int count, boolean isStartOfSegment, Projection projection) {
+		mCapturePipeline.submit(coordinates, count, isStartOfSegment, projection);
+	}
+	
+	/**
+	 * Stores this point as the next one in a continuous user-generated trace, unless the TraceDecimator
+	 * finds it redundant at the zoom level it was traced at. Called from the capture pipeline's worker thread.
+	 * @param latitudeE6 latitude of the point, E6 format
+	 * @param longitudeE6 longitude of the point, E6 format
+	 * @param isStartOfSegment true if the point starts a new segment
+	 * @param zoom zoom level the point was traced at
+	 */
+	public synchronized void storeTouchPoint(int latitudeE6, int longitudeE6, boolean isStartOfSegment, int zoom) {
+		WayPrefetcher prefetcher = mWayPrefetcher;
+		if (prefetcher != null) {
+			prefetcher.onTracePoint(latitudeE6, longitudeE6);
+		}
 		
-		GeoPoint gPoint = (GeoPoint) projection.fromPixels(point.x, point.y);
 		if (isStartOfSegment) {
-			mTouchPoints.add(new ArrayList<GeoPoint>());
-			mTouchPoints.get(mTouchPoints.size()-1).add(gPoint);
+			simplifyLastSegment();
+			mLastTraceZoom = zoom;
+			mTouchPoints.startSegment();
+			mTouchPoints.addPoint(latitudeE6, longitudeE6);
+			startCumulativeMeters(mTouchPoints.getPointCount() - 1); // the jump from the last segment doesn't count
+			traceChanged();
+			return;
 		}
-		else {
-			mTouchPoints.get(mTouchPoints.size() - 1).add(gPoint);
+		
+		int last = mTouchPoints.getPointCount() - 1;
+		mLastTraceZoom = zoom;
+		
+		switch (mDecimator.classify(mTouchPoints, latitudeE6, longitudeE6, zoom)) {
+		case TraceDecimator.DROP:
+			break;
+		case TraceDecimator.REPLACE_LAST:
+			// swap the old last leg's length for the new one's
+			addCumulativeMeters(last, getDistanceInMeters(mTouchPoints.getLatitudeE6(last - 1),
+					mTouchPoints.getLongitudeE6(last - 1), latitudeE6, longitudeE6));
+			mTouchPoints.replaceLastPoint(latitudeE6, longitudeE6);
+			// the old last point's world pixels are stale now
+			mWorldPointCount = Math.min(mWorldPointCount, last);
+			traceChanged();
+			postRouteLengthUpdate();
+			break;
+		default:
+			if (last >= 0) {
+				addCumulativeMeters(last + 1, getDistanceInMeters(mTouchPoints.getLatitudeE6(last),
+						mTouchPoints.getLongitudeE6(last), latitudeE6, longitudeE6));
+			}
+			else {
+				startCumulativeMeters(0);
+			}
+			mTouchPoints.addPoint(latitudeE6, longitudeE6);
+			traceChanged();
+			postRouteLengthUpdate();
+			break;
 		}
 	}
 	
 	/**
-	 * Converts stored GeoPoints back into Points.
-	 * @return
+	 * Marks the end of the stroke whose points were just queued with storeTouchPoints, so its segment gets
+	 * simplified once they are stored. UI thread only.
 	 */
-	public ArrayList<ArrayList<Point>> getStoredTouchPoints(Projection projection) {
-		
-		ArrayList<ArrayList<Point>> result = new ArrayList<ArrayList<Point>>();
+	public void finishTouchStroke() {
+		mCapturePipeline.endSegment();
+	}
+	
+	/**
+	 * Simplifies the last segment, now that its stroke is over. Called from the capture pipeline's worker thread.
+	 */
+	public synchronized void finishSegment() {
+		simplifyLastSegment();
+	}
+	
+	/**
+	 * Sets who to tell about traced points, so ways can be fetched ahead of the stroke.
+	 * @param prefetcher the prefetcher, or null to stop telling it
+	 */
+	public void setWayPrefetcher(WayPrefetcher prefetcher) {
+		mWayPrefetcher = prefetcher;
+	}
+	
+	/**
+	 * Marks the stored trace as changed. Call with this object's lock held.
+	 */
+	private void traceChanged() {
+		++mTraceVersion;
+		mSnapCoordinator.onTraceChanged();
+	}
+	
+	/**
+	 * @return version of the stored trace, which changes whenever the trace does - includes any points still in
+	 * the capture pipeline, and the last segment's simplification, so a snap started from it isn't made stale by
+	 * getMeasuredPoints simplifying the segment afterwards
+	 */
+	public int getTraceVersion() {
+		mCapturePipeline.flush();
+		synchronized (this) {
+			simplifyLastSegment();
+			return mTraceVersion;
+		}
+	}
+	
+	/**
+	 * Runs the RouteSimplifier over the last segment, and fixes up the running length and world pixel cache to
+	 * match. The tolerance is under a pixel at the zoom the segment was traced at, so the stored shape doesn't
+	 * visibly change. Does nothing if the trace hasn't changed since the last run, so a finished segment is only
+	 * simplified once however many times it's asked for. Call with this object's lock held.
+	 */
+	private void simplifyLastSegment() {
+		if (mSimplifiedVersion == mTraceVersion) {
+			return;
+		}
+		mSimplifiedVersion = mTraceVersion;
+		int segment = mTouchPoints.getSegmentCount() - 1;
+		if (segment < 0) {
+			return;
+		}
+		int start = mTouchPoints.getSegmentStart(segment);
+		int end = mTouchPoints.getSegmentEnd(segment);
+		if (end - start < 3) {
+			return;
+		}
 		
-		for (int x = 0; x < mTouchPoints.size(); ++x) {
-			result.add(new ArrayList<Point>());
-			for (int y = 0; y < mTouchPoints.get(x).size(); ++y) {
-				Point point = projection.toPixels(mTouchPoints.get(x).get(y), null);
-				result.get(x).add(point);
+		double tolerance = STORAGE_TOLERANCE_PIXELS
+				* WebMercator.groundResolution(mTouchPoints.getLatitudeE6(start) / 1e6, mLastTraceZoom);
+		if (mSimplifier.simplifyLastSegment(mTouchPoints, tolerance) > 0) {
+			measureSegment(segment);
+			mWorldPointCount = Math.min(mWorldPointCount, start);
+			traceChanged();
+			mSimplifiedVersion = mTraceVersion;
+			postRouteLengthUpdate();
+		}
+	}
+	
+	/**
+	 * Rebuilds mCumulativeMeters over one segment, after its points changed wholesale. Only the segment is
+	 * walked - the ones before it are unchanged.
+	 * @param segment index of the segment
+	 */
+	private void measureSegment(int segment) {
+		int start = mTouchPoints.getSegmentStart(segment);
+		int end = mTouchPoints.getSegmentEnd(segment);
+		if (start >= end) {
+			return;
+		}
+		startCumulativeMeters(start);
+		for (int i = start + 1; i < end; ++i) {
+			addCumulativeMeters(i, getDistanceInMeters(mTouchPoints.getLatitudeE6(i - 1),
+					mTouchPoints.getLongitudeE6(i - 1), mTouchPoints.getLatitudeE6(i), mTouchPoints.getLongitudeE6(i)));
+		}
+	}
+	
+	/**
+	 * Gives the first point of a segment its predecessor's distance along the trace (0 for the very first
+	 * point), compensation and all.
+	 * @param index the point's index
+	 */
+	private void startCumulativeMeters(int index) {
+		ensureCumulativeCapacity(index);
+		mCumulativeMeters[index] = index > 0 ? mCumulativeMeters[index - 1] : 0;
+		mCumulativeCompensation[index] = index > 0 ? mCumulativeCompensation[index - 1] : 0;
+	}
+	
+	/**
+	 * Sets a point's distance along the trace to its predecessor's plus the leg between them, with Kahan
+	 * summation carried on from the predecessor's compensation.
+	 * @param index the point's index, at least 1
+	 * @param legMeters length of the leg from point index - 1
+	 */
+	private void addCumulativeMeters(int index, double legMeters) {
+		ensureCumulativeCapacity(index);
+		double sum = mCumulativeMeters[index - 1];
+		double corrected = legMeters - mCumulativeCompensation[index - 1];
+		double total = sum + corrected;
+		mCumulativeCompensation[index] = (total - sum) - corrected;
+		mCumulativeMeters[index] = total;
+	}
+	
+	/**
+	 * Grows mCumulativeMeters and mCumulativeCompensation to hold an index.
+	 */
+	private void ensureCumulativeCapacity(int index) {
+		if (mCumulativeMeters.length <= index) {
+			int capacity = Math.max(index + 1, mCumulativeMeters.length * 2);
+			mCumulativeMeters = Arrays.copyOf(mCumulativeMeters, capacity);
+			mCumulativeCompensation = Arrays.copyOf(mCumulativeCompensation, capacity);
+		}
+	}
+	
+	/**
+	 * Call with the lock held.
+	 * @return length of the stored trace in meters
+	 */
+	private double getRouteLengthInMeters() {
+		int count = mTouchPoints.getPointCount();
+		return count > 0 ? mCumulativeMeters[count - 1] : 0;
+	}
+	
+	/**
+	 * Sets who gets told about the trace's length as it changes - pass null to stop (e.g. in onPause, since
+	 * this singleton outlives activities).
+	 * @param receiver the receiver, or null
+	 */
+	public synchronized void setRouteLengthReceiver(IRouteLengthReceiver receiver) {
+		mRouteLengthReceiver = receiver;
+	}
+	
+	/**
+	 * Queues one call to the length receiver on the UI thread, unless one is already waiting to run.
+	 * Call with the lock held.
+	 */
+	private void postRouteLengthUpdate() {
+		if (mRouteLengthReceiver == null || mRouteLengthUpdatePosted) {
+			return;
+		}
+		mRouteLengthUpdatePosted = true;
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				IRouteLengthReceiver receiver;
+				float miles;
+				synchronized (MapTraceCoordinateManager.this) {
+					mRouteLengthUpdatePosted = false;
+					receiver = mRouteLengthReceiver;
+					miles = metersToMiles(getRouteLengthInMeters());
+				}
+				if (receiver != null) {
+					receiver.onRouteLengthChanged(miles);
+				}
 			}
+		});
+	}
+	
+	/**
+	 * Length of everything stored so far - doesn't wait for points still in the capture pipeline,
+	 * so it's cheap enough to call while the user is drawing.
+	 * @return length of the trace in miles
+	 */
+	public synchronized float getRouteLengthInMiles() {
+		return metersToMiles(getRouteLengthInMeters());
+	}
+	
+	/**
+	 * Converts stored points back into screen pixels. Every point is projected to absolute world pixels
+	 * only once (at WebMercator.MAX_ZOOM), so a redraw at any zoom level is just a shift and a subtraction
+	 * of the viewport's offset per point - no trig, and no allocation once the buffers are big enough.
+	 * @param projection current map projection
+	 * @return the stored points in screen pixels - reused by the next call, so don't hold on to it
+	 */
+	public PixelTrace getStoredTouchPoints(Projection projection) {
+		mCapturePipeline.flush();
+		synchronized (this) {
+			return projectStoredTouchPoints(projection);
+		}
+	}
+	
+	/**
+	 * Does the work for getStoredTouchPoints - call with the lock held.
+	 * @param projection current map projection
+	 * @return mPixelTrace, refilled
+	 */
+	private PixelTrace projectStoredTouchPoints(Projection projection) {
+		
+		updateWorldPixels();
+		
+		int shift = WebMercator.MAX_ZOOM - projection.getZoomLevel();
+		Point viewportOrigin = projection.toMercatorPixels(0, 0, mScratchPoint); // world pixels of screen's top left
+		int offsetX = viewportOrigin.x;
+		int offsetY = viewportOrigin.y;
+		
+		PixelTrace result = mPixelTrace;
+		result.reset(mTouchPoints.getPointCount(), mTouchPoints.getSegmentCount());
+		
+		for (int x = 0; x < mTouchPoints.getSegmentCount(); ++x) {
+			result.setSegmentStart(x, mTouchPoints.getSegmentStart(x));
+		}
+		for (int y = 0; y < mTouchPoints.getPointCount(); ++y) {
+			result.setPoint(y, (mWorldX[y] >> shift) - offsetX, (mWorldY[y] >> shift) - offsetY);
 		}
 		
 		return result;
 	}
+	
+	/**
+	 * Projects any stored points that haven't been projected yet into mWorldX/mWorldY.
+	 */
+	private void updateWorldPixels() {
+		int count = mTouchPoints.getPointCount();
+		if (mWorldX.length < count) {
+			int capacity = Math.max(count, mWorldX.length * 2);
+			mWorldX = Arrays.copyOf(mWorldX, capacity);
+			mWorldY = Arrays.copyOf(mWorldY, capacity);
+		}
+		for (int i = mWorldPointCount; i < count; ++i) {
+			mWorldX[i] = WebMercator.longitudeE6ToPixelX(mTouchPoints.getLongitudeE6(i), WebMercator.MAX_ZOOM);
+			mWorldY[i] = WebMercator.latitudeE6ToPixelY(mTouchPoints.getLatitudeE6(i), WebMercator.MAX_ZOOM);
+		}
+		mWorldPointCount = count;
+	}
 
 	/**
 	 * Erases all stored points.
 	 */
 	public void forgetPoints() {
-		mTouchPoints.clear();
+		mCapturePipeline.flush(); // or points still in the pipeline would show up after the erase
+		synchronized (this) {
+			mTouchPoints.clear();
+			mWorldPointCount = 0;
+			traceChanged();
+			postRouteLengthUpdate();
+		}
 	}
 	
 	/**
@@ -104,51 +462,49 @@ public class MapTraceCoordinateManager implements GetMapXMLAsyncTask.ISnappedRou
 	 * @return true if there are points, false if there aren't
 	 */
 	public boolean hasStoredTouchPoints() {
-		return !mTouchPoints.isEmpty();
+		mCapturePipeline.flush();
+		synchronized (this) {
+			return mTouchPoints.getPointCount() > 0;
+		}
 	}
 	
 	/**
-	 * Converts stored Points to GeoPoints, measures the route's length, and returns a MeasuredRoute.
+	 * Returns a snapshot of the stored points, measured. The distances along the route are kept up to date as
+	 * points are stored, so this only copies them - it costs the same as copying the points, and its length always
+	 * matches getRouteLengthInMiles.
 	 * @param projection Used to convert Points to GeoPoints. 
-	 * @return MeasuredRoute, contains route length and GeoPoints
+	 * @return MeasuredRoute, contains route length and a read-only copy of the points
 	 */
 	public MeasuredRoute getMeasuredPoints(Projection projection) {
-
-		MeasuredRoute result = new MeasuredRoute(mTouchPoints, measureRoute(mTouchPoints));
-		return result;
+		mCapturePipeline.flush();
+		synchronized (this) {
+			simplifyLastSegment(); // in case its stroke's end hasn't come through
+			int count = mTouchPoints.getPointCount();
+			MeasuredRoute result = new MeasuredRoute(mTouchPoints.copy(), Arrays.copyOf(mCumulativeMeters, count));
+			return result;
+		}
 	}
 	
-
 	/**
-	 * Measures the length of a route, in miles, by directly linking the segments together.
-	 * @param route GeoPoints that make up the route.
-	 * @return mileage
+	 * Helper function to find the distance between two points. Uses GeoDistance.auto, which picks the cheapest
+	 * formula that's accurate enough for the segment's length - almost always the equirectangular one for traced
+	 * points, which are a few meters apart.
+	 * @param lat1E6 latitude of the first point, E6 format
+	 * @param lon1E6 longitude of the first point, E6 format
+	 * @param lat2E6 latitude of the second point, E6 format
+	 * @param lon2E6 longitude of the second point, E6 format
+	 * @return distance in meters
 	 */
-	private float measureRoute(ArrayList<ArrayList<GeoPoint>> route) {
-		float result = 0;
-		for (int x = 0; x < route.size(); ++x) {
-			for (int y = 0; y < route.get(x).size() - 1; ++y) {
-				result = result + getDistanceInMiles(route.get(x).get(y), route.get(x).get(y + 1));
-			}
-		}
-		return result;
+	private double getDistanceInMeters(int lat1E6, int lon1E6, int lat2E6, int lon2E6) {
+		return GeoDistance.auto(lat1E6, lon1E6, lat2E6, lon2E6);
 	}
 	
 	/**
-	 * Helper function to find the distance between two GeoPoints, using haversine formula built into Location class.
-	 * Copied from http://stackoverflow.com/questions/5936912/how-to-find-the-distance-between-two-geopoints
-	 * @param p1 the first point
-	 * @param p2 the second point
-	 * @return distance in miles
+	 * @param meters a distance in meters
+	 * @return the same distance in miles
 	 */
-	private float getDistanceInMiles(GeoPoint p1, GeoPoint p2) {
-	    double lat1 = ((double)p1.getLatitudeE6()) / 1e6;
-	    double lng1 = ((double)p1.getLongitudeE6()) / 1e6;
-	    double lat2 = ((double)p2.getLatitudeE6()) / 1e6;
-	    double lng2 = ((double)p2.getLongitudeE6()) / 1e6;
-	    float [] dist = new float[1];
-	    Location.distanceBetween(lat1, lng1, lat2, lng2, dist);
-	    return dist[0] * 0.000621371192f;
+	private static float metersToMiles(double meters) {
+		return (float) (meters * 0.000621371192);
 	}
 	
     /**
@@ -166,14 +522,28 @@ public class MapTraceCoordinateManager implements GetMapXMLAsyncTask.ISnappedRou
      * @return first = second to last point, second = last point (both null if no stored points)
      */
     public Pair<Point, Point> getLastTwoDrawnPoints(Projection projection) {
+    	mCapturePipeline.flush();
+    	synchronized (this) {
+    		return findLastTwoDrawnPoints(projection);
+    	}
+    }
+    
+    /**
+     * Does the work for getLastTwoDrawnPoints - call with the lock held.
+     * @param projection Current map projection
+     * @return first = second to last point, second = last point (both null if no stored points)
+     */
+    private Pair<Point, Point> findLastTwoDrawnPoints(Projection projection) {
     	
     	Pair<Point, Point> result; 
     	
-    	if (mTouchPoints.size() > 0 && mTouchPoints.get(mTouchPoints.size() - 1).size() >= 2) {  		
+    	int lastSegment = mTouchPoints.getSegmentCount() - 1;
+    	
+    	if (lastSegment >= 0 && mTouchPoints.getSegmentEnd(lastSegment) - mTouchPoints.getSegmentStart(lastSegment) >= 2) {  		
     			
-    		ArrayList<GeoPoint> lastArray = mTouchPoints.get(mTouchPoints.size() - 1);
-    		Point first = projection.toPixels(lastArray.get(lastArray.size()-2), null);
-    		Point second = projection.toPixels(lastArray.get(lastArray.size()-1), null);
+    		int last = mTouchPoints.getSegmentEnd(lastSegment) - 1;
+    		Point first = projection.toPixels(mTouchPoints.getGeoPoint(last - 1, mScratchGeoPoint), null);
+    		Point second = projection.toPixels(mTouchPoints.getGeoPoint(last, mScratchGeoPoint), null);
     		result = new Pair<Point, Point>(first, second);
     	}
     	else {
@@ -199,19 +569,46 @@ public class MapTraceCoordinateManager implements GetMapXMLAsyncTask.ISnappedRou
     
     /**
      * This method snaps the currently measured points to nearby routes by downloading map information and
-     * parsing it as XML, to find nearby "ways" (paths, roads, etc).
-     * @param trace
+     * parsing it as XML, to find nearby "ways" (paths, roads, etc). The download and matching run in a
+     * GetMapXMLAsyncTask, which looks for ways in a corridor around the trace. The SnapCoordinator makes sure
+     * repeated requests for the same trace share one snap, and that only a result for the current trace is
+     * stored. UI thread only.
+     * @param context used to check for a network connection
+     * @param activity gets its map refreshed once the snapped route is stored
      */
-	public void snapTraceToWays(BoundingBoxE6 bbox, Context context, MapActivity activity) {
-		// TODO
+	public void snapTraceToWays(Context context, MapActivity activity) {
+		mSnapCoordinator.requestSnap(context, activity);
 	}
 	
 	/**
-	 * Called from the UI thread when the GetMapXMLAsyncTask finishes snapping the trace to any available ways.
-	 * @param route the snapped route
+	 * Called from the UI thread when a snap finishes. Replaces the stored trace with the snapped route, as a
+	 * single segment - unless the trace changed since the snap started.
+	 * @param route the snapped route, or null if snapping failed (the trace is left alone)
+	 * @param version trace version the route was snapped from
+	 * @return true if the route was stored
 	 */
-	public void storeSnappedRoute(ArrayList<GeoPoint> route) {
-		// TODO
+	public boolean storeSnappedRoute(ArrayList<GeoPoint> route, int version) {
+		if (route == null || route.isEmpty()) {
+			return false;
+		}
+		
+		mCapturePipeline.flush();
+		synchronized (this) {
+			if (version != mTraceVersion) {
+				return false;
+			}
+			mTouchPoints.clear();
+			mTouchPoints.startSegment();
+			for (int i = 0; i < route.size(); ++i) {
+				GeoPoint point = route.get(i);
+				mTouchPoints.addPoint(point.getLatitudeE6(), point.getLongitudeE6());
+			}
+			mWorldPointCount = 0;
+			measureSegment(0);
+			traceChanged();
+			postRouteLengthUpdate();
+		}
+		return true;
 	}
 	
     public void storeZoomLevel(int zoom) {
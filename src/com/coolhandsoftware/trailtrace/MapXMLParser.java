@@ -1,6 +1,7 @@
 package com.coolhandsoftware.trailtrace;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -9,7 +10,11 @@ import org.xmlpull.v1.XmlPullParserFactory;
 
 /**
  * Class to parse the map data from the XML file's InputStream.
- * 
+ *
+ * Reads Overpass "out skel" responses a tag at a time as they come off the stream - no DOM is ever built.
+ * Node coordinates go straight into a NodeTable, and each way comes back from readNextWay as NodeTable
+ * indices, so memory use depends on the number of nodes and ways, not on the size of the XML.
+ *
  * @author David Cully (david.a.cully@gmail.com)
  *
  */
@@ -18,37 +23,157 @@ public class MapXMLParser {
 	/** input stream produced by HttpUrlConnection, passed in thru ctor **/
 	private InputStream mStream;
 	private XmlPullParser mParser;
-	
+
+	/** where node coordinates are stored and node ids are turned into indices **/
+	private NodeTable mNodes;
+
+	/** reused to collect the node references of the way being read **/
+	private int[] mWayNodes = new int[256];
+
 	/**
 	 * Build an instance in order to use the given stream to produce returns for its methods.
 	 * @param inStream The stream from the XML file
+	 * @param nodes where to store the nodes that are read
 	 */
-	public MapXMLParser(InputStream inStream) throws XmlPullParserException, IOException {
+	public MapXMLParser(InputStream inStream, NodeTable nodes) throws XmlPullParserException, IOException {
 		mStream = inStream;
+		mNodes = nodes;
         XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-        XmlPullParser mParser = factory.newPullParser();
+        mParser = factory.newPullParser();
         mParser.setInput(inStream, null);
 	}
-	
+
+	/**
+	 * Debugging helper - prints the name of every start tag left in the stream.
+	 */
 	public void spitOutOpenTags() throws IOException, XmlPullParserException {
 		int eventType = mParser.getEventType();
-		
+
 		while (eventType != XmlPullParser.END_DOCUMENT) {
 			if(eventType == XmlPullParser.START_TAG) {
 				System.out.println("Start tag "+mParser.getName());
-				eventType = mParser.next();
 			}
+			eventType = mParser.next();
 		}
 	}
-	
+
 	/**
-	 * Get the next OSM "way", as defined by OSM's format.
+	 * Get the next OSM "way", as defined by OSM's format. Any nodes on the way to it are stored in the NodeTable.
 	 * @return The next Way object, or null if we've read them all.
 	 */
-	public Way readNextWay() {
-		
-		
+	public Way readNextWay() throws IOException, XmlPullParserException {
+		int eventType = mParser.next();
+
+		while (eventType != XmlPullParser.END_DOCUMENT) {
+			if (eventType == XmlPullParser.START_TAG) {
+				String name = mParser.getName();
+				if ("node".equals(name)) {
+					readNode();
+				}
+				else if ("way".equals(name)) {
+					return readWay();
+				}
+			}
+			eventType = mParser.next();
+		}
+
 		return null;
 	}
 
+	/**
+	 * @return the NodeTable the nodes are stored in
+	 */
+	public NodeTable getNodeTable() {
+		return mNodes;
+	}
+
+	/**
+	 * Stores the node the parser is on.
+	 */
+	private void readNode() {
+		String id = mParser.getAttributeValue(null, "id");
+		String lat = mParser.getAttributeValue(null, "lat");
+		String lon = mParser.getAttributeValue(null, "lon");
+		if (id == null || lat == null || lon == null) {
+			return;
+		}
+		mNodes.setCoordinates(mNodes.indexOf(Long.parseLong(id)), parseE6(lat), parseE6(lon));
+	}
+
+	/**
+	 * Reads the way the parser is on, up to and including its end tag.
+	 * @return the way
+	 */
+	private Way readWay() throws IOException, XmlPullParserException {
+		String idValue = mParser.getAttributeValue(null, "id");
+		long id = idValue != null ? Long.parseLong(idValue) : 0;
+		int count = 0;
+
+		int eventType = mParser.next();
+		while (eventType != XmlPullParser.END_DOCUMENT
+				&& !(eventType == XmlPullParser.END_TAG && "way".equals(mParser.getName()))) {
+			if (eventType == XmlPullParser.START_TAG && "nd".equals(mParser.getName())) {
+				String ref = mParser.getAttributeValue(null, "ref");
+				if (ref != null) {
+					if (count == mWayNodes.length) {
+						mWayNodes = Arrays.copyOf(mWayNodes, count * 2);
+					}
+					mWayNodes[count++] = mNodes.indexOf(Long.parseLong(ref));
+				}
+			}
+			eventType = mParser.next();
+		}
+
+		return new Way(id, Arrays.copyOf(mWayNodes, count));
+	}
+
+	/**
+	 * Turns a decimal degree string, like "-71.4512345", into E6 format without going through a double.
+	 * Digits past the sixth decimal place are rounded.
+	 * @param value the degrees
+	 * @return the degrees, E6 format
+	 */
+	static int parseE6(String value) {
+		int length = value.length();
+		int i = 0;
+		boolean negative = false;
+		if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+			negative = value.charAt(i) == '-';
+			++i;
+		}
+
+		long result = 0;
+		int decimals = -1; // -1 until the decimal point is passed
+		boolean roundUp = false;
+		for (; i < length; ++i) {
+			char c = value.charAt(i);
+			if (c == '.') {
+				decimals = 0;
+			}
+			else if (c >= '0' && c <= '9') {
+				if (decimals < 6) {
+					result = result * 10 + (c - '0');
+					if (decimals >= 0) {
+						++decimals;
+					}
+				}
+				else if (decimals == 6) {
+					roundUp = c >= '5';
+					decimals = 7; // anything further is ignored
+				}
+			}
+			else {
+				throw new NumberFormatException("Not a coordinate: " + value);
+			}
+		}
+
+		for (int d = Math.max(decimals, 0); d < 6; ++d) {
+			result *= 10;
+		}
+		if (roundUp) {
+			++result;
+		}
+		return (int) (negative ? -result : result);
+	}
+
 }
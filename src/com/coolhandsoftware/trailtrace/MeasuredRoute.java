@@ -1,22 +1,107 @@
 package com.coolhandsoftware.trailtrace;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.osmdroid.util.GeoPoint;
 
 /**
- * Wrapper class for a list of GeoPoints and the length of the route they represent.
+ * Wrapper class for a snapshot of a trace's points and the length of the route they represent.
+ * Also keeps how far along the route each point lies, so mile markers and splits are lookups instead of rescans.
  * @author David Cully (david.a.cully@gmail.com)
  *
  */
 public class MeasuredRoute {
 
-	public ArrayList<ArrayList<GeoPoint>> mPoints;
+	/** meters in a statute mile **/
+	public static final double METERS_PER_MILE = 1609.344;
+
+	/** read-only copy of the measured points - don't write to it **/
+	public PackedTrace mPoints;
+
+	/** length of the route in miles **/
 	public float mLength;
-	
-	public MeasuredRoute(ArrayList<ArrayList<GeoPoint>> points, float distance) {
-		mLength = distance;
+
+	/** mCumulativeMeters[i] is the distance along the route from the first point to point i. Never decreases -
+	 * the jump between the end of one segment and the start of the next doesn't count. **/
+	private final double[] mCumulativeMeters;
+
+	/**
+	 * @param points the measured points - kept, not copied, so pass something nobody else writes to
+	 * @param cumulativeMeters distance along the route to each point, as described for mCumulativeMeters - kept,
+	 * not copied
+	 */
+	public MeasuredRoute(PackedTrace points, double[] cumulativeMeters) {
 		mPoints = points;
+		mCumulativeMeters = cumulativeMeters;
+		mLength = (float) (getLengthInMeters() / METERS_PER_MILE);
+	}
+
+	/**
+	 * @return length of the route in meters
+	 */
+	public double getLengthInMeters() {
+		int count = mCumulativeMeters.length;
+		return count > 0 ? mCumulativeMeters[count - 1] : 0;
+	}
+
+	/**
+	 * @param index index of a point in mPoints
+	 * @return distance along the route from the first point to that one, in meters
+	 */
+	public double distanceAtPoint(int index) {
+		return mCumulativeMeters[index];
+	}
+
+	/**
+	 * Finds the index of the last point at or before a distance along the route.
+	 * @param meters distance along the route
+	 * @return index of the point, or -1 if the route is empty
+	 */
+	public int indexAtDistance(double meters) {
+		int count = mCumulativeMeters.length;
+		if (count == 0) {
+			return -1;
+		}
+		int found = Arrays.binarySearch(mCumulativeMeters, meters);
+		if (found < 0) {
+			found = -found - 2; // insertion point - 1: the last point before the distance
+		}
+		else {
+			// equal distances (a segment's start shares its predecessor's) - take the last of the run
+			while (found + 1 < count && mCumulativeMeters[found + 1] == meters) {
+				++found;
+			}
+		}
+		return Math.max(0, Math.min(found, count - 1));
+	}
+
+	/**
+	 * Finds the spot a given distance along the route, interpolating between the points on either side of it.
+	 * Distances past either end are clamped to that end.
+	 * @param meters distance along the route
+	 * @param reuse GeoPoint to write the result into - if null, a new one is created
+	 * @return the spot, or null if the route is empty
+	 */
+	public GeoPoint pointAtDistance(double meters, GeoPoint reuse) {
+		int index = indexAtDistance(meters);
+		if (index < 0) {
+			return null;
+		}
+		if (index + 1 >= mCumulativeMeters.length || mCumulativeMeters[index + 1] == mCumulativeMeters[index]) {
+			return mPoints.getGeoPoint(index, reuse);
+		}
+
+		double fraction = (meters - mCumulativeMeters[index]) / (mCumulativeMeters[index + 1] - mCumulativeMeters[index]);
+		fraction = Math.max(0, Math.min(1, fraction));
+		int latitudeE6 = (int) Math.round(mPoints.getLatitudeE6(index)
+				+ fraction * (mPoints.getLatitudeE6(index + 1) - mPoints.getLatitudeE6(index)));
+		int longitudeE6 = (int) Math.round(mPoints.getLongitudeE6(index)
+				+ fraction * (mPoints.getLongitudeE6(index + 1) - mPoints.getLongitudeE6(index)));
+		if (reuse == null) {
+			return new GeoPoint(latitudeE6, longitudeE6);
+		}
+		reuse.setCoordsE6(latitudeE6, longitudeE6);
+		return reuse;
 	}
 
 }
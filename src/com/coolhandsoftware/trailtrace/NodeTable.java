@@ -0,0 +1,103 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+
+/**
+ * The OSM nodes read from map data, stored in columns: each node gets a small index the first time its id shows
+ * up (as a node or as a reference from a way), and its id and coordinates live at that index in primitive arrays.
+ * Ways hold these indices instead of node ids or GeoPoints. Nothing here is boxed, so looking a node up doesn't
+ * allocate, and a node costs 16 bytes in the columns plus 16 to 32 in the id map (depending on how full it is).
+ *
+ * A node can be referenced before its coordinates are read, so check hasCoordinates before using them.
+ */
+public class NodeTable {
+
+	/** latitude stored for nodes whose coordinates haven't been read yet **/
+	private static final int NO_COORDINATE = Integer.MIN_VALUE;
+
+	/** OSM node id to index in the columns **/
+	private LongIntHashMap mIndices = new LongIntHashMap(1024);
+
+	/** OSM id of each node **/
+	private long[] mIds = new long[1024];
+
+	/** latitude of each node, E6 format, or NO_COORDINATE **/
+	private int[] mLatE6 = new int[1024];
+
+	/** longitude of each node, E6 format **/
+	private int[] mLonE6 = new int[1024];
+
+	/** number of nodes in the table **/
+	private int mCount = 0;
+
+	public NodeTable() {
+
+	}
+
+	/**
+	 * Finds a node's index, adding the node (without coordinates) if it isn't in the table yet.
+	 * @param id OSM node id
+	 * @return the node's index
+	 */
+	public int indexOf(long id) {
+		int index = mIndices.get(id, -1);
+		if (index >= 0) {
+			return index;
+		}
+		if (mCount == mIds.length) {
+			int capacity = mCount * 2;
+			mIds = Arrays.copyOf(mIds, capacity);
+			mLatE6 = Arrays.copyOf(mLatE6, capacity);
+			mLonE6 = Arrays.copyOf(mLonE6, capacity);
+		}
+		mIds[mCount] = id;
+		mLatE6[mCount] = NO_COORDINATE;
+		mIndices.put(id, mCount);
+		return mCount++;
+	}
+
+	/**
+	 * @param id OSM node id
+	 * @return the node's index, or -1 if it isn't in the table
+	 */
+	public int find(long id) {
+		return mIndices.get(id, -1);
+	}
+
+	/**
+	 * @param index the node's index
+	 * @param latitudeE6 latitude, E6 format
+	 * @param longitudeE6 longitude, E6 format
+	 */
+	public void setCoordinates(int index, int latitudeE6, int longitudeE6) {
+		mLatE6[index] = latitudeE6;
+		mLonE6[index] = longitudeE6;
+	}
+
+	/**
+	 * @param index the node's index
+	 * @return true once the node's coordinates have been read
+	 */
+	public boolean hasCoordinates(int index) {
+		return mLatE6[index] != NO_COORDINATE;
+	}
+
+	/**
+	 * @return number of nodes in the table
+	 */
+	public int size() {
+		return mCount;
+	}
+
+	public long getId(int index) {
+		return mIds[index];
+	}
+
+	public int getLatitudeE6(int index) {
+		return mLatE6[index];
+	}
+
+	public int getLongitudeE6(int index) {
+		return mLonE6[index];
+	}
+}
@@ -0,0 +1,193 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+
+import org.osmdroid.util.GeoPoint;
+
+/**
+ * Columnar storage for a user-drawn trace. Instead of one GeoPoint object per touch sample, the latitudes
+ * and longitudes (in E6 format) live in two growable int arrays, and the segments are delimited by the
+ * index of their first point in a third array. A point costs 8 bytes this way, and appending to the trace
+ * almost never allocates.
+ *
+ * Points are addressed by their index in the whole trace; segment s covers the indices from
+ * getSegmentStart(s) (inclusive) to getSegmentEnd(s) (exclusive).
+ *
+ * Whoever owns a PackedTrace is the only one who should write to it - hand other objects a copy() instead,
+ * since later appends or a clear() would otherwise change the data underneath them.
+ */
+public class PackedTrace {
+
+	/** number of points room is made for up front **/
+	private static final int INITIAL_CAPACITY = 256;
+
+	/** latitudes of every stored point, E6 format **/
+	private int[] mLatE6;
+
+	/** longitudes of every stored point, E6 format **/
+	private int[] mLonE6;
+
+	/** number of valid entries in mLatE6 and mLonE6 **/
+	private int mPointCount = 0;
+
+	/** index of the first point in each segment **/
+	private int[] mSegmentStarts;
+
+	/** number of valid entries in mSegmentStarts **/
+	private int mSegmentCount = 0;
+
+	/**
+	 * Builds an empty trace.
+	 */
+	public PackedTrace() {
+		mLatE6 = new int[INITIAL_CAPACITY];
+		mLonE6 = new int[INITIAL_CAPACITY];
+		mSegmentStarts = new int[16];
+	}
+
+	/**
+	 * Builds a trace holding exactly the points of another one - used by copy().
+	 * @param other trace to copy
+	 */
+	private PackedTrace(PackedTrace other) {
+		mLatE6 = Arrays.copyOf(other.mLatE6, Math.max(other.mPointCount, 1));
+		mLonE6 = Arrays.copyOf(other.mLonE6, Math.max(other.mPointCount, 1));
+		mPointCount = other.mPointCount;
+		mSegmentStarts = Arrays.copyOf(other.mSegmentStarts, Math.max(other.mSegmentCount, 1));
+		mSegmentCount = other.mSegmentCount;
+	}
+
+	/**
+	 * @return a trimmed, independent copy of this trace, safe to hand out as a read-only snapshot
+	 */
+	public PackedTrace copy() {
+		return new PackedTrace(this);
+	}
+
+	/**
+	 * Starts a new segment - the next point added will be its first point.
+	 */
+	public void startSegment() {
+		if (mSegmentCount == mSegmentStarts.length) {
+			mSegmentStarts = Arrays.copyOf(mSegmentStarts, Math.max(16, mSegmentCount * 2));
+		}
+		mSegmentStarts[mSegmentCount++] = mPointCount;
+	}
+
+	/**
+	 * Appends a point to the last segment, starting the first segment if there isn't one yet.
+	 * @param latitudeE6 latitude of the point, E6 format
+	 * @param longitudeE6 longitude of the point, E6 format
+	 */
+	public void addPoint(int latitudeE6, int longitudeE6) {
+		if (mSegmentCount == 0) {
+			startSegment();
+		}
+		if (mPointCount == mLatE6.length) {
+			int capacity = Math.max(INITIAL_CAPACITY, mPointCount + (mPointCount >> 1));
+			mLatE6 = Arrays.copyOf(mLatE6, capacity);
+			mLonE6 = Arrays.copyOf(mLonE6, capacity);
+		}
+		mLatE6[mPointCount] = latitudeE6;
+		mLonE6[mPointCount] = longitudeE6;
+		++mPointCount;
+	}
+
+	/**
+	 * Overwrites the last point of the trace - used when a new sample makes the last point redundant.
+	 * @param latitudeE6 new latitude of the point, E6 format
+	 * @param longitudeE6 new longitude of the point, E6 format
+	 */
+	public void replaceLastPoint(int latitudeE6, int longitudeE6) {
+		mLatE6[mPointCount - 1] = latitudeE6;
+		mLonE6[mPointCount - 1] = longitudeE6;
+	}
+	
+	/**
+	 * Drops points from the last segment, sliding the survivors down so they stay in order.
+	 * @param keep keep[i] is true if the segment's i-th point should stay
+	 * @return number of points removed
+	 */
+	public int retainLastSegmentPoints(boolean[] keep) {
+		int start = mSegmentStarts[mSegmentCount - 1];
+		int write = start;
+		for (int read = start; read < mPointCount; ++read) {
+			if (keep[read - start]) {
+				mLatE6[write] = mLatE6[read];
+				mLonE6[write] = mLonE6[read];
+				++write;
+			}
+		}
+		int removed = mPointCount - write;
+		mPointCount = write;
+		return removed;
+	}
+
+	/**
+	 * Forgets every point and segment, but keeps the arrays around for reuse.
+	 */
+	public void clear() {
+		mPointCount = 0;
+		mSegmentCount = 0;
+	}
+
+	/**
+	 * @return number of points in the whole trace
+	 */
+	public int getPointCount() {
+		return mPointCount;
+	}
+
+	/**
+	 * @return number of segments in the trace (a segment may be empty if nothing was added after startSegment)
+	 */
+	public int getSegmentCount() {
+		return mSegmentCount;
+	}
+
+	/**
+	 * @param segment index of the segment
+	 * @return index of the segment's first point
+	 */
+	public int getSegmentStart(int segment) {
+		return mSegmentStarts[segment];
+	}
+
+	/**
+	 * @param segment index of the segment
+	 * @return index one past the segment's last point
+	 */
+	public int getSegmentEnd(int segment) {
+		return segment + 1 < mSegmentCount ? mSegmentStarts[segment + 1] : mPointCount;
+	}
+
+	/**
+	 * @param index index of the point in the whole trace
+	 * @return latitude of the point, E6 format
+	 */
+	public int getLatitudeE6(int index) {
+		return mLatE6[index];
+	}
+
+	/**
+	 * @param index index of the point in the whole trace
+	 * @return longitude of the point, E6 format
+	 */
+	public int getLongitudeE6(int index) {
+		return mLonE6[index];
+	}
+
+	/**
+	 * Loads a point into a GeoPoint, so callers that need osmdroid objects don't have to allocate one per point.
+	 * @param index index of the point in the whole trace
+	 * @param reuse GeoPoint to write into, or null to allocate a new one
+	 * @return the GeoPoint holding the point's coordinates
+	 */
+	public GeoPoint getGeoPoint(int index, GeoPoint reuse) {
+		if (reuse == null) {
+			return new GeoPoint(mLatE6[index], mLonE6[index]);
+		}
+		reuse.setCoordsE6(mLatE6[index], mLonE6[index]);
+		return reuse;
+	}
+}
@@ -0,0 +1,214 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads an OSM PBF file one block at a time, without loading more of it than the current block.
+ *
+ * A PBF file is a run of blobs, each behind a header:
+ *
+ *   int32 (big-endian)  size of the BlobHeader
+ *   BlobHeader          string type = 1 ("OSMHeader" or "OSMData"), int32 datasize = 3
+ *   Blob                bytes raw = 1, int32 raw_size = 2, bytes zlib_data = 3 (lzma and others aren't supported)
+ *
+ * next() reads a header; getData() then reads the blob and inflates it, or the blob is skipped unread if the
+ * caller moves on. The compressed and inflated bytes go into buffers that are reused from block to block, so
+ * memory stays at about two of the biggest blocks in the file.
+ */
+public class PbfBlockReader {
+
+	/** the format's limit on a BlobHeader **/
+	private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+	/** the format's limit on a Blob, compressed or not **/
+	private static final int MAX_BLOB_BYTES = 32 * 1024 * 1024;
+
+	/** the file **/
+	private final DataInputStream mIn;
+
+	/** inflates zlib blobs, reset for each one **/
+	private final Inflater mInflater = new Inflater();
+
+	/** type of the current block, null before the first and after the last **/
+	private String mType = null;
+
+	/** bytes of the current blob still unread in mIn **/
+	private int mBlobBytes = 0;
+
+	/** the current blob as read from the file, then as inflated **/
+	private byte[] mBlob = new byte[64 * 1024];
+	private byte[] mData = new byte[256 * 1024];
+
+	/** length of the inflated block in mData **/
+	private int mDataLength = 0;
+
+	/** reads small protobuf messages (the headers) **/
+	private final ProtoReader mProto = new ProtoReader();
+
+	/**
+	 * @param in the PBF file, buffered - closing it is up to the caller
+	 */
+	public PbfBlockReader(InputStream in) {
+		mIn = new DataInputStream(in);
+	}
+
+	/**
+	 * Moves to the next block, skipping whatever of the current one wasn't read.
+	 * @return false at the end of the file
+	 * @throws IOException if the file can't be read or isn't valid PBF
+	 */
+	public boolean next() throws IOException {
+		skipFully(mBlobBytes);
+		mBlobBytes = 0;
+		mType = null;
+
+		int headerSize;
+		try {
+			headerSize = mIn.readInt();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+		if (headerSize < 0 || headerSize > MAX_HEADER_BYTES) {
+			throw new IOException("Bad PBF blob header size " + headerSize);
+		}
+		byte[] header = read(headerSize);
+
+		mProto.reset(header, 0, headerSize);
+		int blobSize = -1;
+		while (mProto.hasMore()) {
+			int tag = mProto.readTag();
+			if (tag == ProtoReader.tag(1, ProtoReader.LENGTH_DELIMITED)) {
+				int length = mProto.readLength();
+				mType = new String(header, mProto.getPosition(), length, "UTF-8");
+				mProto.skipBytes(length);
+			}
+			else if (tag == ProtoReader.tag(3, ProtoReader.VARINT)) {
+				blobSize = (int) mProto.readVarint();
+			}
+			else {
+				mProto.skipField(tag);
+			}
+		}
+		if (mType == null || blobSize < 0 || blobSize > MAX_BLOB_BYTES) {
+			throw new IOException("Bad PBF blob header");
+		}
+		mBlobBytes = blobSize;
+		return true;
+	}
+
+	/**
+	 * @return type of the current block - "OSMHeader" or "OSMData" for the ones in use
+	 */
+	public String getType() {
+		return mType;
+	}
+
+	/**
+	 * Reads and inflates the current block. Only valid until the next call to next().
+	 * @return a buffer holding the block from 0 to getDataLength()
+	 * @throws IOException if the blob can't be read or uses a compression that isn't supported
+	 */
+	public byte[] getData() throws IOException {
+		int blobSize = mBlobBytes;
+		mBlobBytes = 0;
+		if (mBlob.length < blobSize) {
+			mBlob = new byte[blobSize];
+		}
+		mIn.readFully(mBlob, 0, blobSize);
+
+		mProto.reset(mBlob, 0, blobSize);
+		int rawStart = -1, rawLength = 0, zlibStart = -1, zlibLength = 0, rawSize = -1;
+		while (mProto.hasMore()) {
+			int tag = mProto.readTag();
+			if (tag == ProtoReader.tag(1, ProtoReader.LENGTH_DELIMITED)) {
+				rawLength = mProto.readLength();
+				rawStart = mProto.getPosition();
+				mProto.skipBytes(rawLength);
+			}
+			else if (tag == ProtoReader.tag(2, ProtoReader.VARINT)) {
+				rawSize = (int) mProto.readVarint();
+			}
+			else if (tag == ProtoReader.tag(3, ProtoReader.LENGTH_DELIMITED)) {
+				zlibLength = mProto.readLength();
+				zlibStart = mProto.getPosition();
+				mProto.skipBytes(zlibLength);
+			}
+			else {
+				mProto.skipField(tag);
+			}
+		}
+
+		if (rawStart >= 0) {
+			ensureData(rawLength);
+			System.arraycopy(mBlob, rawStart, mData, 0, rawLength);
+			mDataLength = rawLength;
+		}
+		else if (zlibStart >= 0) {
+			if (rawSize < 0 || rawSize > MAX_BLOB_BYTES) {
+				throw new IOException("Bad PBF blob size " + rawSize);
+			}
+			ensureData(rawSize);
+			mInflater.reset();
+			mInflater.setInput(mBlob, zlibStart, zlibLength);
+			try {
+				mDataLength = mInflater.inflate(mData, 0, rawSize);
+			}
+			catch (DataFormatException e) {
+				throw new IOException("Corrupt zlib data in PBF blob");
+			}
+			if (mDataLength != rawSize || !mInflater.finished()) {
+				throw new IOException("PBF blob inflated to the wrong size");
+			}
+		}
+		else {
+			throw new IOException("PBF blob uses an unsupported compression");
+		}
+		return mData;
+	}
+
+	/**
+	 * @return length of the block getData() returned
+	 */
+	public int getDataLength() {
+		return mDataLength;
+	}
+
+	/**
+	 * Frees the inflater's native memory. The stream is left open.
+	 */
+	public void release() {
+		mInflater.end();
+	}
+
+	private void ensureData(int size) {
+		if (mData.length < size) {
+			mData = new byte[size];
+		}
+	}
+
+	private byte[] read(int size) throws IOException {
+		byte[] bytes = new byte[size];
+		mIn.readFully(bytes);
+		return bytes;
+	}
+
+	private void skipFully(int count) throws IOException {
+		while (count > 0) {
+			int skipped = (int) mIn.skip(count);
+			if (skipped <= 0) {
+				// skip may give up early on some streams - read a byte to tell a stall from the end
+				if (mIn.read() < 0) {
+					throw new EOFException("PBF file ends inside a blob");
+				}
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Imports an OSM PBF extract into the WayTileCache with a PbfImporter, off the UI thread, so snapping works
+ * offline in the extract's area.
+ */
+public class PbfImportAsyncTask extends AsyncTask<File, Void, Integer> {
+
+	public interface IPbfImportReceiver {
+		/**
+		 * Called on the UI thread when the import is over.
+		 * @param tileCount number of cache tiles written, or -1 if the import failed
+		 */
+		public abstract void onPbfImported(int tileCount);
+	}
+
+	IPbfImportReceiver mReceiver;
+	Context mContext;
+
+	public PbfImportAsyncTask(Context context, IPbfImportReceiver receiver) {
+		mContext = context;
+		mReceiver = receiver;
+	}
+
+	/**
+	 * @return number of cache tiles written, or -1 if the import failed
+	 */
+	@Override
+	protected Integer doInBackground(File... params) {
+		try {
+			return new PbfImporter(WayTileCache.getInstance(mContext)).importFile(params[0]);
+		}
+		catch (InterruptedIOException e) {
+			Log.d("PbfImport", "PBF import of " + params[0] + " cancelled");
+			return -1;
+		}
+		catch (IOException e) {
+			Log.d("PbfImport", "Caught IOException while importing " + params[0] + ": " + e.getMessage());
+			return -1;
+		}
+	}
+
+	@Override
+	protected void onPostExecute(Integer tileCount) {
+		mReceiver.onPbfImported(tileCount);
+	}
+}
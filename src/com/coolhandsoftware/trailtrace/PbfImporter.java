@@ -0,0 +1,674 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import android.util.Log;
+
+/**
+ * Imports the trails in an OSM PBF extract into the WayTileCache, so snapping works where there's no signal.
+ *
+ * An extract holds every node in the area, but trails use only a small share of them, so the file is read twice:
+ *
+ * 1. the ways pass keeps the trail ways (highway=path, track and the like, see TRAIL_HIGHWAYS) and the ids of
+ *    their nodes, and notes which blocks hold nodes
+ * 2. the nodes pass decodes only those blocks, and keeps coordinates only for nodes the trail ways use
+ *
+ * Each kept way is then written to every cache tile its bounding box overlaps, in the same WayTileFile format
+ * downloaded tiles are stored in - but only to tiles wholly inside the extract's bounding box. A tile across the
+ * extract's edge would be missing the ways outside it, and a cached tile is taken as complete, so those are left
+ * for downloading. The tiles are stored as imported, so downloads can't evict them. Memory goes to the trail nodes (about 20 bytes each, capped at
+ * MAX_WAY_NODES) and one block of the file at a time - never the whole extract. Blocks are read with
+ * PbfBlockReader and decoded with ProtoReader cursors, and both reuse their buffers.
+ *
+ * Slow for a big extract, so call it from a background thread; interrupting the thread cancels the import.
+ */
+public class PbfImporter {
+
+	/** highway values kept - trails, and the minor roads that link them **/
+	private static final String[] TRAIL_HIGHWAYS = { "path", "footway", "track", "bridleway", "cycleway", "steps",
+			"pedestrian", "living_street", "residential", "unclassified", "service" };
+
+	/** most way nodes kept - a county's trails need a few hundred thousand **/
+	private static final int MAX_WAY_NODES = 1000000;
+
+	/** required features this reader understands - extracts needing anything else are refused **/
+	private static final String[] SUPPORTED_FEATURES = { "OsmSchema-V0.6", "DenseNodes" };
+
+	/** marks a node whose coordinates weren't in the extract **/
+	private static final int NO_COORDINATE = Integer.MIN_VALUE;
+
+	/** the extract's bounding box from its header, E6 - only tiles wholly inside it are written **/
+	private boolean mHasBounds = false;
+	private int mNorthE6, mEastE6, mSouthE6, mWestE6;
+
+	/** pass numbers **/
+	private static final int WAYS_PASS = 1;
+	private static final int NODES_PASS = 2;
+
+	/** where the ways are stored **/
+	private final WayTileCache mCache;
+
+	/** UTF-8 bytes of "highway" and of TRAIL_HIGHWAYS, to compare against string tables without decoding them **/
+	private final byte[] mHighwayKey;
+	private final byte[][] mTrailValues;
+
+	/** cursors for a block, a group, an entity, and packed arrays read side by side **/
+	private final ProtoReader mBlock = new ProtoReader();
+	private final ProtoReader mGroup = new ProtoReader();
+	private final ProtoReader mEntity = new ProtoReader();
+	private final ProtoReader mFirst = new ProtoReader();
+	private final ProtoReader mSecond = new ProtoReader();
+	private final ProtoReader mThird = new ProtoReader();
+
+	/** the current block **/
+	private byte[] mData;
+
+	/** byte range of each string in the current block's string table **/
+	private int[] mStringStarts = new int[1024];
+	private int[] mStringEnds = new int[1024];
+	private int mStringCount = 0;
+
+	/** byte range of each primitive group in the current block **/
+	private int[] mGroupStarts = new int[16];
+	private int[] mGroupEnds = new int[16];
+	private int mGroupCount = 0;
+
+	/** the current block's coordinate encoding - nanodegrees are offset + granularity * stored value **/
+	private long mGranularity;
+	private long mLatOffset;
+	private long mLonOffset;
+
+	/** OSMData blocks holding nodes, numbered in file order **/
+	private final BitSet mNodeBlocks = new BitSet();
+
+	/** kept ways - way w's nodes are mWayRefStarts[w] to mWayRefStarts[w+1] in mRefs / mRefNodes **/
+	private long[] mWayIds = new long[1024];
+	private int[] mWayRefStarts = new int[1025];
+	private int mWayCount = 0;
+
+	/** node ids of the kept ways, in way order - replaced by mRefNodes once the ways pass is done **/
+	private long[] mRefs = new long[16 * 1024];
+	private int mRefCount = 0;
+
+	/** index in mNodeIds of each way node **/
+	private int[] mRefNodes;
+
+	/** ids of the nodes the kept ways use, sorted, no repeats **/
+	private long[] mNodeIds;
+	private int mNodeCount = 0;
+
+	/** coordinates of each node in mNodeIds, E6, NO_COORDINATE if not found yet **/
+	private int[] mLatE6;
+	private int[] mLonE6;
+
+	/** where the last node lookup ended, and the id it looked for - nodes usually come sorted by id **/
+	private int mNodeCursor = 0;
+	private long mLastNodeId = Long.MIN_VALUE;
+
+	/**
+	 * @param cache where the imported ways are stored
+	 */
+	public PbfImporter(WayTileCache cache) {
+		mCache = cache;
+		mHighwayKey = utf8("highway");
+		mTrailValues = new byte[TRAIL_HIGHWAYS.length][];
+		for (int i = 0; i < TRAIL_HIGHWAYS.length; ++i) {
+			mTrailValues[i] = utf8(TRAIL_HIGHWAYS[i]);
+		}
+	}
+
+	/**
+	 * Imports an extract. Use each PbfImporter for one import only.
+	 * @param file the .osm.pbf extract
+	 * @return number of cache tiles written
+	 * @throws IOException if the file can't be read, isn't a PBF extract this reader understands, has no bounding
+	 * box or has more trail nodes than MAX_WAY_NODES - InterruptedIOException if the thread was interrupted
+	 */
+	public int importFile(File file) throws IOException {
+		readPass(file, WAYS_PASS);
+		if (!mHasBounds) {
+			throw new IOException("PBF extract has no bounding box, so its edge tiles can't be told apart");
+		}
+		Log.d("PbfImporter", "Found " + mWayCount + " trail ways with " + mRefCount + " nodes in " + file.getName());
+		indexNodes();
+		readPass(file, NODES_PASS);
+		return writeTiles();
+	}
+
+	/**
+	 * Reads the file from start to end for one pass.
+	 */
+	private void readPass(File file, int pass) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+		PbfBlockReader reader = new PbfBlockReader(in);
+		try {
+			int block = 0;
+			while (reader.next()) {
+				checkInterrupted();
+				if ("OSMHeader".equals(reader.getType())) {
+					if (pass == WAYS_PASS) {
+						checkHeader(reader.getData(), reader.getDataLength());
+					}
+				}
+				else if ("OSMData".equals(reader.getType())) {
+					if (pass == WAYS_PASS) {
+						readBlock(reader.getData(), reader.getDataLength());
+						if (readWayGroups()) {
+							mNodeBlocks.set(block);
+						}
+					}
+					else if (mNodeBlocks.get(block)) {
+						readBlock(reader.getData(), reader.getDataLength());
+						readNodeGroups();
+					}
+					++block;
+				}
+				// other block types are skipped, as the format asks
+			}
+		}
+		finally {
+			reader.release();
+			in.close();
+		}
+	}
+
+	/**
+	 * Refuses extracts that need features this reader doesn't have, like history or changesets, and reads the
+	 * extract's bounding box.
+	 */
+	private void checkHeader(byte[] data, int length) throws IOException {
+		mBlock.reset(data, 0, length);
+		while (mBlock.hasMore()) {
+			int tag = mBlock.readTag();
+			if (tag == ProtoReader.tag(1, ProtoReader.LENGTH_DELIMITED)) {
+				int boundsLength = mBlock.readLength();
+				readBounds(data, mBlock.getPosition(), mBlock.getPosition() + boundsLength);
+				mBlock.skipBytes(boundsLength);
+			}
+			else if (tag == ProtoReader.tag(4, ProtoReader.LENGTH_DELIMITED)) {
+				int featureLength = mBlock.readLength();
+				String feature = new String(data, mBlock.getPosition(), featureLength, "UTF-8");
+				mBlock.skipBytes(featureLength);
+				if (!Arrays.asList(SUPPORTED_FEATURES).contains(feature)) {
+					throw new IOException("PBF extract needs unsupported feature " + feature);
+				}
+			}
+			else {
+				mBlock.skipField(tag);
+			}
+		}
+	}
+
+	/**
+	 * Reads a HeaderBBox: left = 1, right = 2, top = 3, bottom = 4, all sint64 nanodegrees.
+	 */
+	private void readBounds(byte[] data, int start, int end) throws IOException {
+		mEntity.reset(data, start, end);
+		int found = 0;
+		while (mEntity.hasMore()) {
+			int tag = mEntity.readTag();
+			if (tag == ProtoReader.tag(1, ProtoReader.VARINT)) {
+				mWestE6 = (int) (mEntity.readSignedVarint() / 1000);
+				found |= 1;
+			}
+			else if (tag == ProtoReader.tag(2, ProtoReader.VARINT)) {
+				mEastE6 = (int) (mEntity.readSignedVarint() / 1000);
+				found |= 2;
+			}
+			else if (tag == ProtoReader.tag(3, ProtoReader.VARINT)) {
+				mNorthE6 = (int) (mEntity.readSignedVarint() / 1000);
+				found |= 4;
+			}
+			else if (tag == ProtoReader.tag(4, ProtoReader.VARINT)) {
+				mSouthE6 = (int) (mEntity.readSignedVarint() / 1000);
+				found |= 8;
+			}
+			else {
+				mEntity.skipField(tag);
+			}
+		}
+		mHasBounds = found == 15 && mWestE6 < mEastE6 && mSouthE6 < mNorthE6;
+	}
+
+	/**
+	 * Reads a PrimitiveBlock's string table, coordinate encoding and group ranges. The fields can come in any
+	 * order, so the groups are only found here and decoded afterwards.
+	 */
+	private void readBlock(byte[] data, int length) throws IOException {
+		mData = data;
+		mStringCount = 0;
+		mGroupCount = 0;
+		mGranularity = 100;
+		mLatOffset = 0;
+		mLonOffset = 0;
+
+		mBlock.reset(data, 0, length);
+		while (mBlock.hasMore()) {
+			int tag = mBlock.readTag();
+			if (tag == ProtoReader.tag(1, ProtoReader.LENGTH_DELIMITED)) {
+				int tableLength = mBlock.readLength();
+				readStringTable(mBlock.getPosition(), mBlock.getPosition() + tableLength);
+				mBlock.skipBytes(tableLength);
+			}
+			else if (tag == ProtoReader.tag(2, ProtoReader.LENGTH_DELIMITED)) {
+				int groupLength = mBlock.readLength();
+				if (mGroupCount == mGroupStarts.length) {
+					mGroupStarts = Arrays.copyOf(mGroupStarts, 2 * mGroupCount);
+					mGroupEnds = Arrays.copyOf(mGroupEnds, 2 * mGroupCount);
+				}
+				mGroupStarts[mGroupCount] = mBlock.getPosition();
+				mGroupEnds[mGroupCount] = mBlock.getPosition() + groupLength;
+				++mGroupCount;
+				mBlock.skipBytes(groupLength);
+			}
+			else if (tag == ProtoReader.tag(17, ProtoReader.VARINT)) {
+				mGranularity = mBlock.readVarint();
+			}
+			else if (tag == ProtoReader.tag(19, ProtoReader.VARINT)) {
+				mLatOffset = mBlock.readVarint();
+			}
+			else if (tag == ProtoReader.tag(20, ProtoReader.VARINT)) {
+				mLonOffset = mBlock.readVarint();
+			}
+			else {
+				mBlock.skipField(tag);
+			}
+		}
+	}
+
+	private void readStringTable(int start, int end) throws IOException {
+		mEntity.reset(mData, start, end);
+		while (mEntity.hasMore()) {
+			int tag = mEntity.readTag();
+			if (tag == ProtoReader.tag(1, ProtoReader.LENGTH_DELIMITED)) {
+				int length = mEntity.readLength();
+				if (mStringCount == mStringStarts.length) {
+					mStringStarts = Arrays.copyOf(mStringStarts, 2 * mStringCount);
+					mStringEnds = Arrays.copyOf(mStringEnds, 2 * mStringCount);
+				}
+				mStringStarts[mStringCount] = mEntity.getPosition();
+				mStringEnds[mStringCount] = mEntity.getPosition() + length;
+				++mStringCount;
+				mEntity.skipBytes(length);
+			}
+			else {
+				mEntity.skipField(tag);
+			}
+		}
+	}
+
+	/**
+	 * Ways pass: keeps the current block's trail ways.
+	 * @return true if the block holds nodes
+	 */
+	private boolean readWayGroups() throws IOException {
+		boolean hasNodes = false;
+		for (int g = 0; g < mGroupCount; ++g) {
+			mGroup.reset(mData, mGroupStarts[g], mGroupEnds[g]);
+			while (mGroup.hasMore()) {
+				int tag = mGroup.readTag();
+				if (tag == ProtoReader.tag(3, ProtoReader.LENGTH_DELIMITED)) {
+					int length = mGroup.readLength();
+					readWay(mGroup.getPosition(), mGroup.getPosition() + length);
+					mGroup.skipBytes(length);
+				}
+				else {
+					if (tag == ProtoReader.tag(1, ProtoReader.LENGTH_DELIMITED)
+							|| tag == ProtoReader.tag(2, ProtoReader.LENGTH_DELIMITED)) {
+						hasNodes = true;
+					}
+					mGroup.skipField(tag);
+				}
+			}
+		}
+		return hasNodes;
+	}
+
+	/**
+	 * Keeps a Way message if it's a trail: id = 1, packed keys = 2 and vals = 3 (string table indices), packed
+	 * delta-coded refs = 8.
+	 */
+	private void readWay(int start, int end) throws IOException {
+		long id = 0;
+		int keysStart = 0, keysEnd = 0, valuesStart = 0, valuesEnd = 0, refsStart = 0, refsEnd = 0;
+		mEntity.reset(mData, start, end);
+		while (mEntity.hasMore()) {
+			int tag = mEntity.readTag();
+			if (tag == ProtoReader.tag(1, ProtoReader.VARINT)) {
+				id = mEntity.readVarint();
+			}
+			else if (tag == ProtoReader.tag(2, ProtoReader.LENGTH_DELIMITED)) {
+				int length = mEntity.readLength();
+				keysStart = mEntity.getPosition();
+				keysEnd = keysStart + length;
+				mEntity.skipBytes(length);
+			}
+			else if (tag == ProtoReader.tag(3, ProtoReader.LENGTH_DELIMITED)) {
+				int length = mEntity.readLength();
+				valuesStart = mEntity.getPosition();
+				valuesEnd = valuesStart + length;
+				mEntity.skipBytes(length);
+			}
+			else if (tag == ProtoReader.tag(8, ProtoReader.LENGTH_DELIMITED)) {
+				int length = mEntity.readLength();
+				refsStart = mEntity.getPosition();
+				refsEnd = refsStart + length;
+				mEntity.skipBytes(length);
+			}
+			else {
+				mEntity.skipField(tag);
+			}
+		}
+		if (!isTrail(keysStart, keysEnd, valuesStart, valuesEnd)) {
+			return;
+		}
+
+		if (mWayCount == mWayIds.length) {
+			mWayIds = Arrays.copyOf(mWayIds, 2 * mWayCount);
+			mWayRefStarts = Arrays.copyOf(mWayRefStarts, 2 * mWayCount + 1);
+		}
+		mWayRefStarts[mWayCount] = mRefCount;
+		long ref = 0;
+		mFirst.reset(mData, refsStart, refsEnd);
+		while (mFirst.hasMore()) {
+			ref += mFirst.readSignedVarint();
+			if (mRefCount == mRefs.length) {
+				if (mRefCount >= MAX_WAY_NODES) {
+					throw new IOException("PBF extract has more than " + MAX_WAY_NODES + " trail nodes");
+				}
+				mRefs = Arrays.copyOf(mRefs, Math.min(2 * mRefCount, MAX_WAY_NODES));
+			}
+			mRefs[mRefCount++] = ref;
+		}
+		mWayIds[mWayCount++] = id;
+		mWayRefStarts[mWayCount] = mRefCount;
+	}
+
+	/**
+	 * @return true if the packed tags have highway set to one of TRAIL_HIGHWAYS
+	 */
+	private boolean isTrail(int keysStart, int keysEnd, int valuesStart, int valuesEnd) throws IOException {
+		mFirst.reset(mData, keysStart, keysEnd);
+		mSecond.reset(mData, valuesStart, valuesEnd);
+		while (mFirst.hasMore() && mSecond.hasMore()) {
+			int key = (int) mFirst.readVarint();
+			int value = (int) mSecond.readVarint();
+			if (stringEquals(key, mHighwayKey)) {
+				for (byte[] trail : mTrailValues) {
+					if (stringEquals(value, trail)) {
+						return true;
+					}
+				}
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private boolean stringEquals(int index, byte[] expected) {
+		if (index < 0 || index >= mStringCount || mStringEnds[index] - mStringStarts[index] != expected.length) {
+			return false;
+		}
+		int start = mStringStarts[index];
+		for (int i = 0; i < expected.length; ++i) {
+			if (mData[start + i] != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sorts the kept ways' node ids into a lookup table and swaps each way node's id for its index in it, then
+	 * makes room for the coordinates.
+	 */
+	private void indexNodes() {
+		mNodeIds = Arrays.copyOf(mRefs, mRefCount);
+		Arrays.sort(mNodeIds);
+		mNodeCount = 0;
+		for (int i = 0; i < mRefCount; ++i) {
+			if (mNodeCount == 0 || mNodeIds[i] != mNodeIds[mNodeCount - 1]) {
+				mNodeIds[mNodeCount++] = mNodeIds[i];
+			}
+		}
+
+		mRefNodes = new int[mRefCount];
+		for (int i = 0; i < mRefCount; ++i) {
+			mRefNodes[i] = Arrays.binarySearch(mNodeIds, 0, mNodeCount, mRefs[i]);
+		}
+		mRefs = null;
+
+		mLatE6 = new int[mNodeCount];
+		mLonE6 = new int[mNodeCount];
+		Arrays.fill(mLatE6, NO_COORDINATE);
+		Arrays.fill(mLonE6, NO_COORDINATE);
+	}
+
+	/**
+	 * Nodes pass: picks the coordinates of the nodes the kept ways use out of the current block.
+	 */
+	private void readNodeGroups() throws IOException {
+		for (int g = 0; g < mGroupCount; ++g) {
+			mGroup.reset(mData, mGroupStarts[g], mGroupEnds[g]);
+			while (mGroup.hasMore()) {
+				int tag = mGroup.readTag();
+				if (tag == ProtoReader.tag(1, ProtoReader.LENGTH_DELIMITED)) {
+					int length = mGroup.readLength();
+					readNode(mGroup.getPosition(), mGroup.getPosition() + length);
+					mGroup.skipBytes(length);
+				}
+				else if (tag == ProtoReader.tag(2, ProtoReader.LENGTH_DELIMITED)) {
+					int length = mGroup.readLength();
+					readDenseNodes(mGroup.getPosition(), mGroup.getPosition() + length);
+					mGroup.skipBytes(length);
+				}
+				else {
+					mGroup.skipField(tag);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a plain Node message: id = 1, lat = 8 and lon = 9, all sint64.
+	 */
+	private void readNode(int start, int end) throws IOException {
+		long id = 0, lat = 0, lon = 0;
+		mEntity.reset(mData, start, end);
+		while (mEntity.hasMore()) {
+			int tag = mEntity.readTag();
+			if (tag == ProtoReader.tag(1, ProtoReader.VARINT)) {
+				id = mEntity.readSignedVarint();
+			}
+			else if (tag == ProtoReader.tag(8, ProtoReader.VARINT)) {
+				lat = mEntity.readSignedVarint();
+			}
+			else if (tag == ProtoReader.tag(9, ProtoReader.VARINT)) {
+				lon = mEntity.readSignedVarint();
+			}
+			else {
+				mEntity.skipField(tag);
+			}
+		}
+		storeNode(id, lat, lon);
+	}
+
+	/**
+	 * Reads a DenseNodes message: packed ids = 1, lats = 8 and lons = 9, each sint64 and delta coded against the
+	 * node before. The three arrays are walked side by side. Tags and metadata aren't needed and are skipped.
+	 */
+	private void readDenseNodes(int start, int end) throws IOException {
+		int idsStart = 0, idsEnd = 0, latsStart = 0, latsEnd = 0, lonsStart = 0, lonsEnd = 0;
+		mEntity.reset(mData, start, end);
+		while (mEntity.hasMore()) {
+			int tag = mEntity.readTag();
+			if (tag == ProtoReader.tag(1, ProtoReader.LENGTH_DELIMITED)) {
+				int length = mEntity.readLength();
+				idsStart = mEntity.getPosition();
+				idsEnd = idsStart + length;
+				mEntity.skipBytes(length);
+			}
+			else if (tag == ProtoReader.tag(8, ProtoReader.LENGTH_DELIMITED)) {
+				int length = mEntity.readLength();
+				latsStart = mEntity.getPosition();
+				latsEnd = latsStart + length;
+				mEntity.skipBytes(length);
+			}
+			else if (tag == ProtoReader.tag(9, ProtoReader.LENGTH_DELIMITED)) {
+				int length = mEntity.readLength();
+				lonsStart = mEntity.getPosition();
+				lonsEnd = lonsStart + length;
+				mEntity.skipBytes(length);
+			}
+			else {
+				mEntity.skipField(tag);
+			}
+		}
+
+		mFirst.reset(mData, idsStart, idsEnd);
+		mSecond.reset(mData, latsStart, latsEnd);
+		mThird.reset(mData, lonsStart, lonsEnd);
+		long id = 0, lat = 0, lon = 0;
+		while (mFirst.hasMore()) {
+			if (!mSecond.hasMore() || !mThird.hasMore()) {
+				throw new IOException("PBF dense nodes have fewer coordinates than ids");
+			}
+			id += mFirst.readSignedVarint();
+			lat += mSecond.readSignedVarint();
+			lon += mThird.readSignedVarint();
+			storeNode(id, lat, lon);
+		}
+	}
+
+	/**
+	 * Keeps a node's coordinates if a kept way uses it.
+	 */
+	private void storeNode(long id, long lat, long lon) {
+		int node = findNode(id);
+		if (node < 0) {
+			return;
+		}
+		// nanodegrees to E6, rounded
+		mLatE6[node] = (int) Math.round((mLatOffset + mGranularity * lat) / 1000.0);
+		mLonE6[node] = (int) Math.round((mLonOffset + mGranularity * lon) / 1000.0);
+	}
+
+	/**
+	 * Looks up a node id. Extracts list nodes sorted by id, so the lookup walks forward from the last one, and
+	 * only falls back to a binary search when the ids go backwards.
+	 * @return the node's index in mNodeIds, or -1 if no kept way uses it
+	 */
+	private int findNode(long id) {
+		if (id < mLastNodeId) {
+			int found = Arrays.binarySearch(mNodeIds, 0, mNodeCount, id);
+			mNodeCursor = found >= 0 ? found : -found - 1;
+		}
+		mLastNodeId = id;
+		while (mNodeCursor < mNodeCount && mNodeIds[mNodeCursor] < id) {
+			++mNodeCursor;
+		}
+		return mNodeCursor < mNodeCount && mNodeIds[mNodeCursor] == id ? mNodeCursor : -1;
+	}
+
+	/**
+	 * Puts every kept way in each cache tile its bounding box overlaps - the same rule downloaded tiles follow -
+	 * writing one tile at a time. Tiles reaching past the extract's bounding box are skipped.
+	 * @return number of tiles written
+	 */
+	private int writeTiles() throws IOException {
+		// (tile, way) pairs packed into longs and sorted, so each tile's ways end up side by side
+		long[] pairs = new long[Math.max(mWayCount, 16)];
+		int pairCount = 0;
+		int size = WebMercator.TILE_SIZE;
+		int zoom = WayTileCache.TILE_ZOOM;
+		int maxTile = (1 << zoom) - 1;
+
+		// the tiles wholly inside the extract - a tile's edges are at multiples of size
+		int insideFirstX = (WebMercator.longitudeE6ToPixelX(mWestE6, zoom) + size - 1) / size;
+		int insideLastX = Math.min(WebMercator.longitudeE6ToPixelX(mEastE6, zoom) / size - 1, maxTile);
+		int insideFirstY = (WebMercator.latitudeE6ToPixelY(mNorthE6, zoom) + size - 1) / size;
+		int insideLastY = Math.min(WebMercator.latitudeE6ToPixelY(mSouthE6, zoom) / size - 1, maxTile);
+		for (int w = 0; w < mWayCount; ++w) {
+			int minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE;
+			int maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE;
+			int known = 0;
+			for (int i = mWayRefStarts[w]; i < mWayRefStarts[w + 1]; ++i) {
+				int node = mRefNodes[i];
+				if (mLatE6[node] != NO_COORDINATE) {
+					++known;
+					minLat = Math.min(minLat, mLatE6[node]);
+					maxLat = Math.max(maxLat, mLatE6[node]);
+					minLon = Math.min(minLon, mLonE6[node]);
+					maxLon = Math.max(maxLon, mLonE6[node]);
+				}
+			}
+			if (known < 2) {
+				continue; // cut off by the extract's edge
+			}
+			int firstX = Math.max(WebMercator.longitudeE6ToPixelX(minLon, zoom) / size, insideFirstX);
+			int lastX = Math.min(WebMercator.longitudeE6ToPixelX(maxLon, zoom) / size, insideLastX);
+			int firstY = Math.max(WebMercator.latitudeE6ToPixelY(maxLat, zoom) / size, insideFirstY);
+			int lastY = Math.min(WebMercator.latitudeE6ToPixelY(minLat, zoom) / size, insideLastY);
+			for (int y = firstY; y <= lastY; ++y) {
+				for (int x = firstX; x <= lastX; ++x) {
+					if (pairCount == pairs.length) {
+						pairs = Arrays.copyOf(pairs, 2 * pairCount);
+					}
+					pairs[pairCount++] = ((long) ((x << zoom) | y) << 32) | w;
+				}
+			}
+		}
+		Arrays.sort(pairs, 0, pairCount);
+
+		int tiles = 0;
+		ArrayList<Way> ways = new ArrayList<Way>();
+		for (int first = 0; first < pairCount;) {
+			checkInterrupted();
+			int tile = (int) (pairs[first] >>> 32);
+			NodeTable nodes = new NodeTable();
+			ways.clear();
+			int next = first;
+			for (; next < pairCount && (int) (pairs[next] >>> 32) == tile; ++next) {
+				int w = (int) pairs[next];
+				int[] indices = new int[mWayRefStarts[w + 1] - mWayRefStarts[w]];
+				for (int i = 0; i < indices.length; ++i) {
+					int node = mRefNodes[mWayRefStarts[w] + i];
+					indices[i] = nodes.indexOf(mNodeIds[node]);
+					if (mLatE6[node] != NO_COORDINATE) {
+						nodes.setCoordinates(indices[i], mLatE6[node], mLonE6[node]);
+					}
+				}
+				ways.add(new Way(mWayIds[w], indices));
+			}
+			int mask = (1 << zoom) - 1;
+			mCache.putImported(WayTileCache.quadkey(tile >>> zoom, tile & mask, zoom), nodes, ways);
+			++tiles;
+			first = next;
+		}
+		return tiles;
+	}
+
+	private static void checkInterrupted() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("PBF import cancelled");
+		}
+	}
+
+	private static byte[] utf8(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); // every JVM has UTF-8
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+
+/**
+ * Screen pixel coordinates of a stored trace, as packed x,y pairs plus the index of each segment's first point.
+ * The MapTraceCoordinateManager refills one instance of this on every redraw instead of building new lists,
+ * so don't hold on to it - it's only valid until the next call that produced it.
+ */
+public class PixelTrace {
+
+	/** packed x0,y0,x1,y1... screen pixel pairs **/
+	private int[] mPixels = new int[512];
+
+	/** number of valid x,y pairs in mPixels **/
+	private int mPointCount = 0;
+
+	/** index of the first point in each segment **/
+	private int[] mSegmentStarts = new int[16];
+
+	/** number of valid entries in mSegmentStarts **/
+	private int mSegmentCount = 0;
+
+	/**
+	 * Empties the trace and makes sure there is room for the given number of points and segments.
+	 * @param pointCount number of points that will be written
+	 * @param segmentCount number of segments that will be written
+	 */
+	public void reset(int pointCount, int segmentCount) {
+		if (mPixels.length < 2 * pointCount) {
+			mPixels = Arrays.copyOf(mPixels, Math.max(2 * pointCount, 2 * mPixels.length));
+		}
+		if (mSegmentStarts.length < segmentCount) {
+			mSegmentStarts = Arrays.copyOf(mSegmentStarts, Math.max(segmentCount, 2 * mSegmentStarts.length));
+		}
+		mPointCount = pointCount;
+		mSegmentCount = segmentCount;
+	}
+
+	/**
+	 * @param index index of the point in the whole trace
+	 * @param x screen x-coordinate, pixels
+	 * @param y screen y-coordinate, pixels
+	 */
+	public void setPoint(int index, int x, int y) {
+		mPixels[2*index] = x;
+		mPixels[2*index + 1] = y;
+	}
+
+	/**
+	 * @param segment index of the segment
+	 * @param start index of the segment's first point
+	 */
+	public void setSegmentStart(int segment, int start) {
+		mSegmentStarts[segment] = start;
+	}
+
+	public int getPointCount() {
+		return mPointCount;
+	}
+
+	public int getSegmentCount() {
+		return mSegmentCount;
+	}
+
+	/**
+	 * @param segment index of the segment
+	 * @return index of the segment's first point
+	 */
+	public int getSegmentStart(int segment) {
+		return mSegmentStarts[segment];
+	}
+
+	/**
+	 * @param segment index of the segment
+	 * @return index one past the segment's last point
+	 */
+	public int getSegmentEnd(int segment) {
+		return segment + 1 < mSegmentCount ? mSegmentStarts[segment + 1] : mPointCount;
+	}
+
+	public int getX(int index) {
+		return mPixels[2*index];
+	}
+
+	public int getY(int index) {
+		return mPixels[2*index + 1];
+	}
+}
@@ -0,0 +1,148 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.io.IOException;
+
+/**
+ * Cursor over a protocol buffers message in a byte array - just enough of the wire format for OSM PBF. Nothing is
+ * allocated while reading: nested messages and packed arrays are read by pointing another ProtoReader (or this
+ * one, later) at their byte range.
+ */
+public class ProtoReader {
+
+	/** wire types in use **/
+	public static final int VARINT = 0;
+	public static final int FIXED64 = 1;
+	public static final int LENGTH_DELIMITED = 2;
+	public static final int FIXED32 = 5;
+
+	/** the message **/
+	private byte[] mBytes;
+
+	/** next byte to read **/
+	private int mPosition;
+
+	/** one past the message's last byte **/
+	private int mEnd;
+
+	/**
+	 * @param field a field number
+	 * @param wireType its wire type
+	 * @return the tag a field is written with
+	 */
+	public static int tag(int field, int wireType) {
+		return (field << 3) | wireType;
+	}
+
+	/**
+	 * Points the cursor at a message.
+	 * @param bytes buffer holding the message
+	 * @param start the message's first byte
+	 * @param end one past its last byte
+	 */
+	public void reset(byte[] bytes, int start, int end) {
+		mBytes = bytes;
+		mPosition = start;
+		mEnd = end;
+	}
+
+	/**
+	 * @return true if there's more of the message to read
+	 */
+	public boolean hasMore() {
+		return mPosition < mEnd;
+	}
+
+	/**
+	 * @return next byte to read
+	 */
+	public int getPosition() {
+		return mPosition;
+	}
+
+	/**
+	 * @return the next field's tag - see tag(field, wireType)
+	 * @throws IOException if the message is truncated
+	 */
+	public int readTag() throws IOException {
+		return (int) readVarint();
+	}
+
+	/**
+	 * @return the next varint, as written - int64, uint64, int32, uint32 or bool fields
+	 * @throws IOException if the message is truncated or the varint is too long
+	 */
+	public long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (mPosition >= mEnd) {
+				throw new IOException("Protobuf message ends inside a varint");
+			}
+			byte b = mBytes[mPosition++];
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Protobuf varint is too long");
+	}
+
+	/**
+	 * @return the next zigzag varint - sint64 or sint32 fields
+	 * @throws IOException if the message is truncated
+	 */
+	public long readSignedVarint() throws IOException {
+		long value = readVarint();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Reads the length of a length-delimited field, leaving the cursor at its first byte.
+	 * @return the length
+	 * @throws IOException if the field runs past the end of the message
+	 */
+	public int readLength() throws IOException {
+		long length = readVarint();
+		if (length < 0 || length > mEnd - mPosition) {
+			throw new IOException("Protobuf field runs past the end of its message");
+		}
+		return (int) length;
+	}
+
+	/**
+	 * @param count bytes to move the cursor on by
+	 */
+	public void skipBytes(int count) {
+		mPosition += count;
+	}
+
+	/**
+	 * Skips the value of a field whose tag was just read.
+	 * @param tag the field's tag
+	 * @throws IOException if the message is truncated or the wire type isn't known
+	 */
+	public void skipField(int tag) throws IOException {
+		switch (tag & 7) {
+		case VARINT:
+			readVarint();
+			break;
+		case FIXED64:
+			skipChecked(8);
+			break;
+		case LENGTH_DELIMITED:
+			skipBytes(readLength());
+			break;
+		case FIXED32:
+			skipChecked(4);
+			break;
+		default:
+			throw new IOException("Unsupported protobuf wire type " + (tag & 7));
+		}
+	}
+
+	private void skipChecked(int count) throws IOException {
+		if (count > mEnd - mPosition) {
+			throw new IOException("Protobuf field runs past the end of its message");
+		}
+		mPosition += count;
+	}
+}
@@ -0,0 +1,108 @@
+package com.coolhandsoftware.trailtrace;
+
+/**
+ * Keeps the trail network of the last region snapped in - its TrailGraph, WaySegmentIndex and ContractionHierarchy -
+ * in memory, so the next snap in the region doesn't read all of the region's tiles and build the graph and index
+ * again. A kept network is only used while WayTileCache.getRegionVersion says none of the region's tiles changed.
+ *
+ * The index and the hierarchy keep scratch state between queries, so a snap takes the network out while it
+ * matches and puts it back after. A second snap in the region meanwhile builds its own.
+ *
+ * This class is a singleton, like WayTileCache. Only one region is kept - a region's network can be big.
+ */
+public class RegionGraphCache {
+
+	/**
+	 * A region's trail network, built from all of the region's cached ways.
+	 */
+	public static class RegionGraph {
+		/** the region's quadkey **/
+		public final String mRegion;
+
+		/** WayTileCache.getRegionVersion of the region when its ways were read **/
+		public final int mVersion;
+
+		/** the graph **/
+		public final TrailGraph mGraph;
+
+		/** index over the same ways as the graph **/
+		public final WaySegmentIndex mIndex;
+
+		/** the region's saved hierarchy, or null if there was none fitting the graph **/
+		public ContractionHierarchy mHierarchy;
+
+		RegionGraph(String region, int version, TrailGraph graph, WaySegmentIndex index) {
+			mRegion = region;
+			mVersion = version;
+			mGraph = graph;
+			mIndex = index;
+		}
+	}
+
+	/** the network that isn't in use, or null **/
+	private RegionGraph mKept = null;
+
+	/** for singleton pattern **/
+	private static RegionGraphCache mSingleton = null;
+
+	/** for singleton pattern **/
+	public static synchronized RegionGraphCache getInstance() {
+		if (mSingleton == null) {
+			mSingleton = new RegionGraphCache();
+		}
+		return mSingleton;
+	}
+
+	private RegionGraphCache() {
+	}
+
+	/**
+	 * Takes a region's network for a snap to use - the kept one if it's still up to date, otherwise a new one read
+	 * from the cache. Either way the region's saved hierarchy is attached if the network has none yet.
+	 * @param region the region's quadkey
+	 * @param cache where the region's ways and hierarchy are read from
+	 * @return the network, to be handed to putBack once the snap is done with it
+	 */
+	public RegionGraph take(String region, WayTileCache cache) {
+		RegionGraph graph;
+		synchronized (this) {
+			graph = mKept;
+			if (graph != null && graph.mRegion.equals(region)) {
+				mKept = null;
+			}
+			else {
+				graph = null;
+			}
+		}
+		if (graph == null || graph.mVersion != cache.getRegionVersion(region)) {
+			// read the version first - if a tile changes while the ways are read, the network is stale next time
+			int version = cache.getRegionVersion(region);
+			WaySet ways = new WaySet();
+			cache.loadRegion(region, ways);
+			graph = new RegionGraph(region, version, new TrailGraph(ways.getNodeTable(), ways.getWays()),
+					new WaySegmentIndex(ways.getNodeTable(), ways.getWays()));
+		}
+		if (graph.mHierarchy == null) {
+			graph.mHierarchy = ContractionHierarchy.loadIfPresent(cache.getHierarchyFile(region), graph.mGraph);
+		}
+		return graph;
+	}
+
+	/**
+	 * @param region a region's quadkey
+	 * @param version the region's current version, see WayTileCache.getRegionVersion
+	 * @return true if an up to date network of the region is kept, with a hierarchy - it can be snapped in even
+	 * if the hierarchy's file has been evicted since
+	 */
+	public synchronized boolean hasHierarchy(String region, int version) {
+		return mKept != null && mKept.mRegion.equals(region) && mKept.mVersion == version && mKept.mHierarchy != null;
+	}
+
+	/**
+	 * Keeps a network a snap is done with for the next one, in place of whatever was kept.
+	 * @param graph a network from take
+	 */
+	public synchronized void putBack(RegionGraph graph) {
+		mKept = graph;
+	}
+}
@@ -1,6 +1,7 @@
 package com.coolhandsoftware.trailtrace;
 
-import java.util.ArrayList;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
 import java.util.NoSuchElementException;
 
 import com.coolhandsoftware.topogen.R;
@@ -9,13 +10,13 @@ import android.app.Fragment;
 import android.graphics.Point;
 import android.os.Build;
 import android.os.Bundle;
-import android.util.Pair;
 import android.view.Display;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.ImageButton;
+import android.widget.TextView;
 
 /**
  * This fragment allows the user to trace a raw route on the screen. It reports coordinates traced
@@ -33,6 +34,12 @@ public class RouteDrawFragment extends Fragment {
 	/** the recipient of callbacks **/
 	private RouteDrawView.IRouteDrawReceiver mReceiver;
 	
+	/** shows the length of the trace while the user draws it **/
+	private TextView mDistanceText;
+	
+	/** formats the live distance the same way the measured route's info window does **/
+	private DecimalFormat mDistanceFormat = new DecimalFormat("##.##");
+	
 	/**
 	 * Stores reference to view after inflating but before returning.
 	 */
@@ -41,31 +48,45 @@ public class RouteDrawFragment extends Fragment {
 	{
 		View layout = inflater.inflate(R.layout.route_draw_fragment, container, false);
 		mRouteDrawView = (RouteDrawView) layout.findViewById(R.id.route_draw_view);
+		mDistanceText = (TextView) layout.findViewById(R.id.route_distance_text);
+		mDistanceFormat.setRoundingMode(RoundingMode.DOWN);
 		return layout;
 	}
 	
 	/**
-	 * Draws route onto the screen from pairs of pixel coordinates. Used to refresh trace state from elsewhere.
-	 * @param storedLineSegments the list of list of points to be stored - each inner list is a segment
+	 * Updates the distance readout in the corner of the drawing screen.
+	 * @param miles length of the trace so far
 	 */
-	public void drawRouteFromPixels(ArrayList<ArrayList<Point>> storedLineSegments) {
+	public void showLiveDistance(float miles) {
+		mDistanceText.setText(mDistanceFormat.format(miles) + " miles");
+	}
+	
+	/**
+	 * Draws route onto the screen from pixel coordinates. Used to refresh trace state from elsewhere.
+	 * @param storedLineSegments the points to be drawn, in screen pixels, split into segments
+	 */
+	public void drawRouteFromPixels(PixelTrace storedLineSegments) {
 
 		mRouteDrawView.clearTracedRoute();
 		
-		for (int x = 0; x < storedLineSegments.size(); ++x) {
-			ArrayList<Point> segment = storedLineSegments.get(x);
-			mRouteDrawView.moveLineTo(segment.get(0).x, segment.get(0).y); // move the paintbrush to the first point
+		for (int x = 0; x < storedLineSegments.getSegmentCount(); ++x) {
+			int start = storedLineSegments.getSegmentStart(x);
+			int end = storedLineSegments.getSegmentEnd(x);
+			if (start == end) {
+				continue; // nothing was stored in this segment
+			}
 			
-			for (int y = 1; y < segment.size(); ++ y) {
-				mRouteDrawView.drawLineTo(segment.get(y).x, segment.get(y).y); // draw the line to the next point
+			// move the paintbrush to the first point
+			mRouteDrawView.moveLineTo(storedLineSegments.getX(start), storedLineSegments.getY(start));
+			
+			for (int y = start + 1; y < end; ++ y) {
+				mRouteDrawView.drawLineTo(storedLineSegments.getX(y), storedLineSegments.getY(y)); // draw the line to the next point
 			}
 		
-			Pair<Point, Point> lastTwoPoints;
-			Point first = segment.get(segment.size()-2);
-			Point second = segment.get(segment.size()-1);
-			lastTwoPoints = new Pair<Point, Point>(first, second);
-			//mRouteDrawView.drawArrowAtEndOf(lastTwoPoints);
+			//mRouteDrawView.drawArrowAtEndOf(new Pair<Point, Point>(second to last point, last point));
 		}
+		
+		mRouteDrawView.finishStroke(); // rasterize the last segment too, so it isn't re-stroked every frame
 	}
 	
 	/**
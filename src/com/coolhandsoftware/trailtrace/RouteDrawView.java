@@ -1,10 +1,12 @@
 package com.coolhandsoftware.trailtrace;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.util.Pair;
 import android.view.MotionEvent;
@@ -25,22 +27,51 @@ public class RouteDrawView extends View {
 	/** holds the color/style info for our trace, as set in ctor **/
 	private Paint mPaint = new Paint();
 	
-	/** the path object we pass with our paint object to drawPath **/
+	/** the live stroke (the one the finger is still drawing) - finished strokes are rasterized into mCommittedBitmap **/
 	private Path mPath = new Path();    
 	
+	/** every finished stroke, rasterized once, so a frame costs the same no matter how much has been drawn **/
+	private Bitmap mCommittedBitmap;
+	
+	/** draws finished strokes into mCommittedBitmap **/
+	private Canvas mCommittedCanvas;
+	
+	/** end of the live stroke, in pixels - where the next segment's dirty rect starts from **/
+	private int mLastX, mLastY;
+	
+	/** reused to invalidate only the area touched by newly added segments **/
+	private Rect mDirtyRect = new Rect();
+	
 	/** whatever got passed in the ctor - will receive x,y coordinate reports **/
 	private IRouteDrawReceiver mReceiver;
 	
 	/** size of arrows put on end of each segment after user traces them - re-calculated in onResume from activity size **/
 	public int arrowSize = 25;
 	
+	/** number of x,y pairs the sample buffer starts out holding - grows if a MotionEvent carries more history than this **/
+	private static final int INITIAL_SAMPLE_CAPACITY = 32;
+	
+	/** reused for every MotionEvent - packed x0,y0,x1,y1... pixel pairs drained from the event's history **/
+	private int[] mSampleBuffer = new int[2 * INITIAL_SAMPLE_CAPACITY];
+	
 	/**
 	 * This is the interface the RouteDrawView calls through when
 	 * it has finished rendering a drawn route from a touch event 
 	 * and needs to notify its parent Activity with its coordinates.
 	 */
 	public interface IRouteDrawReceiver {
-		public abstract void storePixelPoint(Point coordinate, boolean isNewSegment);
+		/**
+		 * Receives every pixel sample from one MotionEvent (historical samples first, current one last).
+		 * The buffer is reused for the next event, so copy out whatever you need before returning.
+		 * @param coordinates packed x,y pixel pairs - only the first 2*count entries are valid
+		 * @param count number of x,y pairs in the buffer
+		 * @param isNewSegment true if the first pair starts a new segment (finger just went down)
+		 */
+		public abstract void storePixelPoints(int[] coordinates, int count, boolean isNewSegment);
+		/**
+		 * Called when the finger goes up, after the stroke's last storePixelPoints.
+		 */
+		public abstract void finishPixelStroke();
 		public abstract void onEraseButtonPressed();
 		public abstract void onMeasureButtonPressed();
 	}
@@ -89,13 +120,66 @@ public class RouteDrawView extends View {
 	}
 	
 	/**
-	 * this is called when the view is being rendered to the screen; it draws our path
+	 * this is called when the view is being rendered to the screen; it draws the finished strokes from
+	 * the cached bitmap, and only strokes the live path
 	 */
 	@Override
 	protected void onDraw(Canvas canvas) {
+		if (mCommittedBitmap != null) {
+			canvas.drawBitmap(mCommittedBitmap, 0, 0, null);
+		}
 		canvas.drawPath(mPath, mPaint);
 	}
 	
+	/**
+	 * (Re)builds the bitmap finished strokes are cached in, keeping whatever was already rasterized.
+	 */
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		if (w <= 0 || h <= 0) {
+			return;
+		}
+		
+		Bitmap oldBitmap = mCommittedBitmap;
+		mCommittedBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+		mCommittedCanvas = new Canvas(mCommittedBitmap);
+		if (oldBitmap != null) {
+			mCommittedCanvas.drawBitmap(oldBitmap, 0, 0, null);
+			oldBitmap.recycle();
+		}
+		
+		// anything drawn before we had a size is still sitting in the live path
+		commitLiveStroke();
+	}
+	
+	/**
+	 * Rasterizes the live stroke into the cached bitmap and starts an empty one. If the view hasn't been
+	 * sized yet there's no bitmap, so the stroke stays live until onSizeChanged commits it.
+	 */
+	private void commitLiveStroke() {
+		if (mCommittedCanvas != null && !mPath.isEmpty()) {
+			mCommittedCanvas.drawPath(mPath, mPaint);
+			mPath.reset();
+		}
+	}
+	
+	/**
+	 * Invalidates just the rectangle covering the live stroke's end and the given samples, padded by the
+	 * stroke width - the rest of the screen doesn't change while the finger moves.
+	 * @param coordinates packed x,y pixel pairs that were just added to the live stroke
+	 * @param count number of pairs
+	 */
+	private void invalidateNewSegments(int[] coordinates, int count) {
+		mDirtyRect.set(mLastX, mLastY, mLastX, mLastY);
+		for (int i = 0; i < count; ++i) {
+			mDirtyRect.union(coordinates[2*i], coordinates[2*i + 1]);
+		}
+		int padding = (int) Math.ceil(mPaint.getStrokeWidth()) + 1;
+		mDirtyRect.inset(-padding, -padding);
+		invalidate(mDirtyRect);
+	}
+	
 	/**
 	 * Allows the RouteDrawView to handle touch events, for drawing
 	 * the traced routes on the screen and reporting them to the parent 
@@ -108,28 +192,62 @@ public class RouteDrawView extends View {
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
 		// called when the device registers a single touch event on this view
-		int x = Math.round(event.getX());
-		int y = Math.round(event.getY());
+		int count;
 						
 		switch(event.getAction()) {
 		case MotionEvent.ACTION_DOWN: 
-			mPath.moveTo(x, y);
-			invalidate();
-			mReceiver.storePixelPoint(new Point(x, y), true);
+			count = drainSamples(event);
+			commitLiveStroke();
+			mPath.moveTo(mSampleBuffer[0], mSampleBuffer[1]);
+			mLastX = mSampleBuffer[0];
+			mLastY = mSampleBuffer[1];
+			invalidateNewSegments(mSampleBuffer, count);
+			mReceiver.storePixelPoints(mSampleBuffer, count, true);
 			return true;
 		case MotionEvent.ACTION_MOVE:		
-			mPath.lineTo(x, y);
-			invalidate();
-			mReceiver.storePixelPoint(new Point(x, y), false);
+			count = drainSamples(event);
+			for (int i = 0; i < count; ++i) {
+				mPath.lineTo(mSampleBuffer[2*i], mSampleBuffer[2*i + 1]);
+			}
+			invalidateNewSegments(mSampleBuffer, count);
+			mLastX = mSampleBuffer[2*(count - 1)];
+			mLastY = mSampleBuffer[2*(count - 1) + 1];
+			mReceiver.storePixelPoints(mSampleBuffer, count, false);
 			return true;
 		case MotionEvent.ACTION_UP:
-			invalidate();
+			// the stroke looks the same rasterized, so there's nothing new to invalidate
+			commitLiveStroke();
+			mReceiver.finishPixelStroke();
 			return true;
 		default:
 			return false;
 		}
 	}
 	
+	/**
+	 * Copies every sample in the event into mSampleBuffer - Android batches the ACTION_MOVE samples it
+	 * collected since the last frame into the event's history, so reading only getX()/getY() would drop them.
+	 * @param event the event to read samples from
+	 * @return number of x,y pairs now in mSampleBuffer (history first, current position last)
+	 */
+	private int drainSamples(MotionEvent event) {
+		int historySize = event.getHistorySize();
+		int count = historySize + 1;
+		
+		if (mSampleBuffer.length < 2 * count) {
+			mSampleBuffer = new int[Math.max(2 * count, 2 * mSampleBuffer.length)];
+		}
+		
+		for (int h = 0; h < historySize; ++h) {
+			mSampleBuffer[2*h] = Math.round(event.getHistoricalX(h));
+			mSampleBuffer[2*h + 1] = Math.round(event.getHistoricalY(h));
+		}
+		mSampleBuffer[2*historySize] = Math.round(event.getX());
+		mSampleBuffer[2*historySize + 1] = Math.round(event.getY());
+		
+		return count;
+	}
+	
 	/**
 	 * Draws an arrow 30 degrees off the line segment defined by the two points in the pair.
 	 * The tip of the arrow is the second point in the pair.
@@ -261,6 +379,9 @@ public class RouteDrawView extends View {
 	 */
 	public void clearTracedRoute() {
 		mPath.reset();
+		if (mCommittedBitmap != null) {
+			mCommittedBitmap.eraseColor(Color.TRANSPARENT);
+		}
 		//System.out.println("clearing traced route");
 		invalidate();
 	}
@@ -271,12 +392,21 @@ public class RouteDrawView extends View {
 	 * @param y y-value of pixel coordinate
 	 */
 	public void moveLineTo(float x, float y) {
+		commitLiveStroke(); // a move starts a new stroke, so the previous one is finished
 		mPath.moveTo(x,y);
 		//System.out.println("moved line to " + x + ", " + y);
 		invalidate();
 	}
 	
 	
+	/**
+	 * Rasterizes whatever has been drawn with moveLineTo/drawLineTo into the cached bitmap.
+	 */
+	public void finishStroke() {
+		commitLiveStroke();
+		invalidate();
+	}
+	
 	/**
 	 * Draw the line on the map from wherever it currently is, to these parameterized coordinates.
 	 * @param x x-value of pixel coordinate
@@ -0,0 +1,82 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.ArrayList;
+
+import org.osmdroid.util.GeoPoint;
+
+/**
+ * Level-of-detail pyramid for a measured route: one pre-simplified point list per map zoom level, built once
+ * when the route is measured, so the overlay can swap lists when the zoom changes instead of drawing every
+ * traced point at every zoom.
+ *
+ * Levels are built from the finest down, each one simplified from the level above it with a tolerance of
+ * LEVEL_TOLERANCE_PIXELS at its own zoom. Tolerances halve with every step up, so the error piled up across all
+ * the levels above stays under twice that - still under half a pixel at the level's zoom. Since every level
+ * starts from an already thinned list, building the whole pyramid costs little more than building the finest
+ * level.
+ */
+public class RouteLodPyramid {
+
+	/** finest zoom level with its own simplified list - above this the full route is used **/
+	public static final int MAX_LOD_ZOOM = 18;
+
+	/** each level is simplified from the one above it with this tolerance, in pixels at the level's zoom **/
+	private static final double LEVEL_TOLERANCE_PIXELS = 0.25;
+
+	/** every point of the route, as one continuous list **/
+	private final ArrayList<GeoPoint> mFullResolution;
+
+	/** mLevels[z] is the route simplified for zoom level z **/
+	private final ArrayList<ArrayList<GeoPoint>> mLevels;
+
+	/**
+	 * Builds every level of the pyramid.
+	 * @param points the measured points - only read
+	 */
+	public RouteLodPyramid(PackedTrace points) {
+		mFullResolution = toGeoPoints(points);
+		mLevels = new ArrayList<ArrayList<GeoPoint>>(MAX_LOD_ZOOM + 1);
+		for (int zoom = 0; zoom <= MAX_LOD_ZOOM; ++zoom) {
+			mLevels.add(null);
+		}
+
+		double latitude = points.getPointCount() > 0 ? points.getLatitudeE6(0) / 1e6 : 0;
+		RouteSimplifier simplifier = new RouteSimplifier();
+		PackedTrace level = points;
+		for (int zoom = MAX_LOD_ZOOM; zoom >= 0; --zoom) {
+			level = simplifier.simplify(level, LEVEL_TOLERANCE_PIXELS * WebMercator.groundResolution(latitude, zoom));
+			mLevels.set(zoom, toGeoPoints(level));
+		}
+	}
+
+	/**
+	 * @param zoom the map's zoom level
+	 * @return the point list to draw at that zoom - shared, don't change it
+	 */
+	public ArrayList<GeoPoint> getLevel(int zoom) {
+		if (zoom > MAX_LOD_ZOOM) {
+			return mFullResolution;
+		}
+		return mLevels.get(Math.max(zoom, 0));
+	}
+
+	/**
+	 * @return every point of the route, unsimplified - shared, don't change it
+	 */
+	public ArrayList<GeoPoint> getFullResolution() {
+		return mFullResolution;
+	}
+
+	/**
+	 * Helper function to turn every segment of a packed trace into a single continuous list of GeoPoints.
+	 * @param points the packed trace
+	 * @return one list
+	 */
+	private static ArrayList<GeoPoint> toGeoPoints(PackedTrace points) {
+		ArrayList<GeoPoint> result = new ArrayList<GeoPoint>(points.getPointCount());
+		for (int x = 0; x < points.getPointCount(); ++x) {
+			result.add(points.getGeoPoint(x, null));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,173 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+
+/**
+ * Douglas-Peucker line simplification for traces, with the tolerance given in ground meters. Every point the
+ * simplified line leaves out lies within the tolerance of it, so with a tolerance under a pixel's worth of
+ * ground at some zoom level, the simplified trace looks the same as the original at that zoom.
+ *
+ * The recursion is unrolled onto an explicit stack of index ranges, so a long segment can't overflow the thread's
+ * stack, and the working arrays are kept between calls. That makes an instance cheap to reuse but not thread
+ * safe - give each thread its own.
+ *
+ * Each segment is simplified on its own and always keeps its first and last point.
+ */
+public class RouteSimplifier {
+
+	/** meters per degree of latitude, on the sphere WebMercator uses **/
+	private static final double METERS_PER_DEGREE = Math.toRadians(1) * WebMercator.EARTH_RADIUS_METERS;
+
+	/** local x-coordinates of the segment being simplified, meters **/
+	private double[] mX = new double[256];
+
+	/** local y-coordinates of the segment being simplified, meters **/
+	private double[] mY = new double[256];
+
+	/** mKeep[i] is true if point i of the segment being simplified survives **/
+	private boolean[] mKeep = new boolean[256];
+
+	/** pairs of first,last indices still to be looked at **/
+	private int[] mStack = new int[64];
+
+	public RouteSimplifier() {
+
+	}
+
+	/**
+	 * Simplifies every segment of a trace into a new one.
+	 * @param trace the trace to simplify - not changed
+	 * @param toleranceMeters the farthest a dropped point may lie from the simplified line
+	 * @return a new trace holding the surviving points, with empty segments left out
+	 */
+	public PackedTrace simplify(PackedTrace trace, double toleranceMeters) {
+		PackedTrace result = new PackedTrace();
+		for (int s = 0; s < trace.getSegmentCount(); ++s) {
+			int start = trace.getSegmentStart(s);
+			int end = trace.getSegmentEnd(s);
+			if (start == end) {
+				continue;
+			}
+			markSegment(trace, start, end, toleranceMeters);
+			result.startSegment();
+			for (int i = start; i < end; ++i) {
+				if (mKeep[i - start]) {
+					result.addPoint(trace.getLatitudeE6(i), trace.getLongitudeE6(i));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Simplifies the last segment of a trace in place.
+	 * @param trace the trace to simplify
+	 * @param toleranceMeters the farthest a dropped point may lie from the simplified line
+	 * @return number of points removed
+	 */
+	public int simplifyLastSegment(PackedTrace trace, double toleranceMeters) {
+		int segment = trace.getSegmentCount() - 1;
+		if (segment < 0) {
+			return 0;
+		}
+		int start = trace.getSegmentStart(segment);
+		int end = trace.getSegmentEnd(segment);
+		if (end - start < 3) {
+			return 0;
+		}
+		markSegment(trace, start, end, toleranceMeters);
+		return trace.retainLastSegmentPoints(mKeep);
+	}
+
+	/**
+	 * Runs Douglas-Peucker over one segment, leaving the result in mKeep.
+	 * @param trace the trace holding the segment
+	 * @param start index of the segment's first point
+	 * @param end index one past the segment's last point
+	 * @param toleranceMeters the farthest a dropped point may lie from the simplified line
+	 * @return number of points kept
+	 */
+	private int markSegment(PackedTrace trace, int start, int end, double toleranceMeters) {
+		int count = end - start;
+		if (mKeep.length < count) {
+			int capacity = Math.max(count, 2 * mKeep.length);
+			mX = new double[capacity];
+			mY = new double[capacity];
+			mKeep = new boolean[capacity];
+		}
+		Arrays.fill(mKeep, 0, count, false);
+		if (count < 3) {
+			Arrays.fill(mKeep, 0, count, true);
+			return count;
+		}
+
+		// flat local coordinates around the segment's first point - a trail segment is small enough for that
+		int originLatE6 = trace.getLatitudeE6(start);
+		int originLonE6 = trace.getLongitudeE6(start);
+		double metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(originLatE6 / 1e6));
+		for (int i = 0; i < count; ++i) {
+			mX[i] = (trace.getLongitudeE6(start + i) - originLonE6) / 1e6 * metersPerDegreeLon;
+			mY[i] = (trace.getLatitudeE6(start + i) - originLatE6) / 1e6 * METERS_PER_DEGREE;
+		}
+
+		double toleranceSquared = toleranceMeters * toleranceMeters;
+		int kept = 2;
+		mKeep[0] = true;
+		mKeep[count - 1] = true;
+		int stackSize = 0;
+		mStack[stackSize++] = 0;
+		mStack[stackSize++] = count - 1;
+
+		while (stackSize > 0) {
+			int last = mStack[--stackSize];
+			int first = mStack[--stackSize];
+
+			double farthestSquared = -1;
+			int farthest = -1;
+			for (int i = first + 1; i < last; ++i) {
+				double distanceSquared = distanceToSegmentSquared(i, first, last);
+				if (distanceSquared > farthestSquared) {
+					farthestSquared = distanceSquared;
+					farthest = i;
+				}
+			}
+
+			if (farthestSquared > toleranceSquared) {
+				mKeep[farthest] = true;
+				++kept;
+				if (stackSize + 4 > mStack.length) {
+					mStack = Arrays.copyOf(mStack, 2 * mStack.length);
+				}
+				if (farthest - first > 1) {
+					mStack[stackSize++] = first;
+					mStack[stackSize++] = farthest;
+				}
+				if (last - farthest > 1) {
+					mStack[stackSize++] = farthest;
+					mStack[stackSize++] = last;
+				}
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * @param point index of the point being measured
+	 * @param first index of the line segment's first point
+	 * @param last index of the line segment's last point
+	 * @return squared distance in meters from the point to the line segment
+	 */
+	private double distanceToSegmentSquared(int point, int first, int last) {
+		double dx = mX[last] - mX[first];
+		double dy = mY[last] - mY[first];
+		double px = mX[point] - mX[first];
+		double py = mY[point] - mY[first];
+		double lengthSquared = dx * dx + dy * dy;
+		if (lengthSquared > 0) {
+			double t = Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+			px -= t * dx;
+			py -= t * dy;
+		}
+		return px * px + py * py;
+	}
+}
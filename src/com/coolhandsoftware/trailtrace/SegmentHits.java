@@ -0,0 +1,112 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+
+/**
+ * Results of a WaySegmentIndex query: for each segment found, its id, how far it is from the query point, and the
+ * foot point (the spot on the segment closest to the query point). Meant to be reused from query to query, so
+ * the arrays are only ever grown.
+ */
+public class SegmentHits {
+
+	/** id of each segment found **/
+	private int[] mSegments = new int[16];
+
+	/** distance from the query point to each segment, meters **/
+	private double[] mDistances = new double[16];
+
+	/** where along each segment the foot point is, 0 at its first node and 1 at its second **/
+	private double[] mFractions = new double[16];
+
+	/** foot point latitudes, E6 format **/
+	private int[] mFootLatE6 = new int[16];
+
+	/** foot point longitudes, E6 format **/
+	private int[] mFootLonE6 = new int[16];
+
+	/** number of valid hits **/
+	private int mCount = 0;
+
+	public SegmentHits() {
+
+	}
+
+	/**
+	 * Forgets every hit.
+	 */
+	public void clear() {
+		mCount = 0;
+	}
+
+	/**
+	 * Adds a hit at the end.
+	 */
+	void add(int segment, double distance, double fraction, int footLatE6, int footLonE6) {
+		ensureCapacity(mCount + 1);
+		set(mCount++, segment, distance, fraction, footLatE6, footLonE6);
+	}
+
+	/**
+	 * Adds a hit so the hits stay sorted nearest first, keeping at most limit of them.
+	 */
+	void insertSorted(int limit, int segment, double distance, double fraction, int footLatE6, int footLonE6) {
+		if (mCount == limit && distance >= mDistances[mCount - 1]) {
+			return;
+		}
+		int position = Math.min(mCount, limit - 1);
+		ensureCapacity(position + 1);
+		while (position > 0 && mDistances[position - 1] > distance) {
+			mSegments[position] = mSegments[position - 1];
+			mDistances[position] = mDistances[position - 1];
+			mFractions[position] = mFractions[position - 1];
+			mFootLatE6[position] = mFootLatE6[position - 1];
+			mFootLonE6[position] = mFootLonE6[position - 1];
+			--position;
+		}
+		set(position, segment, distance, fraction, footLatE6, footLonE6);
+		mCount = Math.min(mCount + 1, limit);
+	}
+
+	private void set(int index, int segment, double distance, double fraction, int footLatE6, int footLonE6) {
+		mSegments[index] = segment;
+		mDistances[index] = distance;
+		mFractions[index] = fraction;
+		mFootLatE6[index] = footLatE6;
+		mFootLonE6[index] = footLonE6;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (mSegments.length < capacity) {
+			int length = Math.max(capacity, 2 * mSegments.length);
+			mSegments = Arrays.copyOf(mSegments, length);
+			mDistances = Arrays.copyOf(mDistances, length);
+			mFractions = Arrays.copyOf(mFractions, length);
+			mFootLatE6 = Arrays.copyOf(mFootLatE6, length);
+			mFootLonE6 = Arrays.copyOf(mFootLonE6, length);
+		}
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public int getSegment(int index) {
+		return mSegments[index];
+	}
+
+	public double getDistance(int index) {
+		return mDistances[index];
+	}
+
+	public double getFraction(int index) {
+		return mFractions[index];
+	}
+
+	public int getFootLatitudeE6(int index) {
+		return mFootLatE6[index];
+	}
+
+	public int getFootLongitudeE6(int index) {
+		return mFootLonE6[index];
+	}
+}
@@ -0,0 +1,141 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.ArrayList;
+
+import org.osmdroid.util.GeoPoint;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Keeps at most one snap running, and only ever for the trace as it is now.
+ *
+ * Every change to the stored trace bumps MapTraceCoordinateManager's trace version, and each snap remembers the
+ * version it was started for:
+ *
+ * - asking to snap a version that's already being snapped joins the running snap instead of starting another
+ *   download, so impatient double taps cost nothing
+ * - asking to snap a newer version cancels the running snap and starts over
+ * - a change to the trace while a snap runs cancels the snap, since its result would no longer fit
+ * - a result is only stored if the trace is still at the version it was snapped from
+ *
+ * Snaps run on AsyncTask's thread pool rather than its serial executor, so a cancelled snap stuck in a network
+ * read doesn't hold up the one replacing it. requestSnap and the results run on the UI thread; onTraceChanged
+ * can be called from any thread.
+ */
+public class SnapCoordinator {
+
+	/** whose trace is snapped **/
+	private final MapTraceCoordinateManager mManager;
+
+	/** the running snap, null if there isn't one - UI thread only **/
+	private Request mInFlight = null;
+
+	/** activity to refresh when a snapped route is stored, null if no snap is running **/
+	private MapActivity mActivity = null;
+
+	/** true while a snap is running, for onTraceChanged's quick check from other threads **/
+	private volatile boolean mSnapping = false;
+
+	/** true while a stale check is waiting to run on the UI thread, so a burst of points posts it only once **/
+	private volatile boolean mStaleCheckPosted = false;
+
+	/** used to run stale checks on the UI thread **/
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	/** cancels the running snap if the trace moved on since it started **/
+	private final Runnable mStaleCheck = new Runnable() {
+		@Override
+		public void run() {
+			mStaleCheckPosted = false;
+			if (mInFlight != null && mInFlight.mVersion != mManager.getTraceVersion()) {
+				Log.d("SnapCoordinator", "Trace changed, cancelling snap of version " + mInFlight.mVersion);
+				cancelInFlight();
+			}
+		}
+	};
+
+	/**
+	 * One snap of one trace version - receives its task's result.
+	 */
+	private class Request implements GetMapXMLAsyncTask.ISnappedRouteReceiver {
+		/** trace version being snapped **/
+		final int mVersion;
+
+		/** the task doing it **/
+		GetMapXMLAsyncTask mTask;
+
+		Request(int version) {
+			mVersion = version;
+		}
+
+		@Override
+		public void storeSnappedRoute(ArrayList<GeoPoint> route) {
+			if (mInFlight != this) {
+				return; // superseded - a cancelled task's result can still arrive if it finished first
+			}
+			MapActivity activity = mActivity;
+			finish();
+			if (mManager.storeSnappedRoute(route, mVersion) && activity != null) {
+				activity.refreshTraceOnMap();
+			}
+		}
+	}
+
+	/**
+	 * @param manager whose trace is snapped
+	 */
+	public SnapCoordinator(MapTraceCoordinateManager manager) {
+		mManager = manager;
+	}
+
+	/**
+	 * UI thread only: snaps the stored trace, unless a snap of the same trace is already running.
+	 * @param context used to check for a network connection and find the way cache
+	 * @param activity gets its map refreshed once the snapped route is stored
+	 */
+	public void requestSnap(Context context, MapActivity activity) {
+		// the version is read first, so if the trace changes in between, the snapshot is newer than the version
+		// and its result is thrown away rather than stored under the wrong version
+		int version = mManager.getTraceVersion();
+		mActivity = activity;
+		if (mInFlight != null) {
+			if (mInFlight.mVersion == version) {
+				Log.d("SnapCoordinator", "Snap of version " + version + " already running, joining it");
+				return;
+			}
+			cancelInFlight();
+			mActivity = activity;
+		}
+
+		Request request = new Request(version);
+		request.mTask = new GetMapXMLAsyncTask(context, request);
+		mInFlight = request;
+		mSnapping = true;
+		request.mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, mManager.getMeasuredPoints(null));
+	}
+
+	/**
+	 * Any thread: tells the coordinator the trace changed. Cheap when no snap is running.
+	 */
+	public void onTraceChanged() {
+		if (mSnapping && !mStaleCheckPosted) {
+			mStaleCheckPosted = true;
+			mMainHandler.post(mStaleCheck);
+		}
+	}
+
+	private void cancelInFlight() {
+		mInFlight.mTask.cancel(true);
+		finish();
+	}
+
+	private void finish() {
+		mInFlight = null;
+		mActivity = null;
+		mSnapping = false;
+	}
+}
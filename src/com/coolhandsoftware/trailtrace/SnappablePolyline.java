@@ -6,6 +6,10 @@ import org.osmdroid.views.MapView;
 import org.osmdroid.views.Projection;
 
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Path;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.view.MotionEvent;
 
 public class SnappablePolyline extends Polyline {
@@ -16,11 +20,97 @@ public class SnappablePolyline extends Polyline {
 	
 	IPolylineDoubleTapReceiver mReceiver;
 	
+	/** pre-simplified point lists to pick from by zoom level, can be null **/
+	private RouteLodPyramid mLodPyramid = null;
+	
+	/** zoom level of the point list currently set on the polyline, -1 if none **/
+	private int mLodZoom = -1;
+	
+	/** chunked, projected copy of the current level, used to draw only what's on screen **/
+	private CulledRoutePath mCulledPath = new CulledRoutePath();
+	
+	/** refilled with the visible part of the route on every draw **/
+	private Path mVisiblePath = new Path();
+	
+	/** reused to read the viewport's offset out of the projection **/
+	private Point mScratchPoint = new Point();
+	
+	/** part of the canvas that ends up on screen, refilled on every draw **/
+	private Rect mVisibleRect = new Rect();
+	
 	public SnappablePolyline(Context ctx, IPolylineDoubleTapReceiver receiver) {
 		super(ctx);
 		mReceiver = receiver;
 	}
 	
+	/**
+	 * Gives the polyline a level-of-detail pyramid to draw from - from then on it swaps to the matching level
+	 * whenever the map's zoom level changes, instead of being given points with setPoints.
+	 * @param pyramid the route's pyramid
+	 * @param zoom the map's current zoom level
+	 */
+	public void setLodPyramid(RouteLodPyramid pyramid, int zoom) {
+		mLodPyramid = pyramid;
+		switchLevel(zoom);
+	}
+	
+	/**
+	 * Points the polyline (which still does hit testing) and the culled path at the pyramid level for a zoom.
+	 * @param zoom the map's zoom level
+	 */
+	private void switchLevel(int zoom) {
+		mLodZoom = zoom;
+		setPoints(mLodPyramid.getLevel(zoom));
+		mCulledPath.setPoints(mLodPyramid.getLevel(zoom));
+	}
+	
+	/**
+	 * With a pyramid, draws only the chunks of the current level that are on screen, clipped to its edges,
+	 * instead of letting Polyline project and stroke every point.
+	 */
+	@Override protected void draw(final Canvas canvas, final MapView mapView, final boolean shadow) {
+		if (mLodPyramid == null) {
+			super.draw(canvas, mapView, shadow);
+			return;
+		}
+		if (shadow || !isVisible()) {
+			return;
+		}
+		
+		int zoom = mapView.getZoomLevel();
+		if (zoom != mLodZoom) {
+			switchLevel(zoom);
+		}
+		
+		Projection pj = mapView.getProjection();
+		findVisibleRect(pj, mapView.getWidth(), mapView.getHeight());
+		Point viewportOrigin = pj.toMercatorPixels(0, 0, mScratchPoint); // world pixels of screen's top left
+		int lines = mCulledPath.buildPath(mVisiblePath, zoom, viewportOrigin.x, viewportOrigin.y,
+				mVisibleRect, mPaint.getStrokeWidth());
+		if (lines > 0) {
+			canvas.drawPath(mVisiblePath, mPaint);
+		}
+	}
+	
+	/**
+	 * MapView draws overlays through its pinch scale and rotation, so the screen shows a different part of the
+	 * canvas than its own rect: more of it while zoomed out by a pinch, and a tilted square of it while rotated.
+	 * Fills mVisibleRect with the canvas bounds of the screen's corners, mapped back through that transform.
+	 * @param pj the map's projection for this draw
+	 * @param width screen width, pixels
+	 * @param height screen height, pixels
+	 */
+	private void findVisibleRect(Projection pj, int width, int height) {
+		Point corner = pj.unrotateAndScalePoint(0, 0, mScratchPoint);
+		mVisibleRect.set(corner.x, corner.y, corner.x, corner.y);
+		corner = pj.unrotateAndScalePoint(width, 0, mScratchPoint);
+		mVisibleRect.union(corner.x, corner.y);
+		corner = pj.unrotateAndScalePoint(0, height, mScratchPoint);
+		mVisibleRect.union(corner.x, corner.y);
+		corner = pj.unrotateAndScalePoint(width, height, mScratchPoint);
+		mVisibleRect.union(corner.x, corner.y);
+	}
+	
 	@Override public boolean onDoubleTap(final MotionEvent event, final MapView mapView) {
 		
 		Projection pj = mapView.getProjection();
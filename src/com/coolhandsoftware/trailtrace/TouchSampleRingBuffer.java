@@ -0,0 +1,94 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer that carries touch samples from exactly one producer thread (the UI thread) to exactly
+ * one consumer thread (the TraceCapturePipeline worker). Each sample is INTS_PER_SAMPLE ints wide, and what
+ * they mean is up to the caller.
+ *
+ * The producer only ever writes mTail and the consumer only ever writes mHead, so neither side needs a lock:
+ * the slots are written before the index that publishes them (lazySet is enough for that ordering), and
+ * each side keeps a cached copy of the other side's index so it only reads the shared one when it has to.
+ */
+public class TouchSampleRingBuffer {
+
+	/** how many ints one sample takes up **/
+	public static final int INTS_PER_SAMPLE = 3;
+
+	/** sample storage - slot i lives at mSlots[i*INTS_PER_SAMPLE ... i*INTS_PER_SAMPLE + INTS_PER_SAMPLE-1] **/
+	private final int[] mSlots;
+
+	/** capacity - 1, capacity is a power of two so a mask replaces the modulo **/
+	private final int mMask;
+
+	/** total number of samples ever read - written only by the consumer **/
+	private final AtomicLong mHead = new AtomicLong(0);
+
+	/** total number of samples ever written - written only by the producer **/
+	private final AtomicLong mTail = new AtomicLong(0);
+
+	/** producer's last look at mHead, refreshed only when the buffer looks full **/
+	private long mProducerCachedHead = 0;
+
+	/** consumer's last look at mTail, refreshed only when the buffer looks empty **/
+	private long mConsumerCachedTail = 0;
+
+	/**
+	 * @param minimumCapacity the fewest samples the buffer should hold - rounded up to a power of two
+	 */
+	public TouchSampleRingBuffer(int minimumCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(minimumCapacity, 2) - 1) << 1;
+		mSlots = new int[capacity * INTS_PER_SAMPLE];
+		mMask = capacity - 1;
+	}
+
+	/**
+	 * Producer side: writes one sample if there's room.
+	 * @return false if the buffer is full (nothing was written)
+	 */
+	public boolean offer(int first, int second, int third) {
+		long tail = mTail.get();
+		if (tail - mProducerCachedHead > mMask) {
+			mProducerCachedHead = mHead.get();
+			if (tail - mProducerCachedHead > mMask) {
+				return false;
+			}
+		}
+
+		int index = (int) (tail & mMask) * INTS_PER_SAMPLE;
+		mSlots[index] = first;
+		mSlots[index + 1] = second;
+		mSlots[index + 2] = third;
+		mTail.lazySet(tail + 1); // publishes the slot to the consumer
+		return true;
+	}
+
+	/**
+	 * Consumer side: copies up to maxSamples samples, oldest first, into out and frees their slots.
+	 * @param out destination, needs room for maxSamples*INTS_PER_SAMPLE ints
+	 * @param maxSamples the most samples to copy
+	 * @return number of samples copied (0 if the buffer was empty)
+	 */
+	public int drainTo(int[] out, int maxSamples) {
+		long head = mHead.get();
+		if (head == mConsumerCachedTail) {
+			mConsumerCachedTail = mTail.get();
+		}
+		int count = (int) Math.min(mConsumerCachedTail - head, maxSamples);
+
+		for (int i = 0; i < count; ++i) {
+			int index = (int) ((head + i) & mMask) * INTS_PER_SAMPLE;
+			System.arraycopy(mSlots, index, out, i * INTS_PER_SAMPLE, INTS_PER_SAMPLE);
+		}
+		mHead.lazySet(head + count); // hands the slots back to the producer
+		return count;
+	}
+
+	/**
+	 * @return total number of samples the producer has ever written - safe to call from any thread
+	 */
+	public long getWrittenCount() {
+		return mTail.get();
+	}
+}
@@ -0,0 +1,150 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.osmdroid.views.Projection;
+
+import android.graphics.Point;
+
+/**
+ * Moves the touch-to-geo conversion of traced points off the UI thread. The UI thread only adds the viewport's
+ * offset to each pixel sample (turning it into an absolute world pixel at the current zoom level) and drops it
+ * into a TouchSampleRingBuffer. A background worker drains the buffer, runs the Mercator math in bulk and
+ * commits the resulting points to the MapTraceCoordinateManager.
+ *
+ * Anything that reads the stored trace has to call flush() first, so samples still in the buffer are included.
+ */
+public class TraceCapturePipeline implements Runnable {
+
+	/** set in a sample's header when it is the first point of a new segment **/
+	private static final int NEW_SEGMENT_FLAG = 1 << 8;
+
+	/** set in a marker queued after a segment's last sample - the marker's coordinates mean nothing **/
+	private static final int END_OF_SEGMENT_FLAG = 1 << 9;
+
+	/** the low bits of a sample's header hold the zoom level the sample was taken at **/
+	private static final int ZOOM_MASK = 0xFF;
+
+	/** samples the buffer holds - a couple of minutes of tracing before the UI thread would ever have to wait **/
+	private static final int BUFFER_CAPACITY = 8192;
+
+	/** the most samples the worker converts per trip through its loop **/
+	private static final int BATCH_SIZE = 512;
+
+	/** samples go from the UI thread to the worker through here **/
+	private final TouchSampleRingBuffer mBuffer = new TouchSampleRingBuffer(BUFFER_CAPACITY);
+
+	/** where converted points are committed **/
+	private final MapTraceCoordinateManager mManager;
+
+	/** started the first time a sample is submitted **/
+	private Thread mWorker;
+
+	/** total number of samples the worker has committed - compared against the buffer's count by flush() **/
+	private volatile long mCommittedCount = 0;
+
+	/** reused on the UI thread to read the viewport's offset out of the projection **/
+	private final Point mScratchPoint = new Point();
+
+	/** reused by the worker to hold a drained batch **/
+	private final int[] mBatch = new int[BATCH_SIZE * TouchSampleRingBuffer.INTS_PER_SAMPLE];
+
+	/**
+	 * @param manager where converted points will be committed
+	 */
+	public TraceCapturePipeline(MapTraceCoordinateManager manager) {
+		mManager = manager;
+	}
+
+	/**
+	 * UI thread only: queues a batch of pixel samples for conversion, along with a snapshot of the projection
+	 * (its zoom level and viewport offset) they were captured with.
+	 * @param coordinates packed x,y screen pixel pairs - only read, never kept
+	 * @param count number of x,y pairs
+	 * @param isStartOfSegment true if the first pair starts a new segment
+	 * @param projection current map projection
+	 */
+	public void submit(int[] coordinates, int count, boolean isStartOfSegment, Projection projection) {
+		if (mWorker == null) {
+			mWorker = new Thread(this, "TraceCaptureWorker");
+			mWorker.setDaemon(true);
+			mWorker.start();
+		}
+
+		int zoom = projection.getZoomLevel();
+		Point viewportOrigin = projection.toMercatorPixels(0, 0, mScratchPoint); // world pixels of screen's top left
+		int offsetX = viewportOrigin.x;
+		int offsetY = viewportOrigin.y;
+
+		for (int i = 0; i < count; ++i) {
+			int header = zoom;
+			if (isStartOfSegment && i == 0) {
+				header |= NEW_SEGMENT_FLAG;
+			}
+			while (!mBuffer.offer(coordinates[2*i] + offsetX, coordinates[2*i + 1] + offsetY, header)) {
+				// only happens if the worker is far behind - let it catch up
+				LockSupport.unpark(mWorker);
+				Thread.yield();
+			}
+		}
+		LockSupport.unpark(mWorker);
+	}
+
+	/**
+	 * UI thread only: marks the end of the segment whose samples were just submitted (the finger went up), so
+	 * the manager can finish it off once those samples are committed.
+	 */
+	public void endSegment() {
+		if (mWorker == null) {
+			return; // nothing was ever submitted
+		}
+		while (!mBuffer.offer(0, 0, END_OF_SEGMENT_FLAG)) {
+			LockSupport.unpark(mWorker);
+			Thread.yield();
+		}
+		LockSupport.unpark(mWorker);
+	}
+
+	/**
+	 * Blocks until every sample submitted so far has been committed to the manager. Call this (without holding
+	 * the manager's lock - the worker needs it) before reading the stored trace.
+	 */
+	public void flush() {
+		long target = mBuffer.getWrittenCount();
+		while (mCommittedCount < target) {
+			LockSupport.unpark(mWorker);
+			LockSupport.parkNanos(50000);
+		}
+	}
+
+	/**
+	 * Worker loop: sleeps until samples show up, then converts and commits them a batch at a time.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			int count = mBuffer.drainTo(mBatch, BATCH_SIZE);
+			if (count == 0) {
+				LockSupport.park(this);
+				continue;
+			}
+
+			// one lock for the whole batch, instead of one per point
+			synchronized (mManager) {
+				for (int i = 0; i < count; ++i) {
+					int index = i * TouchSampleRingBuffer.INTS_PER_SAMPLE;
+					int header = mBatch[index + 2];
+					if ((header & END_OF_SEGMENT_FLAG) != 0) {
+						mManager.finishSegment();
+						continue;
+					}
+					int zoom = header & ZOOM_MASK;
+					int latitudeE6 = WebMercator.pixelYToLatitudeE6(mBatch[index + 1], zoom);
+					int longitudeE6 = WebMercator.pixelXToLongitudeE6(mBatch[index], zoom);
+					mManager.storeTouchPoint(latitudeE6, longitudeE6, (header & NEW_SEGMENT_FLAG) != 0, zoom);
+				}
+			}
+			mCommittedCount += count;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.coolhandsoftware.trailtrace;
+
+/**
+ * Streaming filter that keeps slow, careful tracing from storing huge runs of nearly identical points.
+ * Each new sample is compared against the end of the segment it belongs to, and is either appended, dropped,
+ * or slides the segment's last point forward:
+ *
+ * - a sample closer to the last stored point than RADIAL_TOLERANCE_PIXELS is dropped (it adds nothing you
+ *   could see at the zoom level it was traced at)
+ * - if the last stored point barely changes the heading (less than ANGLE_TOLERANCE_DEGREES between the line
+ *   coming into it and the line to the new sample), and every sample it stood in for lies within
+ *   DEVIATION_TOLERANCE_PIXELS of the line from the point before it to the new sample, it was just a point on a
+ *   straight run, so the new sample replaces it
+ *
+ * The distance check is what keeps a gentle curve, which never bends by much at any one sample, from sliding the
+ * last point ever further off the traced line. Rather than keep the replaced samples, the decimator keeps the
+ * range of headings from the point before the last one (the anchor) whose lines pass close enough to all of them
+ * - each sample narrows it - so the check costs the same however long the straight run gets.
+ * - anything else is a real bend, and is appended
+ *
+ * The tolerances are turned into ground meters using the zoom level the sample was traced at, so the number
+ * of stored points depends on the shape of the route, not on how long the finger stayed on the glass.
+ */
+public class TraceDecimator {
+
+	/** store the sample as a new point **/
+	public static final int APPEND = 0;
+
+	/** overwrite the segment's last point with the sample **/
+	public static final int REPLACE_LAST = 1;
+
+	/** throw the sample away **/
+	public static final int DROP = 2;
+
+	/** samples closer than this to the last stored point are dropped - in screen pixels at the tracing zoom **/
+	private static final double RADIAL_TOLERANCE_PIXELS = 2.0;
+
+	/** a point replaced by a new sample may lie at most this far off the line that replaces it - screen pixels **/
+	private static final double DEVIATION_TOLERANCE_PIXELS = 1.0;
+
+	/** heading changes smaller than this are treated as a straight line **/
+	private static final double ANGLE_TOLERANCE_DEGREES = 8.0;
+
+	/** cosine of ANGLE_TOLERANCE_DEGREES - headings are compared with a dot product, not with atan2 **/
+	private static final double COS_ANGLE_TOLERANCE = Math.cos(Math.toRadians(ANGLE_TOLERANCE_DEGREES));
+
+	/** meters per degree of latitude, on the sphere WebMercator uses **/
+	private static final double METERS_PER_DEGREE = Math.toRadians(1) * WebMercator.EARTH_RADIUS_METERS;
+
+	/** anchor the heading range belongs to - index and coordinates, so any change to the trace starts over **/
+	private int mAnchor = -1;
+	private int mAnchorLatE6;
+	private int mAnchorLonE6;
+
+	/** headings from the anchor whose lines pass close enough to every replaced sample, radians **/
+	private double mMinHeading;
+	private double mMaxHeading;
+
+	public TraceDecimator() {
+
+	}
+
+	/**
+	 * Decides what to do with a sample that continues the last segment of a trace (the first point of a segment
+	 * should always just be stored).
+	 * @param trace the trace the sample would be added to
+	 * @param latitudeE6 latitude of the sample, E6 format
+	 * @param longitudeE6 longitude of the sample, E6 format
+	 * @param zoom zoom level the sample was traced at
+	 * @return APPEND, REPLACE_LAST or DROP
+	 */
+	public int classify(PackedTrace trace, int latitudeE6, int longitudeE6, int zoom) {
+		int segment = trace.getSegmentCount() - 1;
+		if (segment < 0) {
+			return APPEND;
+		}
+		int start = trace.getSegmentStart(segment);
+		int last = trace.getSegmentEnd(segment) - 1;
+		if (last < start) {
+			return APPEND;
+		}
+
+		// work in local meters around the sample - plenty accurate over a few pixels
+		double metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitudeE6 / 1e6));
+		double metersPerPixel = WebMercator.groundResolution(latitudeE6 / 1e6, zoom);
+		double toleranceMeters = RADIAL_TOLERANCE_PIXELS * metersPerPixel;
+
+		double outX = (longitudeE6 - trace.getLongitudeE6(last)) / 1e6 * metersPerDegreeLon;
+		double outY = (latitudeE6 - trace.getLatitudeE6(last)) / 1e6 * METERS_PER_DEGREE;
+		double outLengthSquared = outX * outX + outY * outY;
+		if (outLengthSquared < toleranceMeters * toleranceMeters) {
+			return DROP;
+		}
+
+		if (last == start) {
+			return APPEND; // no line coming into the last point yet, so no heading to compare against
+		}
+
+		double inX = (trace.getLongitudeE6(last) - trace.getLongitudeE6(last - 1)) / 1e6 * metersPerDegreeLon;
+		double inY = (trace.getLatitudeE6(last) - trace.getLatitudeE6(last - 1)) / 1e6 * METERS_PER_DEGREE;
+		double inLengthSquared = inX * inX + inY * inY;
+
+		// cos(heading change) >= cos(tolerance), without the square roots: both sides squared, sign kept
+		double dot = inX * outX + inY * outY;
+		if (dot <= 0 || dot * dot < COS_ANGLE_TOLERANCE * COS_ANGLE_TOLERANCE * inLengthSquared * outLengthSquared) {
+			return APPEND;
+		}
+
+		// the line (last - 1) -> sample has to pass close enough to the last point and every sample it replaced
+		double deviationMeters = DEVIATION_TOLERANCE_PIXELS * metersPerPixel;
+		int anchor = last - 1;
+		if (anchor != mAnchor || trace.getLatitudeE6(anchor) != mAnchorLatE6
+				|| trace.getLongitudeE6(anchor) != mAnchorLonE6) {
+			// the last point was just appended, so it's the only one the line has to pass
+			mAnchor = anchor;
+			mAnchorLatE6 = trace.getLatitudeE6(anchor);
+			mAnchorLonE6 = trace.getLongitudeE6(anchor);
+			double heading = Math.atan2(inY, inX);
+			double spread = Math.asin(Math.min(deviationMeters / Math.sqrt(inLengthSquared), 1));
+			mMinHeading = heading - spread;
+			mMaxHeading = heading + spread;
+		}
+
+		double chordX = inX + outX;
+		double chordY = inY + outY;
+		double chordLength = Math.sqrt(chordX * chordX + chordY * chordY);
+		double heading = Math.atan2(chordY, chordX);
+		// keep the heading next to the range - it never wraps far, the angle check above already passed
+		double middle = (mMinHeading + mMaxHeading) / 2;
+		heading += 2 * Math.PI * Math.rint((middle - heading) / (2 * Math.PI));
+		if (heading < mMinHeading || heading > mMaxHeading) {
+			mAnchor = -1;
+			return APPEND;
+		}
+
+		// the sample becomes the last point, so later lines have to pass close to it too
+		double spread = Math.asin(Math.min(deviationMeters / chordLength, 1));
+		mMinHeading = Math.max(mMinHeading, heading - spread);
+		mMaxHeading = Math.min(mMaxHeading, heading + spread);
+		return REPLACE_LAST;
+	}
+}
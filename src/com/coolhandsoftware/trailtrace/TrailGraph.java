@@ -0,0 +1,394 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The trail network of a set of ways, as a graph a router can search.
+ *
+ * Ways are cut at every junction - a node shared by two ways, or used twice by one - and at their ends. The cut
+ * points are the graph's vertices, and the pieces of way between them are its edges. A piece keeps the nodes it
+ * runs through (its geometry) and the distance along it to each of them, so a route can be drawn along the trail
+ * and a spot partway along a piece can be routed from.
+ *
+ * Adjacency is in compressed sparse row form: vertex v's arcs run from mArcStarts[v] to mArcStarts[v+1] in the
+ * arc arrays. Trails go both ways, so every piece gives two arcs, one in each direction. Everything is primitive
+ * arrays, built once; the graph is read only after that and can be shared between routers.
+ */
+public class TrailGraph {
+
+	/** the nodes the ways refer to **/
+	private final NodeTable mNodes;
+
+	/** number of vertices **/
+	private int mVertexCount = 0;
+
+	/** node of each vertex **/
+	private int[] mVertexNodes;
+
+	/** vertex of each node, -1 for nodes that aren't junctions or way ends **/
+	private int[] mNodeVertices;
+
+	/** number of pieces **/
+	private int mPieceCount = 0;
+
+	/** vertex at the start and at the end of each piece **/
+	private int[] mPieceFrom;
+	private int[] mPieceTo;
+
+	/** piece p's geometry runs from mPieceGeometryStarts[p] to mPieceGeometryStarts[p+1] in the geometry arrays **/
+	private int[] mPieceGeometryStarts;
+
+	/** nodes of every piece, in way order, end vertices included **/
+	private int[] mGeometryNodes;
+
+	/** distance along the piece to each geometry node, meters **/
+	private double[] mGeometryOffsets;
+
+	/** piece each geometry entry belongs to **/
+	private int[] mGeometryPieces;
+
+	/** geometry entry of each node that's inside a piece (not a vertex), -1 for the rest **/
+	private int[] mNodeGeometry;
+
+	/** per-vertex slices of the arc arrays, see the class comment **/
+	private int[] mArcStarts;
+
+	/** vertex each arc leads to **/
+	private int[] mArcTargets;
+
+	/** piece each arc runs along **/
+	private int[] mArcPieces;
+
+	/** length of each arc's piece, meters - kept next to the targets so a search doesn't chase the geometry **/
+	private double[] mArcLengths;
+
+	/**
+	 * Builds the graph.
+	 * @param nodes the nodes the ways refer to
+	 * @param ways the ways - nodes without coordinates break a way in two
+	 */
+	public TrailGraph(NodeTable nodes, List<Way> ways) {
+		mNodes = nodes;
+		int nodeCount = nodes.size();
+
+		// a node is a vertex if it ends a run of nodes with coordinates, or is used more than once
+		int[] uses = new int[nodeCount];
+		boolean[] isEnd = new boolean[nodeCount];
+		for (int w = 0; w < ways.size(); ++w) {
+			int[] wayNodes = ways.get(w).mNodeIndices;
+			for (int i = 0; i < wayNodes.length; ++i) {
+				int node = wayNodes[i];
+				if (!nodes.hasCoordinates(node)) {
+					continue;
+				}
+				++uses[node];
+				if (i == 0 || i == wayNodes.length - 1 || !nodes.hasCoordinates(wayNodes[i - 1])
+						|| !nodes.hasCoordinates(wayNodes[i + 1])) {
+					isEnd[node] = true;
+				}
+			}
+		}
+		mNodeVertices = new int[nodeCount];
+		for (int n = 0; n < nodeCount; ++n) {
+			mNodeVertices[n] = uses[n] > 1 || isEnd[n] ? mVertexCount++ : -1;
+		}
+		mVertexNodes = new int[mVertexCount];
+		for (int n = 0; n < nodeCount; ++n) {
+			if (mNodeVertices[n] >= 0) {
+				mVertexNodes[mNodeVertices[n]] = n;
+			}
+		}
+
+		buildPieces(ways);
+		buildArcs();
+	}
+
+	/**
+	 * Cuts the ways into pieces at the vertices, recording each piece's geometry.
+	 */
+	private void buildPieces(List<Way> ways) {
+		// first pass counts, second pass fills
+		int pieceCount = 0, geometryCount = 0;
+		for (int w = 0; w < ways.size(); ++w) {
+			int[] wayNodes = ways.get(w).mNodeIndices;
+			int runLength = 0;
+			for (int i = 0; i < wayNodes.length; ++i) {
+				if (!mNodes.hasCoordinates(wayNodes[i])) {
+					runLength = 0;
+					continue;
+				}
+				++runLength;
+				if (runLength > 1) {
+					++geometryCount;
+					if (mNodeVertices[wayNodes[i]] >= 0) {
+						++pieceCount;
+						++geometryCount; // the piece's first node
+					}
+				}
+			}
+		}
+
+		mPieceFrom = new int[pieceCount];
+		mPieceTo = new int[pieceCount];
+		mPieceGeometryStarts = new int[pieceCount + 1];
+		mGeometryNodes = new int[geometryCount];
+		mGeometryOffsets = new double[geometryCount];
+		mGeometryPieces = new int[geometryCount];
+		mNodeGeometry = new int[mNodes.size()];
+		Arrays.fill(mNodeGeometry, -1);
+
+		int geometry = 0;
+		for (int w = 0; w < ways.size(); ++w) {
+			int[] wayNodes = ways.get(w).mNodeIndices;
+			int pieceStart = -1; // index in wayNodes of the open piece's first node
+			for (int i = 0; i < wayNodes.length; ++i) {
+				int node = wayNodes[i];
+				if (!mNodes.hasCoordinates(node)) {
+					pieceStart = -1;
+					continue;
+				}
+				if (mNodeVertices[node] < 0) {
+					continue;
+				}
+				if (pieceStart >= 0) {
+					geometry = addPiece(wayNodes, pieceStart, i, geometry);
+				}
+				pieceStart = i;
+			}
+		}
+		mPieceGeometryStarts[mPieceCount] = geometry;
+	}
+
+	/**
+	 * Adds the piece of a way between two vertices.
+	 * @param wayNodes the way's nodes
+	 * @param first index in wayNodes of the piece's first vertex
+	 * @param last index in wayNodes of the piece's last vertex
+	 * @param geometry next free geometry entry
+	 * @return next free geometry entry after the piece
+	 */
+	private int addPiece(int[] wayNodes, int first, int last, int geometry) {
+		int piece = mPieceCount++;
+		mPieceFrom[piece] = mNodeVertices[wayNodes[first]];
+		mPieceTo[piece] = mNodeVertices[wayNodes[last]];
+		mPieceGeometryStarts[piece] = geometry;
+		double offset = 0;
+		for (int i = first; i <= last; ++i) {
+			int node = wayNodes[i];
+			if (i > first) {
+				int previous = wayNodes[i - 1];
+				offset += GeoDistance.equirectangular(mNodes.getLatitudeE6(previous), mNodes.getLongitudeE6(previous),
+						mNodes.getLatitudeE6(node), mNodes.getLongitudeE6(node));
+			}
+			mGeometryNodes[geometry] = node;
+			mGeometryOffsets[geometry] = offset;
+			mGeometryPieces[geometry] = piece;
+			if (mNodeVertices[node] < 0) {
+				mNodeGeometry[node] = geometry;
+			}
+			++geometry;
+		}
+		return geometry;
+	}
+
+	/**
+	 * Builds the CSR adjacency - two arcs per piece.
+	 */
+	private void buildArcs() {
+		mArcStarts = new int[mVertexCount + 1];
+		for (int p = 0; p < mPieceCount; ++p) {
+			++mArcStarts[mPieceFrom[p] + 1];
+			++mArcStarts[mPieceTo[p] + 1];
+		}
+		for (int v = 0; v < mVertexCount; ++v) {
+			mArcStarts[v + 1] += mArcStarts[v];
+		}
+
+		mArcTargets = new int[2 * mPieceCount];
+		mArcPieces = new int[2 * mPieceCount];
+		mArcLengths = new double[2 * mPieceCount];
+		int[] fill = new int[mVertexCount];
+		System.arraycopy(mArcStarts, 0, fill, 0, mVertexCount);
+		for (int p = 0; p < mPieceCount; ++p) {
+			int forward = fill[mPieceFrom[p]]++;
+			mArcTargets[forward] = mPieceTo[p];
+			mArcPieces[forward] = p;
+			mArcLengths[forward] = getPieceLength(p);
+			int backward = fill[mPieceTo[p]]++;
+			mArcTargets[backward] = mPieceFrom[p];
+			mArcPieces[backward] = p;
+			mArcLengths[backward] = getPieceLength(p);
+		}
+	}
+
+	/**
+	 * Finds the geometry entry of a way segment's first node - which piece the segment is part of, and where.
+	 * @param startNode the segment's first node, in way order
+	 * @param endNode the segment's second node
+	 * @return the geometry entry, followed by endNode's, or -1 if no piece has the segment
+	 */
+	public int findSegment(int startNode, int endNode) {
+		if (mNodeGeometry[startNode] >= 0) {
+			return mNodeGeometry[startNode];
+		}
+		if (mNodeGeometry[endNode] >= 0) {
+			return mNodeGeometry[endNode] - 1;
+		}
+		// both ends are vertices, so the segment is a whole piece of its own
+		int vertex = mNodeVertices[startNode];
+		if (vertex < 0) {
+			return -1;
+		}
+		for (int arc = mArcStarts[vertex]; arc < mArcStarts[vertex + 1]; ++arc) {
+			int piece = mArcPieces[arc];
+			int first = mPieceGeometryStarts[piece];
+			if (mPieceFrom[piece] == vertex && mPieceGeometryStarts[piece + 1] - first == 2
+					&& mGeometryNodes[first + 1] == endNode) {
+				return first;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return number of vertices
+	 */
+	public int getVertexCount() {
+		return mVertexCount;
+	}
+
+	/**
+	 * @param vertex a vertex
+	 * @return the vertex's node
+	 */
+	public int getVertexNode(int vertex) {
+		return mVertexNodes[vertex];
+	}
+
+	/**
+	 * @param node a node
+	 * @return the node's vertex, or -1 if it isn't one
+	 */
+	public int getNodeVertex(int node) {
+		return mNodeVertices[node];
+	}
+
+	/**
+	 * @return number of pieces (edges)
+	 */
+	public int getPieceCount() {
+		return mPieceCount;
+	}
+
+	/**
+	 * @param piece a piece
+	 * @return the vertex the piece starts at
+	 */
+	public int getPieceFrom(int piece) {
+		return mPieceFrom[piece];
+	}
+
+	/**
+	 * @param piece a piece
+	 * @return the vertex the piece ends at
+	 */
+	public int getPieceTo(int piece) {
+		return mPieceTo[piece];
+	}
+
+	/**
+	 * @param piece a piece
+	 * @return length of the piece, meters
+	 */
+	public double getPieceLength(int piece) {
+		return mGeometryOffsets[mPieceGeometryStarts[piece + 1] - 1];
+	}
+
+	/**
+	 * @param piece a piece
+	 * @return the piece's first geometry entry
+	 */
+	public int getPieceGeometryStart(int piece) {
+		return mPieceGeometryStarts[piece];
+	}
+
+	/**
+	 * @param piece a piece
+	 * @return one past the piece's last geometry entry
+	 */
+	public int getPieceGeometryEnd(int piece) {
+		return mPieceGeometryStarts[piece + 1];
+	}
+
+	/**
+	 * @param geometry a geometry entry
+	 * @return its node
+	 */
+	public int getGeometryNode(int geometry) {
+		return mGeometryNodes[geometry];
+	}
+
+	/**
+	 * @param geometry a geometry entry
+	 * @return distance along its piece to it, meters
+	 */
+	public double getGeometryOffset(int geometry) {
+		return mGeometryOffsets[geometry];
+	}
+
+	/**
+	 * @param geometry a geometry entry
+	 * @return the piece it belongs to
+	 */
+	public int getGeometryPiece(int geometry) {
+		return mGeometryPieces[geometry];
+	}
+
+	/**
+	 * @param vertex a vertex
+	 * @return the vertex's first arc
+	 */
+	public int getArcStart(int vertex) {
+		return mArcStarts[vertex];
+	}
+
+	/**
+	 * @param vertex a vertex
+	 * @return one past the vertex's last arc
+	 */
+	public int getArcEnd(int vertex) {
+		return mArcStarts[vertex + 1];
+	}
+
+	/**
+	 * @param arc an arc
+	 * @return the vertex it leads to
+	 */
+	public int getArcTarget(int arc) {
+		return mArcTargets[arc];
+	}
+
+	/**
+	 * @param arc an arc
+	 * @return the piece it runs along
+	 */
+	public int getArcPiece(int arc) {
+		return mArcPieces[arc];
+	}
+
+	/**
+	 * @param arc an arc
+	 * @return its length, meters
+	 */
+	public double getArcLength(int arc) {
+		return mArcLengths[arc];
+	}
+
+	/**
+	 * @return the nodes the graph's ways refer to
+	 */
+	public NodeTable getNodeTable() {
+		return mNodes;
+	}
+}
@@ -0,0 +1,315 @@
+package com.coolhandsoftware.trailtrace;
+
+/**
+ * Finds shortest routes along a TrailGraph between two spots on way segments, with A*: a Dijkstra search toward
+ * the target, ordered by distance so far plus the straight-line distance still to go. Trails are rarely much
+ * longer than the straight line, so the search stays in a narrow band around it.
+ *
+ * A spot partway along a piece is reached from the piece's two end vertices, so a search starts from both ends of
+ * the first spot's piece (each already charged the distance to the spot) and finishes at either end of the second
+ * spot's piece. Two spots on the same piece are also tried directly.
+ *
+ * Per-vertex search state lives in arrays sized once for the graph and stamped with a query number instead of
+ * being cleared, and the queue is an IndexedMinHeap, so a query allocates nothing. Not thread safe - give each
+ * thread its own router.
+ *
+ * On a big network, hand the router a ContractionHierarchy of its graph and it answers queries with that instead.
+ */
+public class TrailRouter {
+
+	/** the graph to route on **/
+	private final TrailGraph mGraph;
+
+	/** the queue of vertices to visit, keyed by distance so far plus estimated distance to go **/
+	private final IndexedMinHeap mQueue;
+
+	/** best known distance from the start spot to each vertex, meters - valid where mStamps matches mStamp **/
+	private final double[] mDistances;
+
+	/** arc each vertex was best reached by, -1 for the vertices the search started from **/
+	private final int[] mParentArcs;
+
+	/** query number each vertex's entries were last written in **/
+	private final int[] mStamps;
+	private int mStamp = 0;
+
+	/** the last query's spots: geometry entry of the segment they're on, and distance along their piece **/
+	private int mFromGeometry;
+	private double mFromOffset;
+	private int mToGeometry;
+	private double mToOffset;
+
+	/** vertex the last route entered the target piece through, -1 if it went straight along one piece **/
+	private int mViaVertex;
+
+	/** true if mViaVertex is the target piece's start vertex **/
+	private boolean mViaStart;
+
+	/** nodes the last route passes through, filled by buildPath **/
+	private int[] mPathNodes = new int[64];
+	private int mPathLength = 0;
+
+	/** pieces of the last route between the two spots' pieces, in order, and the vertex each one leads to **/
+	private int[] mRoutePieces = new int[64];
+	private int[] mRouteTargets = new int[64];
+
+	/** optional preprocessed hierarchy of the graph, used instead of A* when set **/
+	private ContractionHierarchy mHierarchy = null;
+
+	/** true if the last route came from mHierarchy **/
+	private boolean mRoutedByHierarchy = false;
+
+	/**
+	 * @param graph the graph to route on
+	 */
+	public TrailRouter(TrailGraph graph) {
+		mGraph = graph;
+		int vertexCount = graph.getVertexCount();
+		mQueue = new IndexedMinHeap(vertexCount);
+		mDistances = new double[vertexCount];
+		mParentArcs = new int[vertexCount];
+		mStamps = new int[vertexCount];
+	}
+
+	/**
+	 * Answers later queries with a contraction hierarchy instead of A*.
+	 * @param hierarchy a hierarchy of this router's graph, or null to go back to A*
+	 */
+	public void setHierarchy(ContractionHierarchy hierarchy) {
+		mHierarchy = hierarchy;
+	}
+
+	/**
+	 * Finds the shortest route along the trails between two spots. Each spot is given as a way segment - its two
+	 * nodes, in way order, as WaySegmentIndex has them - and a fraction of the way from the first node to the
+	 * second.
+	 * @param maxMeters routes longer than this aren't looked for - keeps a hopeless search from covering the graph
+	 * @return the route's length in meters, or Double.POSITIVE_INFINITY if there's no route within maxMeters
+	 */
+	public double route(int fromStartNode, int fromEndNode, double fromFraction,
+			int toStartNode, int toEndNode, double toFraction, double maxMeters) {
+		mViaVertex = -1;
+		mPathLength = 0;
+		mRoutedByHierarchy = false;
+		mFromGeometry = mGraph.findSegment(fromStartNode, fromEndNode);
+		mToGeometry = mGraph.findSegment(toStartNode, toEndNode);
+		if (mFromGeometry < 0 || mToGeometry < 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		mFromOffset = spotOffset(mFromGeometry, fromFraction);
+		mToOffset = spotOffset(mToGeometry, toFraction);
+		int fromPiece = mGraph.getGeometryPiece(mFromGeometry);
+		int toPiece = mGraph.getGeometryPiece(mToGeometry);
+
+		double best = Double.POSITIVE_INFINITY;
+		if (fromPiece == toPiece) {
+			best = Math.abs(mToOffset - mFromOffset);
+		}
+
+		// where the search is headed, for the estimate
+		NodeTable nodes = mGraph.getNodeTable();
+		int toLatE6 = (int) Math.round(nodes.getLatitudeE6(toStartNode)
+				+ toFraction * (nodes.getLatitudeE6(toEndNode) - nodes.getLatitudeE6(toStartNode)));
+		int toLonE6 = (int) Math.round(nodes.getLongitudeE6(toStartNode)
+				+ toFraction * (nodes.getLongitudeE6(toEndNode) - nodes.getLongitudeE6(toStartNode)));
+		double cosLatitude = Math.cos(Math.toRadians(toLatE6 / 1e6));
+
+		int targetStart = mGraph.getPieceFrom(toPiece);
+		int targetEnd = mGraph.getPieceTo(toPiece);
+		double targetStartExtra = mToOffset;
+		double targetEndExtra = mGraph.getPieceLength(toPiece) - mToOffset;
+
+		if (mHierarchy != null) {
+			double viaVertices = mHierarchy.query(mGraph.getPieceFrom(fromPiece), mFromOffset,
+					mGraph.getPieceTo(fromPiece), mGraph.getPieceLength(fromPiece) - mFromOffset,
+					targetStart, targetStartExtra, targetEnd, targetEndExtra, Math.min(best, maxMeters));
+			if (viaVertices < best) {
+				best = viaVertices;
+				mRoutedByHierarchy = true;
+				mViaStart = mHierarchy.getPathTargetIndex() == 0;
+				mViaVertex = mViaStart ? targetStart : targetEnd;
+			}
+			return best <= maxMeters ? best : Double.POSITIVE_INFINITY;
+		}
+
+		++mStamp;
+		mQueue.clear();
+		relax(mGraph.getPieceFrom(fromPiece), mFromOffset, -1, toLatE6, toLonE6, cosLatitude);
+		relax(mGraph.getPieceTo(fromPiece), mGraph.getPieceLength(fromPiece) - mFromOffset, -1,
+				toLatE6, toLonE6, cosLatitude);
+
+		while (!mQueue.isEmpty()) {
+			double estimate = mQueue.peekKey();
+			if (estimate >= best || estimate > maxMeters) {
+				break;
+			}
+			int vertex = mQueue.pop();
+			double distance = mDistances[vertex];
+			if (vertex == targetStart && distance + targetStartExtra < best) {
+				best = distance + targetStartExtra;
+				mViaVertex = vertex;
+				mViaStart = true;
+			}
+			if (vertex == targetEnd && distance + targetEndExtra < best) {
+				best = distance + targetEndExtra;
+				mViaVertex = vertex;
+				mViaStart = false;
+			}
+			for (int arc = mGraph.getArcStart(vertex); arc < mGraph.getArcEnd(vertex); ++arc) {
+				double next = distance + mGraph.getArcLength(arc);
+				if (next <= maxMeters) {
+					relax(mGraph.getArcTarget(arc), next, arc, toLatE6, toLonE6, cosLatitude);
+				}
+			}
+		}
+		return best <= maxMeters ? best : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Records a route to a vertex if it's the best one seen this query, and queues the vertex.
+	 */
+	private void relax(int vertex, double distance, int arc, int toLatE6, int toLonE6, double cosLatitude) {
+		if (mStamps[vertex] == mStamp && mDistances[vertex] <= distance) {
+			return;
+		}
+		mStamps[vertex] = mStamp;
+		mDistances[vertex] = distance;
+		mParentArcs[vertex] = arc;
+		NodeTable nodes = mGraph.getNodeTable();
+		int node = mGraph.getVertexNode(vertex);
+		double remaining = GeoDistance.equirectangular(nodes.getLatitudeE6(node), nodes.getLongitudeE6(node),
+				toLatE6, toLonE6, cosLatitude);
+		mQueue.push(vertex, distance + remaining);
+	}
+
+	/**
+	 * @return distance along the piece from its start to the spot a fraction along the segment at a geometry entry
+	 */
+	private double spotOffset(int geometry, double fraction) {
+		double start = mGraph.getGeometryOffset(geometry);
+		return start + fraction * (mGraph.getGeometryOffset(geometry + 1) - start);
+	}
+
+	/**
+	 * Lists the nodes the last route found by route() passes through, in order, not counting its two end spots.
+	 * Only call it after route() found a route.
+	 * @return number of nodes, read them with getPathNode
+	 */
+	public int buildPath() {
+		mPathLength = 0;
+		int fromPiece = mGraph.getGeometryPiece(mFromGeometry);
+		int toPiece = mGraph.getGeometryPiece(mToGeometry);
+		if (mViaVertex < 0) {
+			// along a single piece
+			if (mFromOffset <= mToOffset) {
+				addGeometry(mFromGeometry + 1, mToGeometry, 1);
+			}
+			else {
+				addGeometry(mFromGeometry, mToGeometry + 1, -1);
+			}
+			return mPathLength;
+		}
+
+		int routeLength;
+		boolean leavesFromStart;
+		if (mRoutedByHierarchy) {
+			routeLength = mHierarchy.getPathLength();
+			ensureRouteCapacity(routeLength);
+			for (int i = 0; i < routeLength; ++i) {
+				mRoutePieces[i] = mHierarchy.getPathPiece(i);
+				mRouteTargets[i] = mHierarchy.getPathTarget(i);
+			}
+			leavesFromStart = mHierarchy.getPathSourceIndex() == 0;
+		}
+		else {
+			// count the arcs back from the vertex the route entered the target piece through, then fill them in
+			routeLength = 0;
+			int vertex = mViaVertex;
+			while (mParentArcs[vertex] >= 0) {
+				++routeLength;
+				vertex = otherEnd(mGraph.getArcPiece(mParentArcs[vertex]), vertex);
+			}
+			leavesFromStart = vertex == mGraph.getPieceFrom(fromPiece) && mDistances[vertex] == mFromOffset;
+			ensureRouteCapacity(routeLength);
+			vertex = mViaVertex;
+			for (int i = routeLength - 1; i >= 0; --i) {
+				int arc = mParentArcs[vertex];
+				mRoutePieces[i] = mGraph.getArcPiece(arc);
+				mRouteTargets[i] = vertex;
+				vertex = otherEnd(mRoutePieces[i], vertex);
+			}
+		}
+
+		// from the start spot out to the vertex the route leaves its piece by
+		int pieceStart = mGraph.getPieceGeometryStart(fromPiece);
+		int pieceEnd = mGraph.getPieceGeometryEnd(fromPiece);
+		if (leavesFromStart) {
+			addGeometry(mFromGeometry, pieceStart, -1);
+		}
+		else {
+			addGeometry(mFromGeometry + 1, pieceEnd - 1, 1);
+		}
+
+		// along each piece of the route, leaving out the vertex already added
+		for (int i = 0; i < routeLength; ++i) {
+			int piece = mRoutePieces[i];
+			if (mGraph.getPieceTo(piece) == mRouteTargets[i]) {
+				addGeometry(mGraph.getPieceGeometryStart(piece) + 1, mGraph.getPieceGeometryEnd(piece) - 1, 1);
+			}
+			else {
+				addGeometry(mGraph.getPieceGeometryEnd(piece) - 2, mGraph.getPieceGeometryStart(piece), -1);
+			}
+		}
+
+		// into the target piece, up to the end spot
+		if (mViaStart) {
+			addGeometry(mGraph.getPieceGeometryStart(toPiece) + 1, mToGeometry, 1);
+		}
+		else {
+			addGeometry(mGraph.getPieceGeometryEnd(toPiece) - 2, mToGeometry + 1, -1);
+		}
+		return mPathLength;
+	}
+
+	/**
+	 * @param index position in the last path, from 0 to buildPath()'s result - 1
+	 * @return the node there
+	 */
+	public int getPathNode(int index) {
+		return mPathNodes[index];
+	}
+
+	private void ensureRouteCapacity(int length) {
+		if (length > mRoutePieces.length) {
+			int capacity = Math.max(length, 2 * mRoutePieces.length);
+			mRoutePieces = new int[capacity];
+			mRouteTargets = new int[capacity];
+		}
+	}
+
+	/**
+	 * @return the vertex at the other end of a piece from the given one
+	 */
+	private int otherEnd(int piece, int vertex) {
+		return mGraph.getPieceFrom(piece) == vertex ? mGraph.getPieceTo(piece) : mGraph.getPieceFrom(piece);
+	}
+
+	/**
+	 * Adds the nodes of the geometry entries from first to last, inclusive, stepping by step (1 or -1). Nothing
+	 * is added if last is behind first.
+	 */
+	private void addGeometry(int first, int last, int step) {
+		int count = (last - first) * step + 1;
+		if (count <= 0) {
+			return;
+		}
+		if (mPathLength + count > mPathNodes.length) {
+			int[] bigger = new int[Math.max(2 * mPathNodes.length, mPathLength + count)];
+			System.arraycopy(mPathNodes, 0, bigger, 0, mPathLength);
+			mPathNodes = bigger;
+		}
+		for (int g = first, i = 0; i < count; g += step, ++i) {
+			mPathNodes[mPathLength++] = mGraph.getGeometryNode(g);
+		}
+	}
+}
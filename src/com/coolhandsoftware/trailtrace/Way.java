@@ -2,13 +2,25 @@ package com.coolhandsoftware.trailtrace;
 
 /**
  * A programmatic representation of an OSM "way", which is a series of latitude/longitude points.
+ * The points are indices into the NodeTable the way was read with, not coordinates.
  * @author David Cully (david.a.cully@gmail.com)
  *
  */
 public class Way {
 
-	public Way() {
-		// TODO Auto-generated constructor stub
+	/** OSM id of the way **/
+	public final long mId;
+
+	/** NodeTable index of each of the way's nodes, in order - don't write to it **/
+	public final int[] mNodeIndices;
+
+	/**
+	 * @param id OSM id of the way
+	 * @param nodeIndices NodeTable index of each of the way's nodes, in order - kept, not copied
+	 */
+	public Way(long id, int[] nodeIndices) {
+		mId = id;
+		mNodeIndices = nodeIndices;
 	}
 
 }
@@ -0,0 +1,454 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+import org.osmdroid.util.BoundingBoxE6;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Downloads the ways in the queries a CorridorQueryPlanner plans from Overpass, parses them with MapXMLParser
+ * and stores them in the WayTileCache. Shared by snapping, which needs the ways now, and by WayPrefetcher, which
+ * fetches them ahead of time at a lower priority.
+ *
+ * Snaps and prefetches run side by side, so two things are shared between every WayDownloader: the Overpass slots
+ * (at most MAX_QUERIES_OVERALL queries are in flight from the whole app), and the set of tiles being downloaded.
+ * A tile some other download is already fetching isn't asked for again - its ways are read from the cache once
+ * that download is over.
+ */
+public class WayDownloader {
+	
+	/** size of the buffers between the socket, the decompressor and the parser **/
+	private static final int DOWNLOAD_BUFFER_BYTES = 16 * 1024;
+	
+	/** Overpass endpoint queries are sent to **/
+	private static final String OVERPASS_URL = "http://overpass-api.de/api/interpreter?data=";
+	
+	/** most queries in flight from the whole app at once - the public server gives each client only a couple **/
+	private static final int MAX_QUERIES_OVERALL = 2;
+	
+	/** taken by every query while it's in flight **/
+	private static final Semaphore mQuerySlots = new Semaphore(MAX_QUERIES_OVERALL, true);
+	
+	/** quadkeys of the tiles some download is fetching - guarded by itself, notified as tiles are released **/
+	private static final HashSet<String> mInFlightTiles = new HashSet<String>();
+	
+	/** used to check for a network connection **/
+	private final Context mContext;
+	
+	/** most of this downloader's queries in flight at once - MAX_QUERIES_OVERALL still applies **/
+	private final int mMaxConcurrentQueries;
+	
+	/** android.os.Process priority of the download threads **/
+	private final int mThreadPriority;
+	
+	/**
+	 * @param context used to check for a network connection
+	 * @param maxConcurrentQueries most of this downloader's queries in flight at once
+	 * @param threadPriority android.os.Process priority of the download threads
+	 */
+	public WayDownloader(Context context, int maxConcurrentQueries, int threadPriority) {
+		mContext = context;
+		mMaxConcurrentQueries = maxConcurrentQueries;
+		mThreadPriority = threadPriority;
+	}
+	
+	/**
+	 * Runs the planned queries, a few at a time, then caches each query's tiles and adds its ways to the set.
+	 * Merging happens on the calling thread, in query order, so the WaySet never sees two threads - ways that came
+	 * back from two neighbouring queries are kept once. Tiles another download is already fetching are waited for
+	 * and read from the cache instead - and if that download failed to cache them, fetched after all. Interrupting
+	 * the calling thread stops it early, leaving whatever queries finished by then cached.
+	 * @param queries the missing cells of some tiles
+	 * @param cache where each tile's ways are stored
+	 * @param ways where all the downloaded ways are added, or null to only cache them
+	 */
+	public void fetchAll(List<CorridorQueryPlanner.Query> queries, WayTileCache cache, WaySet ways) {
+		fetchAll(queries, cache, ways, true);
+	}
+	
+	/**
+	 * See fetchAll above.
+	 * @param fetchOthersFailures whether to fetch the cells another download was fetching but failed to cache -
+	 * only once, so a snap doesn't go round again if that fails too
+	 */
+	private void fetchAll(List<CorridorQueryPlanner.Query> queries, WayTileCache cache, WaySet ways,
+			boolean fetchOthersFailures) {
+		ArrayList<String> othersTiles = new ArrayList<String>();
+		ArrayList<Long> othersCells = new ArrayList<Long>();
+		final List<CorridorQueryPlanner.Query> claimed = claim(queries, cache, othersTiles, othersCells);
+		
+		ThreadFactory factory = new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(mThreadPriority);
+						runnable.run();
+					}
+				}, "WayDownload");
+			}
+		};
+		ExecutorService executor = null;
+		int released = 0;
+		try {
+			if (!claimed.isEmpty()) {
+				executor = Executors.newFixedThreadPool(Math.min(claimed.size(), mMaxConcurrentQueries), factory);
+				ArrayList<NodeTable> nodeTables = new ArrayList<NodeTable>(claimed.size());
+				ArrayList<Future<ArrayList<Way>>> results = new ArrayList<Future<ArrayList<Way>>>(claimed.size());
+				for (final CorridorQueryPlanner.Query query : claimed) {
+					final NodeTable nodes = new NodeTable();
+					nodeTables.add(nodes);
+					results.add(executor.submit(new Callable<ArrayList<Way>>() {
+						@Override
+						public ArrayList<Way> call() throws InterruptedException {
+							mQuerySlots.acquire();
+							try {
+								return fetchWays(query.mBoxes, nodes);
+							}
+							finally {
+								mQuerySlots.release();
+							}
+						}
+					}));
+				}
+				
+				for (int q = 0; q < claimed.size() && !Thread.currentThread().isInterrupted(); ++q) {
+					ArrayList<Way> queryWays = results.get(q).get();
+					if (queryWays != null) {
+						cacheTiles(claimed.get(q), nodeTables.get(q), queryWays, cache);
+						if (ways != null) {
+							ways.addAll(nodeTables.get(q), queryWays);
+						}
+					}
+					release(claimed.get(q).mTiles);
+					released = q + 1;
+				}
+			}
+			
+			if (ways != null) {
+				// only the ways are wanted, not the download - a prefetch doesn't wait for tiles it didn't claim
+				ArrayList<String> failedTiles = new ArrayList<String>();
+				long[] failedCells = new long[othersTiles.size()];
+				for (int t = 0; t < othersTiles.size(); ++t) {
+					String tile = othersTiles.get(t);
+					awaitTile(tile);
+					long cached = cache.getCells(tile);
+					if (cached != 0) {
+						cache.load(tile, ways);
+					}
+					long missing = othersCells.get(t) & ~cached;
+					if (missing != 0) {
+						// the other download failed or was interrupted
+						failedCells[failedTiles.size()] = missing;
+						failedTiles.add(tile);
+					}
+				}
+				if (!failedTiles.isEmpty() && fetchOthersFailures) {
+					fetchAll(CorridorQueryPlanner.planQueries(failedTiles, failedCells), cache, ways, false);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Log.d("MapXMLDownload", "Interrupted while waiting for map XML downloads");
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			Log.d("MapXMLDownload", "Caught " + e.getCause() + " while downloading map XML data");
+		}
+		finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			// tiles of queries that never finished are free for the next download to fetch
+			for (int q = released; q < claimed.size(); ++q) {
+				release(claimed.get(q).mTiles);
+			}
+		}
+	}
+	
+	/**
+	 * Marks the tiles of some queries as being downloaded, except for ones that are cached by now or that another
+	 * download is already fetching. A query that only some of its cells are left of is planned again over those
+	 * cells, so nothing is downloaded twice.
+	 * @param queries the planned queries
+	 * @param cache used to skip tiles cached since the queries were planned
+	 * @param othersTiles gets the tiles that are cached or being fetched by another download
+	 * @param othersCells gets the cells the queries wanted of each of othersTiles
+	 * @return the queries left to run
+	 */
+	private static List<CorridorQueryPlanner.Query> claim(List<CorridorQueryPlanner.Query> queries,
+			WayTileCache cache, List<String> othersTiles, List<Long> othersCells) {
+		ArrayList<CorridorQueryPlanner.Query> claimed = new ArrayList<CorridorQueryPlanner.Query>(queries.size());
+		synchronized (mInFlightTiles) {
+			for (CorridorQueryPlanner.Query query : queries) {
+				ArrayList<String> mine = new ArrayList<String>(query.mTiles.size());
+				long[] mineCells = new long[query.mTiles.size()];
+				boolean unchanged = true;
+				for (int t = 0; t < query.mTiles.size(); ++t) {
+					String tile = query.mTiles.get(t);
+					long missing = mInFlightTiles.contains(tile) ? 0 : query.mCells[t] & ~cache.getCells(tile);
+					if (missing == 0) {
+						othersTiles.add(tile);
+						othersCells.add(query.mCells[t]);
+					}
+					else {
+						mineCells[mine.size()] = missing;
+						mine.add(tile);
+					}
+					unchanged = unchanged && missing == query.mCells[t];
+				}
+				mInFlightTiles.addAll(mine);
+				if (unchanged) {
+					claimed.add(query);
+				}
+				else if (!mine.isEmpty()) {
+					claimed.addAll(CorridorQueryPlanner.planQueries(mine, mineCells));
+				}
+			}
+		}
+		return claimed;
+	}
+	
+	/**
+	 * Lets other downloads fetch some tiles again, and wakes the ones waiting for them.
+	 */
+	private static void release(List<String> tiles) {
+		synchronized (mInFlightTiles) {
+			mInFlightTiles.removeAll(tiles);
+			mInFlightTiles.notifyAll();
+		}
+	}
+	
+	/**
+	 * Waits until no download is fetching a tile.
+	 * @throws InterruptedException if the calling thread is interrupted meanwhile
+	 */
+	private static void awaitTile(String tile) throws InterruptedException {
+		synchronized (mInFlightTiles) {
+			while (mInFlightTiles.contains(tile)) {
+				mInFlightTiles.wait();
+			}
+		}
+	}
+	
+	/**
+	 * Stores a query's ways in the WayTileCache, one tile at a time, as the ways of the tile's cells the query
+	 * covered. A tile gets every way whose bounding box overlaps it - a way reaching into a neighbouring query's
+	 * tiles is stored there too, from that query.
+	 * @param query the query the ways came from
+	 * @param nodes the table the ways refer to
+	 * @param queryWays the ways
+	 * @param cache where to store them
+	 */
+	private void cacheTiles(CorridorQueryPlanner.Query query, NodeTable nodes, ArrayList<Way> queryWays,
+			WayTileCache cache) {
+		if (query.mTiles.size() == 1) {
+			cache.put(query.mTiles.get(0), query.mCells[0], nodes, queryWays);
+			return;
+		}
+		
+		int wayCount = queryWays.size();
+		int[] minLat = new int[wayCount], minLon = new int[wayCount];
+		int[] maxLat = new int[wayCount], maxLon = new int[wayCount];
+		for (int w = 0; w < wayCount; ++w) {
+			minLat[w] = minLon[w] = Integer.MAX_VALUE;
+			maxLat[w] = maxLon[w] = Integer.MIN_VALUE;
+			int[] wayNodes = queryWays.get(w).mNodeIndices;
+			for (int i = 0; i < wayNodes.length; ++i) {
+				if (nodes.hasCoordinates(wayNodes[i])) {
+					minLat[w] = Math.min(minLat[w], nodes.getLatitudeE6(wayNodes[i]));
+					maxLat[w] = Math.max(maxLat[w], nodes.getLatitudeE6(wayNodes[i]));
+					minLon[w] = Math.min(minLon[w], nodes.getLongitudeE6(wayNodes[i]));
+					maxLon[w] = Math.max(maxLon[w], nodes.getLongitudeE6(wayNodes[i]));
+				}
+			}
+		}
+		
+		ArrayList<Way> tileWays = new ArrayList<Way>();
+		for (int t = 0; t < query.mTiles.size(); ++t) {
+			String tile = query.mTiles.get(t);
+			BoundingBoxE6 bounds = WayTileCache.tileBounds(tile);
+			tileWays.clear();
+			for (int w = 0; w < wayCount; ++w) {
+				if (minLat[w] <= bounds.getLatNorthE6() && maxLat[w] >= bounds.getLatSouthE6()
+						&& minLon[w] <= bounds.getLonEastE6() && maxLon[w] >= bounds.getLonWestE6()) {
+					tileWays.add(queryWays.get(w));
+				}
+			}
+			cache.put(tile, query.mCells[t], nodes, tileWays);
+		}
+	}
+	
+	/**
+	 * Downloads and parses the ways in some bounding boxes. Safe to call from several threads at once.
+	 * @param boxes areas to download
+	 * @param nodes where the ways' nodes are stored
+	 * @return the ways, or null if the download failed
+	 */
+	private ArrayList<Way> fetchWays(List<BoundingBoxE6> boxes, NodeTable nodes) {
+		String url = buildUrlForQuery(boxes);
+		InputStream inStream = url != null ? downloadURL(url) : null;
+		if (inStream == null) {
+			return null;
+		}
+		
+		try {
+			return parseXMLForWays(inStream, nodes);
+		}
+		finally {
+			try {
+				// drain whatever the parser didn't need, so the connection can be reused
+				byte[] drainBuffer = new byte[DOWNLOAD_BUFFER_BYTES];
+				while (inStream.read(drainBuffer) >= 0) {
+					// nothing to do with it
+				}
+			}
+			catch (IOException e) {
+				Log.d("MapXMLDownload", "Caught IOException while draining map XML stream");
+			}
+			try {
+				inStream.close();
+			}
+			catch (IOException e) {
+				Log.d("MapXMLDownload", "Caught IOException while closing map XML stream");
+			}
+		}
+	}
+	
+	/**
+	 * Uses MapXMLParser to read every OSM "way" out of the XML stream, storing their nodes in a NodeTable.
+	 * 
+	 * @param inStream Stream containing results from our XML map query
+	 * @param nodes where the ways' nodes are stored
+	 * @return the ways read, or null if the stream broke off, wasn't valid XML or held a malformed number
+	 */
+	private ArrayList<Way> parseXMLForWays(InputStream inStream, NodeTable nodes) {
+		ArrayList<Way> ways = new ArrayList<Way>();
+		try {
+			MapXMLParser parser = new MapXMLParser(inStream, nodes);
+			Way way = parser.readNextWay();
+			while (way != null) {
+				ways.add(way);
+				way = parser.readNextWay();
+			}
+		}
+		catch (XmlPullParserException e) {
+			Log.d("MapXMLDownload", "Caught XmlPullParserException while parsing map XML data");
+			return null;
+		}
+		catch (IOException e) {
+			Log.d("MapXMLDownload", "Caught IOException while parsing map XML data");
+			return null;
+		}
+		catch (NumberFormatException e) {
+			// a malformed id or coordinate - only this query's ways are lost
+			Log.d("MapXMLDownload", "Caught NumberFormatException while parsing map XML data");
+			return null;
+		}
+		return ways;
+	}
+	
+	/**
+	 * Builds the Overpass query for every highway (which covers paths, tracks and footways) in any of some bounding
+	 * boxes, along with their nodes, in the "skel" format MapXMLParser reads. A way in several boxes comes back once.
+	 * @param boxes areas to query
+	 * @return the complete URL, or null if it couldn't be encoded
+	 */
+	private String buildUrlForQuery(List<BoundingBoxE6> boxes) {
+		
+		// EXAMPLE FORMAT: "http://overpass-api.de/api/interpreter?data=(way(42.55,-71.49,42.56,-71.48)[highway];way(42.56,-71.49,42.57,-71.47)[highway];);(._;>;);out skel;&"
+		// bounding box syntax is (south, west, north, east)
+		StringBuilder query = new StringBuilder("(");
+		for (BoundingBoxE6 bbox : boxes) {
+			query.append("way(").append(bbox.getLatSouthE6() / 1e6).append(',').append(bbox.getLonWestE6() / 1e6)
+					.append(',').append(bbox.getLatNorthE6() / 1e6).append(',').append(bbox.getLonEastE6() / 1e6)
+					.append(")[highway];");
+		}
+		query.append(");(._;>;);out skel;");
+		
+		try {
+			return OVERPASS_URL + URLEncoder.encode(query.toString(), "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			Log.d("MapXMLDownload", "Caught UnsupportedEncodingException while building map XML query");
+			return null;
+		}
+	}
+	
+	
+	
+	
+	
+	
+	/**
+	 * Opens an HttpUrlConnection to the given URL, asking for a gzipped response. The returned stream
+	 * decompresses as it's read, so the parser works on the response while it's still arriving instead of
+	 * waiting for all of it. Close it when done (after reading to the end if possible) - that hands the
+	 * connection back to HttpURLConnection's keep-alive pool for the next tile's query.
+	 * 
+	 * @param myUrl the complete URL to connect to
+	 * @return the InputStream from the GET query, or null on failure
+	 */
+	private InputStream downloadURL(String myUrl) {
+		
+		InputStream inStream = null;
+		
+		NetworkChecker networkChecker = new NetworkChecker();
+		if (networkChecker.hasNetworkConnectivity(mContext)) {
+			
+			try {
+				URL url = new URL(myUrl);
+				
+				HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+				
+		        conn.setReadTimeout(10000 /* milliseconds */);
+		        conn.setConnectTimeout(15000 /* milliseconds */);
+		        conn.setRequestMethod("GET");
+		        conn.setDoInput(true);
+		        // asking explicitly means HttpURLConnection leaves decompressing to us, so check what came back
+		        conn.setRequestProperty("Accept-Encoding", "gzip");
+		        conn.setRequestProperty("Connection", "keep-alive");
+		        conn.connect();
+		        int response = conn.getResponseCode();
+		        Log.d("MapXMLDownload", "Downloading map XML, the response is: " + response);
+		        if (response != HttpURLConnection.HTTP_OK) {
+		        	conn.disconnect();
+		        	return null;
+		        }
+		        
+		        inStream = new BufferedInputStream(conn.getInputStream(), DOWNLOAD_BUFFER_BYTES);
+		        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+		        	inStream = new GZIPInputStream(inStream, DOWNLOAD_BUFFER_BYTES);
+		        }
+			}
+			catch (IOException e) {
+				inStream = null;
+				Log.d("MapXMLDownload", "Caught IOException while attempting to download map XML data");
+			}
+		}
+		
+		return inStream;
+	} // end downloadUrl(str)
+}
@@ -0,0 +1,224 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.osmdroid.util.BoundingBoxE6;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Downloads ways into the WayTileCache while the user is still drawing, so a snap finds them already cached and
+ * doesn't wait on the network.
+ *
+ * When drawing starts, the visible map plus a margin is fetched. After that, every stored trace point is checked
+ * against the tiles already asked for, and a stroke heading off the fetched area asks for the tiles around it.
+ * Downloads run one query at a time on a single lowest-priority thread, leaving the CPU to drawing and snapping.
+ * They share WayDownloader's Overpass slots and in-flight tiles with snaps, so a snap never adds to the prefetch's
+ * queries beyond the server's limit, and waits for a tile the prefetch is already fetching instead of asking again.
+ *
+ * This class is a singleton, like WayTileCache. start and stop are called from the UI thread, onTracePoint from
+ * the capture pipeline's worker.
+ */
+public class WayPrefetcher {
+
+	/** the visible map is grown by this fraction of its size on every side **/
+	private static final double VIEW_MARGIN = 0.5;
+
+	/** a stroke point closer than this to a tile that hasn't been asked for asks for it **/
+	private static final double EDGE_METERS = 500;
+
+	/** how far around such a point to fetch **/
+	private static final double EXTEND_METERS = 1500;
+
+	/** areas covering more cache tiles than this aren't prefetched - the map is zoomed too far out to draw on **/
+	private static final int MAX_PREFETCH_TILES = 36;
+
+	/** prefetch downloads one query at a time **/
+	private static final int MAX_CONCURRENT_QUERIES = 1;
+
+	/** used for the cache and network checks **/
+	private final Context mContext;
+
+	/** runs prefetches one after another **/
+	private final ExecutorService mExecutor;
+
+	/** prefetches that may not have finished, so stop can cancel them **/
+	private final ArrayList<Future<?>> mPending = new ArrayList<Future<?>>();
+
+	/** tiles already asked for, keyed (column, row) to 1 - or to -1 once a prefetch failed to cache them - guarded by this **/
+	private final LongIntHashMap mRequested = new LongIntHashMap(64);
+
+	/** true between start and stop, so stray trace points don't fetch anything **/
+	private volatile boolean mActive = false;
+
+	/** for singleton pattern **/
+	private static WayPrefetcher mSingleton = null;
+
+	/**
+	 * for singleton pattern
+	 * @param context any context - only its application context is kept
+	 * @return the prefetcher
+	 */
+	public static synchronized WayPrefetcher getInstance(Context context) {
+		if (mSingleton == null) {
+			mSingleton = new WayPrefetcher(context.getApplicationContext());
+		}
+		return mSingleton;
+	}
+
+	private WayPrefetcher(Context context) {
+		mContext = context;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+						runnable.run();
+					}
+				}, "WayPrefetch");
+			}
+		});
+	}
+
+	/**
+	 * Starts prefetching the visible map and a margin around it. UI thread only.
+	 * @param visible the map's visible area
+	 */
+	public void start(BoundingBoxE6 visible) {
+		mActive = true;
+		int latMargin = (int) (visible.getLatitudeSpanE6() * VIEW_MARGIN);
+		int lonMargin = (int) (visible.getLongitudeSpanE6() * VIEW_MARGIN);
+		prefetch(new BoundingBoxE6(Math.min(visible.getLatNorthE6() + latMargin, 85000000),
+				Math.min(visible.getLonEastE6() + lonMargin, 180000000),
+				Math.max(visible.getLatSouthE6() - latMargin, -85000000),
+				Math.max(visible.getLonWestE6() - lonMargin, -180000000)));
+	}
+
+	/**
+	 * Cancels the prefetches still running or waiting, and forgets which tiles were asked for, so ones that failed
+	 * are asked for again next time. UI thread only.
+	 */
+	public synchronized void stop() {
+		mActive = false;
+		for (Future<?> pending : mPending) {
+			pending.cancel(true);
+		}
+		mPending.clear();
+		mRequested.clear();
+	}
+
+	/**
+	 * Extends the prefetch if a new trace point is near a tile that hasn't been asked for. Only a few hash lookups
+	 * when the point is well inside the fetched area.
+	 * @param latitudeE6 the point's latitude, E6
+	 * @param longitudeE6 the point's longitude, E6
+	 */
+	public void onTracePoint(int latitudeE6, int longitudeE6) {
+		if (!mActive) {
+			return;
+		}
+		if (!isRequested(around(latitudeE6, longitudeE6, EDGE_METERS))) {
+			prefetch(around(latitudeE6, longitudeE6, EXTEND_METERS));
+		}
+	}
+
+	/**
+	 * Queues a prefetch of the tiles in an area that haven't been asked for yet.
+	 */
+	private synchronized void prefetch(final BoundingBoxE6 area) {
+		final CorridorQueryPlanner planner = new CorridorQueryPlanner(area);
+		if (planner.getTileCount() > MAX_PREFETCH_TILES) {
+			Log.d("WayPrefetcher", "Prefetch area covers " + planner.getTileCount() + " tiles, not prefetching");
+			return;
+		}
+		final long[] wanted = new long[planner.getTileCount()];
+		boolean any = false;
+		for (int t = 0; t < wanted.length; ++t) {
+			long key = key(planner.getTileX(t), planner.getTileY(t));
+			if (mRequested.get(key, -1) < 0) {
+				mRequested.put(key, 1);
+				wanted[t] = planner.getCells(t);
+				any = true;
+			}
+		}
+		if (!any) {
+			return;
+		}
+
+		// finished prefetches don't need cancelling any more
+		for (int i = mPending.size() - 1; i >= 0; --i) {
+			if (mPending.get(i).isDone()) {
+				mPending.remove(i);
+			}
+		}
+		mPending.add(mExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				WayTileCache cache = WayTileCache.getInstance(mContext);
+				for (int t = 0; t < wanted.length; ++t) {
+					wanted[t] &= ~cache.getCells(planner.getQuadkey(t));
+				}
+				new WayDownloader(mContext, MAX_CONCURRENT_QUERIES, Process.THREAD_PRIORITY_LOWEST)
+						.fetchAll(planner.planQueries(wanted), cache, null);
+				forgetUncached(planner, wanted, cache);
+			}
+		}));
+	}
+
+	/**
+	 * Lets the tiles a prefetch failed to cache be asked for again - whether its download failed, was interrupted
+	 * or left them to another download that failed.
+	 * @param planner the prefetch's tiles
+	 * @param wanted the cells the prefetch asked for of each tile
+	 * @param cache where they should be now
+	 */
+	private synchronized void forgetUncached(CorridorQueryPlanner planner, long[] wanted, WayTileCache cache) {
+		for (int t = 0; t < wanted.length; ++t) {
+			if ((wanted[t] & ~cache.getCells(planner.getQuadkey(t))) != 0) {
+				mRequested.put(key(planner.getTileX(t), planner.getTileY(t)), -1);
+			}
+		}
+	}
+
+	/**
+	 * @return true if every tile the area touches has been asked for
+	 */
+	private synchronized boolean isRequested(BoundingBoxE6 area) {
+		int zoom = WayTileCache.TILE_ZOOM;
+		int firstX = WebMercator.longitudeE6ToPixelX(area.getLonWestE6(), zoom) / WebMercator.TILE_SIZE;
+		int lastX = WebMercator.longitudeE6ToPixelX(area.getLonEastE6(), zoom) / WebMercator.TILE_SIZE;
+		int firstY = WebMercator.latitudeE6ToPixelY(area.getLatNorthE6(), zoom) / WebMercator.TILE_SIZE;
+		int lastY = WebMercator.latitudeE6ToPixelY(area.getLatSouthE6(), zoom) / WebMercator.TILE_SIZE;
+		for (int y = firstY; y <= lastY; ++y) {
+			for (int x = firstX; x <= lastX; ++x) {
+				if (mRequested.get(key(x, y), -1) < 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return a square area reaching the given distance from a point on every side
+	 */
+	private static BoundingBoxE6 around(int latitudeE6, int longitudeE6, double meters) {
+		int latE6 = (int) Math.toDegrees(meters / GeoDistance.MEAN_EARTH_RADIUS_METERS * 1e6);
+		double cosLat = Math.max(Math.cos(Math.toRadians(latitudeE6 / 1e6)), 0.01);
+		int lonE6 = (int) (latE6 / cosLat);
+		return new BoundingBoxE6(Math.min(latitudeE6 + latE6, 85000000), Math.min(longitudeE6 + lonE6, 180000000),
+				Math.max(latitudeE6 - latE6, -85000000), Math.max(longitudeE6 - lonE6, -180000000));
+	}
+
+	private static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+}
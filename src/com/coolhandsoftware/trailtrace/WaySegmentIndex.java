@@ -0,0 +1,443 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spatial index over the segments (node-to-node pieces) of a set of ways, for finding the trail segments near a
+ * traced point without scanning all of them.
+ *
+ * Everything is flattened into a local plane in meters (equirectangular, centered on the data's bounding box,
+ * which is plenty accurate over the few miles an Overpass query covers) and bucketed into a uniform grid. The
+ * cell size comes from the bounding box and the segment count, aiming for a couple of segments per cell, and
+ * each cell's segment ids sit in one shared array (cell c's ids run from mCellStarts[c] to mCellStarts[c+1]),
+ * so the whole index is a handful of primitive arrays.
+ *
+ * Segment ids number the segments of the ways in order: way 0's segments first, then way 1's, and so on. A node
+ * without coordinates leaves a hole in its way, so each way is also cut into runs - stretches without holes - and
+ * only the segments of one run are both consecutively numbered and actually joined end to end.
+ * Queries aren't thread safe (they share scratch state), but an index can be queried from any one thread.
+ */
+public class WaySegmentIndex {
+
+	/** meters per degree of latitude, on the sphere WebMercator uses **/
+	private static final double METERS_PER_DEGREE = Math.toRadians(1) * WebMercator.EARTH_RADIUS_METERS;
+
+	/** the grid aims for about this many segments per cell **/
+	private static final double SEGMENTS_PER_CELL = 2;
+
+	/** cells are never smaller than this, meters - smaller ones just cost memory **/
+	private static final double MIN_CELL_METERS = 10;
+
+	/** cells per side are capped at this, so a sparse, huge bounding box can't blow up memory **/
+	private static final int MAX_CELLS_PER_SIDE = 2048;
+
+	/** the ways' nodes **/
+	private final NodeTable mNodes;
+
+	/** local plane coordinates of each node, meters - NaN for nodes without coordinates **/
+	private final double[] mNodeX;
+	private final double[] mNodeY;
+
+	/** origin of the local plane **/
+	private final int mOriginLatE6;
+	private final int mOriginLonE6;
+
+	/** meters per degree of longitude at the origin **/
+	private final double mMetersPerDegreeLon;
+
+	/** first node, second node, way and run of each segment **/
+	private int[] mSegmentStartNode;
+	private int[] mSegmentEndNode;
+	private int[] mSegmentWay;
+	private int[] mSegmentRun;
+
+	/** distance along each segment's run from the run's first node to the segment's first node, meters **/
+	private double[] mSegmentOffsets;
+
+	/** number of segments **/
+	private int mSegmentCount = 0;
+
+	/** number of runs **/
+	private int mRunCount = 0;
+
+	/** grid geometry, in local meters **/
+	private double mGridMinX;
+	private double mGridMinY;
+	private double mCellSize;
+	private int mColumns;
+	private int mRows;
+
+	/** per-cell slices of mCellSegments, see the class comment **/
+	private int[] mCellStarts;
+	private int[] mCellSegments;
+
+	/** mSegmentStamps[s] == mStamp if segment s was already looked at by the current query **/
+	private int[] mSegmentStamps;
+	private int mStamp = 0;
+
+	/**
+	 * Builds the index.
+	 * @param nodes the nodes the ways refer to
+	 * @param ways the ways to index
+	 */
+	public WaySegmentIndex(NodeTable nodes, List<Way> ways) {
+		mNodes = nodes;
+
+		// bounding box of every node with coordinates
+		int minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE;
+		for (int n = 0; n < nodes.size(); ++n) {
+			if (nodes.hasCoordinates(n)) {
+				minLat = Math.min(minLat, nodes.getLatitudeE6(n));
+				maxLat = Math.max(maxLat, nodes.getLatitudeE6(n));
+				minLon = Math.min(minLon, nodes.getLongitudeE6(n));
+				maxLon = Math.max(maxLon, nodes.getLongitudeE6(n));
+			}
+		}
+		if (minLat > maxLat) {
+			minLat = maxLat = minLon = maxLon = 0; // no nodes at all
+		}
+		mOriginLatE6 = (int) (((long) minLat + maxLat) / 2);
+		mOriginLonE6 = (int) (((long) minLon + maxLon) / 2);
+		mMetersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(mOriginLatE6 / 1e6));
+
+		mNodeX = new double[nodes.size()];
+		mNodeY = new double[nodes.size()];
+		for (int n = 0; n < nodes.size(); ++n) {
+			if (nodes.hasCoordinates(n)) {
+				mNodeX[n] = toLocalX(nodes.getLongitudeE6(n));
+				mNodeY[n] = toLocalY(nodes.getLatitudeE6(n));
+			}
+			else {
+				mNodeX[n] = Double.NaN;
+				mNodeY[n] = Double.NaN;
+			}
+		}
+
+		collectSegments(ways);
+		buildGrid(toLocalX(minLon), toLocalY(minLat), toLocalX(maxLon), toLocalY(maxLat));
+		mSegmentStamps = new int[mSegmentCount];
+	}
+
+	/**
+	 * Numbers the segments of every way, leaving out ones with an endpoint whose coordinates were never read, and
+	 * starts a new run after each such gap.
+	 * @param ways the ways
+	 */
+	private void collectSegments(List<Way> ways) {
+		int capacity = 0;
+		for (int w = 0; w < ways.size(); ++w) {
+			capacity += Math.max(ways.get(w).mNodeIndices.length - 1, 0);
+		}
+		mSegmentStartNode = new int[capacity];
+		mSegmentEndNode = new int[capacity];
+		mSegmentWay = new int[capacity];
+		mSegmentRun = new int[capacity];
+		mSegmentOffsets = new double[capacity];
+
+		for (int w = 0; w < ways.size(); ++w) {
+			int[] wayNodes = ways.get(w).mNodeIndices;
+			double offset = 0;
+			boolean inRun = false;
+			for (int i = 0; i + 1 < wayNodes.length; ++i) {
+				int a = wayNodes[i];
+				int b = wayNodes[i + 1];
+				if (Double.isNaN(mNodeX[a]) || Double.isNaN(mNodeX[b])) {
+					inRun = false;
+					continue;
+				}
+				if (!inRun) {
+					inRun = true;
+					offset = 0;
+					++mRunCount;
+				}
+				mSegmentStartNode[mSegmentCount] = a;
+				mSegmentEndNode[mSegmentCount] = b;
+				mSegmentWay[mSegmentCount] = w;
+				mSegmentRun[mSegmentCount] = mRunCount - 1;
+				mSegmentOffsets[mSegmentCount] = offset;
+				offset += getSegmentLength(mSegmentCount);
+				++mSegmentCount;
+			}
+		}
+	}
+
+	/**
+	 * Sizes the grid from the bounding box and buckets every segment into each cell its bounding box touches.
+	 * Two passes - count, then fill - so the buckets go straight into one array.
+	 */
+	private void buildGrid(double minX, double minY, double maxX, double maxY) {
+		double width = Math.max(maxX - minX, MIN_CELL_METERS);
+		double height = Math.max(maxY - minY, MIN_CELL_METERS);
+		double cellArea = width * height * SEGMENTS_PER_CELL / Math.max(mSegmentCount, 1);
+		mCellSize = Math.max(Math.sqrt(cellArea), MIN_CELL_METERS);
+		mCellSize = Math.max(mCellSize, Math.max(width, height) / MAX_CELLS_PER_SIDE);
+		mGridMinX = minX;
+		mGridMinY = minY;
+		mColumns = (int) (width / mCellSize) + 1;
+		mRows = (int) (height / mCellSize) + 1;
+
+		mCellStarts = new int[mColumns * mRows + 1];
+		for (int pass = 0; pass < 2; ++pass) {
+			int[] fill = null;
+			if (pass == 1) {
+				// turn counts into starts, then use a copy of the starts as write positions
+				for (int c = 0; c < mColumns * mRows; ++c) {
+					mCellStarts[c + 1] += mCellStarts[c];
+				}
+				mCellSegments = new int[mCellStarts[mColumns * mRows]];
+				fill = Arrays.copyOf(mCellStarts, mColumns * mRows);
+			}
+			for (int s = 0; s < mSegmentCount; ++s) {
+				double ax = mNodeX[mSegmentStartNode[s]], ay = mNodeY[mSegmentStartNode[s]];
+				double bx = mNodeX[mSegmentEndNode[s]], by = mNodeY[mSegmentEndNode[s]];
+				int firstColumn = column(Math.min(ax, bx)), lastColumn = column(Math.max(ax, bx));
+				int firstRow = row(Math.min(ay, by)), lastRow = row(Math.max(ay, by));
+				for (int r = firstRow; r <= lastRow; ++r) {
+					for (int c = firstColumn; c <= lastColumn; ++c) {
+						int cell = r * mColumns + c;
+						if (pass == 0) {
+							++mCellStarts[cell + 1];
+						}
+						else {
+							mCellSegments[fill[cell]++] = s;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds every segment within a distance of a point.
+	 * @param latitudeE6 latitude of the point, E6 format
+	 * @param longitudeE6 longitude of the point, E6 format
+	 * @param radiusMeters how far to look
+	 * @param out cleared, then filled with the segments found, in no particular order
+	 * @return number of segments found
+	 */
+	public int findWithinRadius(int latitudeE6, int longitudeE6, double radiusMeters, SegmentHits out) {
+		out.clear();
+		double x = toLocalX(longitudeE6);
+		double y = toLocalY(latitudeE6);
+		nextStamp();
+		for (int r = row(y - radiusMeters); r <= row(y + radiusMeters); ++r) {
+			for (int c = column(x - radiusMeters); c <= column(x + radiusMeters); ++c) {
+				int cell = r * mColumns + c;
+				for (int i = mCellStarts[cell]; i < mCellStarts[cell + 1]; ++i) {
+					int segment = mCellSegments[i];
+					if (mSegmentStamps[segment] == mStamp) {
+						continue;
+					}
+					mSegmentStamps[segment] = mStamp;
+					double fraction = footFraction(segment, x, y);
+					double distance = distanceToFoot(segment, fraction, x, y);
+					if (distance <= radiusMeters) {
+						out.add(segment, distance, fraction, footLatitudeE6(segment, fraction), footLongitudeE6(segment, fraction));
+					}
+				}
+			}
+		}
+		return out.size();
+	}
+
+	/**
+	 * Finds the k segments nearest a point, searching outward ring by ring of grid cells and stopping as soon as
+	 * the next ring can't hold anything nearer than what's been found.
+	 * @param latitudeE6 latitude of the point, E6 format
+	 * @param longitudeE6 longitude of the point, E6 format
+	 * @param k the most segments to return
+	 * @param maxRadiusMeters segments farther than this are ignored
+	 * @param out cleared, then filled with the segments found, nearest first
+	 * @return number of segments found
+	 */
+	public int findNearest(int latitudeE6, int longitudeE6, int k, double maxRadiusMeters, SegmentHits out) {
+		out.clear();
+		if (k <= 0 || mSegmentCount == 0) {
+			return 0;
+		}
+		double x = toLocalX(longitudeE6);
+		double y = toLocalY(latitudeE6);
+		int centerColumn = column(x);
+		int centerRow = row(y);
+		int maxRing = Math.max(mColumns, mRows);
+		nextStamp();
+
+		for (int ring = 0; ring <= maxRing; ++ring) {
+			// anything in this ring or beyond is at least this far away (the point may sit anywhere in its cell,
+			// and a clamped point outside the grid is farther still)
+			double ringDistance = Math.max(ring - 1, 0) * mCellSize;
+			if (ringDistance > maxRadiusMeters || (out.size() == k && ringDistance > out.getDistance(k - 1))) {
+				break;
+			}
+			for (int r = centerRow - ring; r <= centerRow + ring; ++r) {
+				if (r < 0 || r >= mRows) {
+					continue;
+				}
+				boolean edgeRow = r == centerRow - ring || r == centerRow + ring;
+				int step = edgeRow ? 1 : 2 * ring;
+				for (int c = centerColumn - ring; c <= centerColumn + ring; c += Math.max(step, 1)) {
+					if (c < 0 || c >= mColumns) {
+						continue;
+					}
+					int cell = r * mColumns + c;
+					for (int i = mCellStarts[cell]; i < mCellStarts[cell + 1]; ++i) {
+						int segment = mCellSegments[i];
+						if (mSegmentStamps[segment] == mStamp) {
+							continue;
+						}
+						mSegmentStamps[segment] = mStamp;
+						double fraction = footFraction(segment, x, y);
+						double distance = distanceToFoot(segment, fraction, x, y);
+						if (distance <= maxRadiusMeters) {
+							out.insertSorted(k, segment, distance, fraction,
+									footLatitudeE6(segment, fraction), footLongitudeE6(segment, fraction));
+						}
+					}
+				}
+			}
+		}
+		return out.size();
+	}
+
+	/**
+	 * @return where along the segment the point nearest (x, y) is, 0 at its first node and 1 at its second
+	 */
+	private double footFraction(int segment, double x, double y) {
+		double ax = mNodeX[mSegmentStartNode[segment]], ay = mNodeY[mSegmentStartNode[segment]];
+		double dx = mNodeX[mSegmentEndNode[segment]] - ax;
+		double dy = mNodeY[mSegmentEndNode[segment]] - ay;
+		double lengthSquared = dx * dx + dy * dy;
+		if (lengthSquared == 0) {
+			return 0;
+		}
+		return Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / lengthSquared));
+	}
+
+	/**
+	 * @return distance in meters from (x, y) to the spot the given fraction along the segment
+	 */
+	private double distanceToFoot(int segment, double fraction, double x, double y) {
+		double ax = mNodeX[mSegmentStartNode[segment]], ay = mNodeY[mSegmentStartNode[segment]];
+		double footX = ax + fraction * (mNodeX[mSegmentEndNode[segment]] - ax);
+		double footY = ay + fraction * (mNodeY[mSegmentEndNode[segment]] - ay);
+		double dx = x - footX, dy = y - footY;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	private int footLatitudeE6(int segment, double fraction) {
+		int a = mNodes.getLatitudeE6(mSegmentStartNode[segment]);
+		return (int) Math.round(a + fraction * (mNodes.getLatitudeE6(mSegmentEndNode[segment]) - a));
+	}
+
+	private int footLongitudeE6(int segment, double fraction) {
+		int a = mNodes.getLongitudeE6(mSegmentStartNode[segment]);
+		return (int) Math.round(a + fraction * (mNodes.getLongitudeE6(mSegmentEndNode[segment]) - a));
+	}
+
+	/**
+	 * Starts a new query's worth of "already looked at" marks.
+	 */
+	private void nextStamp() {
+		if (++mStamp == Integer.MAX_VALUE) {
+			Arrays.fill(mSegmentStamps, 0);
+			mStamp = 1;
+		}
+	}
+
+	/**
+	 * @return grid column holding local x, clamped to the grid
+	 */
+	private int column(double x) {
+		return Math.max(0, Math.min(mColumns - 1, (int) Math.floor((x - mGridMinX) / mCellSize)));
+	}
+
+	/**
+	 * @return grid row holding local y, clamped to the grid
+	 */
+	private int row(double y) {
+		return Math.max(0, Math.min(mRows - 1, (int) Math.floor((y - mGridMinY) / mCellSize)));
+	}
+
+	/**
+	 * @param longitudeE6 longitude, E6 format
+	 * @return x-coordinate in the index's local plane, meters
+	 */
+	public double toLocalX(int longitudeE6) {
+		return (longitudeE6 - mOriginLonE6) / 1e6 * mMetersPerDegreeLon;
+	}
+
+	/**
+	 * @param latitudeE6 latitude, E6 format
+	 * @return y-coordinate in the index's local plane, meters
+	 */
+	public double toLocalY(int latitudeE6) {
+		return (latitudeE6 - mOriginLatE6) / 1e6 * METERS_PER_DEGREE;
+	}
+
+	/**
+	 * @return number of indexed segments
+	 */
+	public int getSegmentCount() {
+		return mSegmentCount;
+	}
+
+	/**
+	 * @param segment segment id
+	 * @return NodeTable index of the segment's first node
+	 */
+	public int getSegmentStartNode(int segment) {
+		return mSegmentStartNode[segment];
+	}
+
+	/**
+	 * @param segment segment id
+	 * @return NodeTable index of the segment's second node
+	 */
+	public int getSegmentEndNode(int segment) {
+		return mSegmentEndNode[segment];
+	}
+
+	/**
+	 * @param segment segment id
+	 * @return index, in the list the index was built from, of the way the segment belongs to
+	 */
+	public int getSegmentWay(int segment) {
+		return mSegmentWay[segment];
+	}
+
+	/**
+	 * @param segment segment id
+	 * @return the run the segment belongs to - segments of one run have consecutive ids and follow each other
+	 * along their way without a gap, see the class comment
+	 */
+	public int getSegmentRun(int segment) {
+		return mSegmentRun[segment];
+	}
+
+	/**
+	 * @param segment segment id
+	 * @return distance along the segment's run from the run's first node to the segment's first node, meters
+	 */
+	public double getSegmentOffset(int segment) {
+		return mSegmentOffsets[segment];
+	}
+
+	/**
+	 * @param segment segment id
+	 * @return length of the segment in the local plane, meters
+	 */
+	public double getSegmentLength(int segment) {
+		double dx = mNodeX[mSegmentEndNode[segment]] - mNodeX[mSegmentStartNode[segment]];
+		double dy = mNodeY[mSegmentEndNode[segment]] - mNodeY[mSegmentStartNode[segment]];
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * @return the NodeTable the index was built from
+	 */
+	public NodeTable getNodeTable() {
+		return mNodes;
+	}
+}
@@ -0,0 +1,110 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ways gathered from several sources (cache tiles, downloads) into one NodeTable, each way kept only once.
+ * Tiles overlap - a trail crossing a tile edge comes back with both tiles - so ways are de-duplicated by OSM id,
+ * and nodes by OSM id through the NodeTable.
+ */
+public class WaySet {
+
+	/** every node of every way in the set **/
+	private final NodeTable mNodes = new NodeTable();
+
+	/** the ways, in the order they were added **/
+	private final ArrayList<Way> mWays = new ArrayList<Way>();
+
+	/** OSM way id to index in mWays **/
+	private final LongIntHashMap mWayIds = new LongIntHashMap(256);
+
+	public WaySet() {
+
+	}
+
+	/**
+	 * @param wayId OSM way id
+	 * @return true if the way is already in the set
+	 */
+	public boolean contains(long wayId) {
+		return mWayIds.get(wayId, -1) >= 0;
+	}
+
+	/**
+	 * Adds a way, unless one with the same id is already in the set.
+	 * @param wayId OSM way id
+	 * @param nodeIds OSM ids of the way's nodes, in order
+	 * @param latitudesE6 latitude of each node, E6 format
+	 * @param longitudesE6 longitude of each node, E6 format
+	 * @param count number of nodes
+	 * @return true if the way was added
+	 */
+	public boolean addWay(long wayId, long[] nodeIds, int[] latitudesE6, int[] longitudesE6, int count) {
+		if (contains(wayId)) {
+			return false;
+		}
+		int[] indices = new int[count];
+		for (int i = 0; i < count; ++i) {
+			indices[i] = mNodes.indexOf(nodeIds[i]);
+			mNodes.setCoordinates(indices[i], latitudesE6[i], longitudesE6[i]);
+		}
+		mWayIds.put(wayId, mWays.size());
+		mWays.add(new Way(wayId, indices));
+		return true;
+	}
+
+	/**
+	 * Adds every way from another node table's ways, skipping ones already in the set and nodes whose
+	 * coordinates were never read.
+	 * @param nodes the table the ways refer to
+	 * @param ways the ways
+	 */
+	public void addAll(NodeTable nodes, List<Way> ways) {
+		for (int w = 0; w < ways.size(); ++w) {
+			Way way = ways.get(w);
+			if (contains(way.mId)) {
+				continue;
+			}
+			int[] indices = new int[way.mNodeIndices.length];
+			int count = 0;
+			for (int i = 0; i < way.mNodeIndices.length; ++i) {
+				int node = way.mNodeIndices[i];
+				if (!nodes.hasCoordinates(node)) {
+					continue;
+				}
+				indices[count] = mNodes.indexOf(nodes.getId(node));
+				mNodes.setCoordinates(indices[count], nodes.getLatitudeE6(node), nodes.getLongitudeE6(node));
+				++count;
+			}
+			if (count < indices.length) {
+				int[] trimmed = new int[count];
+				System.arraycopy(indices, 0, trimmed, 0, count);
+				indices = trimmed;
+			}
+			mWayIds.put(way.mId, mWays.size());
+			mWays.add(new Way(way.mId, indices));
+		}
+	}
+
+	/**
+	 * @return the table every way in the set refers to
+	 */
+	public NodeTable getNodeTable() {
+		return mNodes;
+	}
+
+	/**
+	 * @return the ways - don't change the list
+	 */
+	public ArrayList<Way> getWays() {
+		return mWays;
+	}
+
+	/**
+	 * @return number of ways in the set
+	 */
+	public int size() {
+		return mWays.size();
+	}
+}
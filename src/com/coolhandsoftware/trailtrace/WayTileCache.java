@@ -0,0 +1,537 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osmdroid.util.BoundingBoxE6;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * On-disk cache of parsed ways, cut into fixed-zoom map tiles, so snapping in the same area again doesn't download
+ * and parse the same Overpass XML again. Each tile is one file in the app's cache directory, named by its quadkey,
+ * holding ways that cross the tile, already parsed, in the WayTileFile format. A snap only downloads the cells of
+ * a tile its corridor touches (see CorridorQueryPlanner), so a tile may hold every way of only some of its cells;
+ * getCells says which, and storing more cells of a tile adds them to the ones already cached.
+ *
+ * Tiles are grouped into regions - their parent tiles at REGION_ZOOM - and a region can also have a
+ * ContractionHierarchy over all of its cached ways. A region's hierarchy is dropped whenever one of its tiles
+ * is stored or leaves the cache, since it no longer fits the region's ways. Each region also has a version,
+ * bumped at the same times, so things built from a region's ways in memory can tell when they're out of date.
+ *
+ * The cache is kept under a byte budget by evicting the least recently used files, tiles and hierarchies alike.
+ * Recency is tracked in memory with an access-ordered LinkedHashMap, and seeded at startup from the files'
+ * modification times.
+ *
+ * Tiles imported from an extract by PbfImporter are kept apart, in the app's files directory, and don't count
+ * toward the budget - they're what snapping falls back on without a signal, so downloads mustn't push them out.
+ * An imported tile takes the place of a downloaded one for the same quadkey.
+ *
+ * This class is a singleton, like MapTraceCoordinateManager, and every method is synchronized - snaps run on
+ * background threads.
+ */
+public class WayTileCache {
+
+	/** zoom level of the cache tiles - a tile is about 2.4 km across at the equator, less toward the poles **/
+	public static final int TILE_ZOOM = 14;
+
+	/** zoom level of the regions hierarchies are kept for - 8 by 8 cache tiles, about 20 km across **/
+	public static final int REGION_ZOOM = 11;
+
+	/** evict tiles once the cache is bigger than this **/
+	private static final long BYTE_BUDGET = 16 * 1024 * 1024;
+
+	/** ending of tile file names **/
+	private static final String SUFFIX = ".ways";
+
+	/** ending of ContractionHierarchy file names **/
+	private static final String HIERARCHY_SUFFIX = ".ch";
+
+	/** ending of a hierarchy file still being written **/
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/** where the tile files live **/
+	private final File mDirectory;
+
+	/** where the imported tile files live **/
+	private final File mImportDirectory;
+
+	/** quadkeys of the imported tiles - never evicted **/
+	private final HashSet<String> mImported = new HashSet<String>();
+
+	/** name of every cached tile and hierarchy file to its size, least recently used first **/
+	private final LinkedHashMap<String, Long> mFiles = new LinkedHashMap<String, Long>(64, 0.75f, true);
+
+	/** total size of the cached files **/
+	private long mTotalBytes = 0;
+
+	/** version of every region whose tiles changed since the cache was opened - the others are at 0 **/
+	private final HashMap<String, Integer> mRegionVersions = new HashMap<String, Integer>();
+
+	/** cells of the downloaded tiles whose files were read or written since the cache was opened **/
+	private final HashMap<String, Long> mCells = new HashMap<String, Long>();
+
+	/** reused while reading tiles **/
+	private long[] mNodeIds = new long[256];
+	private int[] mLatE6 = new int[256];
+	private int[] mLonE6 = new int[256];
+
+	/** for singleton pattern **/
+	private static WayTileCache mSingleton = null;
+
+	/** for singleton pattern **/
+	public static synchronized WayTileCache getInstance(Context context) {
+		if (mSingleton == null) {
+			mSingleton = new WayTileCache(new File(context.getCacheDir(), "waytiles"),
+					new File(context.getFilesDir(), "importedtiles"));
+		}
+		return mSingleton;
+	}
+
+	/**
+	 * Opens the cache, picking up whatever tiles and hierarchies are already on disk.
+	 * @param directory where the tile files live
+	 * @param importDirectory where the imported tile files live
+	 */
+	private WayTileCache(File directory, File importDirectory) {
+		mDirectory = directory;
+		mDirectory.mkdirs();
+		mImportDirectory = importDirectory;
+		mImportDirectory.mkdirs();
+
+		String[] imported = mImportDirectory.list();
+		if (imported != null) {
+			for (String name : imported) {
+				if (name.endsWith(SUFFIX)) {
+					mImported.add(name.substring(0, name.length() - SUFFIX.length()));
+				}
+			}
+		}
+
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(SUFFIX) || name.endsWith(HIERARCHY_SUFFIX)) {
+				mFiles.put(name, file.length());
+				mTotalBytes += file.length();
+			}
+			else if (name.endsWith(TEMP_SUFFIX)) {
+				file.delete(); // left by a write that never finished
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Builds the quadkey of a tile - one digit per zoom level, each picking a quadrant of the tile above.
+	 * @param tileX tile column
+	 * @param tileY tile row
+	 * @param zoom zoom level
+	 * @return the quadkey
+	 */
+	public static String quadkey(int tileX, int tileY, int zoom) {
+		char[] digits = new char[zoom];
+		for (int level = zoom; level > 0; --level) {
+			int mask = 1 << (level - 1);
+			int digit = ((tileX & mask) != 0 ? 1 : 0) + ((tileY & mask) != 0 ? 2 : 0);
+			digits[zoom - level] = (char) ('0' + digit);
+		}
+		return new String(digits);
+	}
+
+	/**
+	 * @param quadkey a cache tile's quadkey
+	 * @return quadkey of the region the tile is in
+	 */
+	public static String regionOf(String quadkey) {
+		return quadkey.substring(0, REGION_ZOOM);
+	}
+
+	/**
+	 * @param quadkey a tile's quadkey
+	 * @return the tile's bounding box
+	 */
+	public static BoundingBoxE6 tileBounds(String quadkey) {
+		int tileX = 0, tileY = 0;
+		int zoom = quadkey.length();
+		for (int i = 0; i < zoom; ++i) {
+			int digit = quadkey.charAt(i) - '0';
+			tileX = (tileX << 1) | (digit & 1);
+			tileY = (tileY << 1) | (digit >> 1);
+		}
+		int size = WebMercator.TILE_SIZE;
+		return new BoundingBoxE6(WebMercator.pixelYToLatitudeE6(tileY * (double) size, zoom),
+				WebMercator.pixelXToLongitudeE6((tileX + 1) * (double) size, zoom),
+				WebMercator.pixelYToLatitudeE6((tileY + 1) * (double) size, zoom),
+				WebMercator.pixelXToLongitudeE6(tileX * (double) size, zoom));
+	}
+
+	/**
+	 * @param bbox an area
+	 * @return quadkeys of the cache tiles covering the area
+	 */
+	public static List<String> tilesCovering(BoundingBoxE6 bbox) {
+		int size = WebMercator.TILE_SIZE;
+		int firstX = WebMercator.longitudeE6ToPixelX(bbox.getLonWestE6(), TILE_ZOOM) / size;
+		int lastX = WebMercator.longitudeE6ToPixelX(bbox.getLonEastE6(), TILE_ZOOM) / size;
+		int firstY = WebMercator.latitudeE6ToPixelY(bbox.getLatNorthE6(), TILE_ZOOM) / size;
+		int lastY = WebMercator.latitudeE6ToPixelY(bbox.getLatSouthE6(), TILE_ZOOM) / size;
+		int maxTile = (1 << TILE_ZOOM) - 1;
+
+		ArrayList<String> result = new ArrayList<String>();
+		for (int y = Math.max(firstY, 0); y <= Math.min(lastY, maxTile); ++y) {
+			for (int x = Math.max(firstX, 0); x <= Math.min(lastX, maxTile); ++x) {
+				result.add(quadkey(x, y, TILE_ZOOM));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param quadkey a tile's quadkey
+	 * @return true if every cell of the tile is cached
+	 */
+	public synchronized boolean contains(String quadkey) {
+		return getCells(quadkey) == CorridorQueryPlanner.ALL_CELLS;
+	}
+
+	/**
+	 * @param quadkey a tile's quadkey
+	 * @return the tile's cells that every way of is cached, see CorridorQueryPlanner.CELLS_PER_SIDE - 0 if the
+	 * tile isn't cached at all
+	 */
+	public synchronized long getCells(String quadkey) {
+		if (mImported.contains(quadkey)) {
+			return CorridorQueryPlanner.ALL_CELLS;
+		}
+		if (!mFiles.containsKey(quadkey + SUFFIX)) {
+			return 0;
+		}
+		Long cells = mCells.get(quadkey);
+		if (cells == null) {
+			try {
+				cells = new WayTileFile(tileFile(quadkey)).getCells();
+			}
+			catch (IOException e) {
+				Log.d("WayTileCache", "Caught IOException while reading tile " + quadkey + ", dropping it");
+				remove(quadkey);
+				return 0;
+			}
+			mCells.put(quadkey, cells);
+		}
+		return cells;
+	}
+
+	/**
+	 * Reads a cached tile's ways into a set, and marks the tile as recently used.
+	 * @param quadkey the tile's quadkey
+	 * @param into where to add the ways
+	 * @return false if the tile isn't cached (or its file turned out to be unreadable, in which case it's dropped)
+	 */
+	public synchronized boolean load(String quadkey, WaySet into) {
+		return load(quadkey, null, into);
+	}
+
+	/**
+	 * Reads the ways of a cached tile that come near an area into a set, and marks the tile as recently used.
+	 * Ways are picked by the bounding boxes in the tile's offset table, so the others are never decoded. An
+	 * imported tile is read in preference to a downloaded one.
+	 * @param quadkey the tile's quadkey
+	 * @param area only ways whose bounding box overlaps this are read, null for all of them
+	 * @param into where to add the ways
+	 * @return false if the tile isn't cached (or its file turned out to be unreadable, in which case it's dropped)
+	 */
+	public synchronized boolean load(String quadkey, BoundingBoxE6 area, WaySet into) {
+		File file;
+		if (mImported.contains(quadkey)) {
+			file = importedFile(quadkey);
+		}
+		else if (mFiles.get(quadkey + SUFFIX) != null) {
+			file = tileFile(quadkey);
+		}
+		else {
+			return false;
+		}
+		try {
+			WayTileFile tile = new WayTileFile(file);
+			for (int w = 0; w < tile.getWayCount(); ++w) {
+				if (into.contains(tile.getWayId(w))) {
+					continue;
+				}
+				if (area != null && !tile.intersects(w, area.getLatSouthE6(), area.getLonWestE6(),
+						area.getLatNorthE6(), area.getLonEastE6())) {
+					continue;
+				}
+				ensureCapacity(tile.getNodeCount(w));
+				int count = tile.readWay(w, mNodeIds, mLatE6, mLonE6);
+				into.addWay(tile.getWayId(w), mNodeIds, mLatE6, mLonE6, count);
+			}
+			if (!mImported.contains(quadkey)) {
+				file.setLastModified(System.currentTimeMillis());
+			}
+			return true;
+		}
+		catch (IOException e) {
+			Log.d("WayTileCache", "Caught IOException while reading tile " + quadkey + ", dropping it");
+			remove(quadkey);
+			return false;
+		}
+		catch (RuntimeException e) {
+			// a corrupt body runs the decoder off the end of the buffer
+			Log.d("WayTileCache", "Caught " + e.getClass().getSimpleName() + " while reading tile " + quadkey + ", dropping it");
+			remove(quadkey);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the ways of every cached tile in a region into a set, in quadkey order, so the same cached tiles
+	 * always give the same ways.
+	 * @param region the region's quadkey
+	 * @param into where to add the ways
+	 * @return number of tiles read
+	 */
+	public synchronized int loadRegion(String region, WaySet into) {
+		ArrayList<String> quadkeys = new ArrayList<String>();
+		for (String name : mFiles.keySet()) {
+			if (name.startsWith(region) && name.endsWith(SUFFIX)) {
+				String quadkey = name.substring(0, name.length() - SUFFIX.length());
+				if (!mImported.contains(quadkey)) {
+					quadkeys.add(quadkey);
+				}
+			}
+		}
+		for (String quadkey : mImported) {
+			if (quadkey.startsWith(region)) {
+				quadkeys.add(quadkey);
+			}
+		}
+		Collections.sort(quadkeys);
+		int loaded = 0;
+		for (String quadkey : quadkeys) {
+			if (load(quadkey, into)) {
+				++loaded;
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Stores ways of some of a tile's cells, evicting old tiles if that takes the cache over its budget. Cells
+	 * already cached and not among the new ones are kept, along with their ways.
+	 * @param quadkey the tile's quadkey
+	 * @param cells the cells the ways are every way of
+	 * @param nodes the table the ways refer to
+	 * @param ways every way crossing the cells
+	 */
+	public synchronized void put(String quadkey, long cells, NodeTable nodes, List<Way> ways) {
+		if (mImported.contains(quadkey)) {
+			return; // the imported tile is kept instead
+		}
+		long cached = getCells(quadkey);
+		if ((cached & ~cells) != 0) {
+			WaySet merged = new WaySet();
+			merged.addAll(nodes, ways);
+			if (load(quadkey, merged)) {
+				cells |= cached;
+				nodes = merged.getNodeTable();
+				ways = merged.getWays();
+			}
+		}
+		File file = tileFile(quadkey);
+		try {
+			WayTileFile.write(file, cells, nodes, ways);
+		}
+		catch (IOException e) {
+			Log.d("WayTileCache", "Caught IOException while writing tile " + quadkey);
+			remove(quadkey);
+			return;
+		}
+
+		Long previous = mFiles.put(file.getName(), file.length());
+		mTotalBytes += file.length() - (previous != null ? previous : 0);
+		mCells.put(quadkey, cells);
+		regionChanged(regionOf(quadkey));
+		evict();
+	}
+
+	/**
+	 * Stores a tile imported from an extract. It's kept until another import replaces it, and replaces any
+	 * downloaded copy of the tile.
+	 * @param quadkey the tile's quadkey
+	 * @param nodes the table the ways refer to
+	 * @param ways every way crossing the tile
+	 */
+	public synchronized void putImported(String quadkey, NodeTable nodes, List<Way> ways) {
+		File file = importedFile(quadkey);
+		try {
+			WayTileFile.write(file, CorridorQueryPlanner.ALL_CELLS, nodes, ways);
+		}
+		catch (IOException e) {
+			Log.d("WayTileCache", "Caught IOException while writing imported tile " + quadkey);
+			file.delete();
+			mImported.remove(quadkey);
+			return;
+		}
+
+		mImported.add(quadkey);
+		mCells.remove(quadkey);
+		Long downloaded = mFiles.remove(quadkey + SUFFIX);
+		if (downloaded != null) {
+			mTotalBytes -= downloaded;
+			tileFile(quadkey).delete();
+		}
+		regionChanged(regionOf(quadkey));
+	}
+
+	/**
+	 * @param region a region's quadkey
+	 * @return the region's version - it changes whenever one of the region's tiles is stored or leaves the cache
+	 */
+	public synchronized int getRegionVersion(String region) {
+		Integer version = mRegionVersions.get(region);
+		return version != null ? version : 0;
+	}
+
+	/**
+	 * @param region a region's quadkey
+	 * @return true if a hierarchy is saved for the region - it's marked as recently used
+	 */
+	public synchronized boolean hasHierarchy(String region) {
+		return mFiles.get(region + HIERARCHY_SUFFIX) != null;
+	}
+
+	/**
+	 * Where a region's ContractionHierarchy is kept, for reading it. The file may be deleted at any time.
+	 * @param region the region's quadkey
+	 * @return the file, which may not exist
+	 */
+	public File getHierarchyFile(String region) {
+		return new File(mDirectory, region + HIERARCHY_SUFFIX);
+	}
+
+	/**
+	 * Saves a region's hierarchy, replacing any older one, and evicts old files if that takes the cache over its
+	 * budget. The file is written under another name first, so a snap reading the old one never sees half of it.
+	 * @param region the region's quadkey
+	 * @param hierarchy a hierarchy over all of the region's cached ways
+	 */
+	public void putHierarchy(String region, ContractionHierarchy hierarchy) {
+		File temp = new File(mDirectory, region + HIERARCHY_SUFFIX + TEMP_SUFFIX);
+		try {
+			hierarchy.save(temp);
+		}
+		catch (IOException e) {
+			Log.d("WayTileCache", "Caught IOException while writing the hierarchy of " + region);
+			temp.delete();
+			return;
+		}
+
+		synchronized (this) {
+			File file = getHierarchyFile(region);
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				return;
+			}
+			Long previous = mFiles.put(file.getName(), file.length());
+			mTotalBytes += file.length() - (previous != null ? previous : 0);
+			evict();
+		}
+	}
+
+	/**
+	 * Bumps a region's version after one of its tiles changed, and drops its hierarchy.
+	 */
+	private void regionChanged(String region) {
+		mRegionVersions.put(region, getRegionVersion(region) + 1);
+		dropHierarchy(region);
+	}
+
+	/**
+	 * Forgets a region's hierarchy and deletes its file, if it has one.
+	 */
+	private void dropHierarchy(String region) {
+		Long size = mFiles.remove(region + HIERARCHY_SUFFIX);
+		if (size != null) {
+			mTotalBytes -= size;
+			getHierarchyFile(region).delete();
+		}
+	}
+
+	/**
+	 * Drops least recently used files until the cache fits its budget.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> oldestFirst = mFiles.entrySet().iterator();
+		ArrayList<String> staleRegions = new ArrayList<String>();
+		while (mTotalBytes > BYTE_BUDGET && oldestFirst.hasNext()) {
+			Map.Entry<String, Long> oldest = oldestFirst.next();
+			String name = oldest.getKey();
+			new File(mDirectory, name).delete();
+			mTotalBytes -= oldest.getValue();
+			oldestFirst.remove();
+			if (name.endsWith(SUFFIX)) {
+				staleRegions.add(regionOf(name));
+				mCells.remove(name.substring(0, name.length() - SUFFIX.length()));
+			}
+		}
+		// not while iterating - dropping a hierarchy changes the map
+		for (String region : staleRegions) {
+			regionChanged(region);
+		}
+	}
+
+	/**
+	 * Forgets a tile and deletes its file.
+	 */
+	private void remove(String quadkey) {
+		if (mImported.remove(quadkey)) {
+			importedFile(quadkey).delete();
+		}
+		Long size = mFiles.remove(quadkey + SUFFIX);
+		if (size != null) {
+			mTotalBytes -= size;
+		}
+		mCells.remove(quadkey);
+		tileFile(quadkey).delete();
+		regionChanged(regionOf(quadkey));
+	}
+
+	private File tileFile(String quadkey) {
+		return new File(mDirectory, quadkey + SUFFIX);
+	}
+
+	private File importedFile(String quadkey) {
+		return new File(mImportDirectory, quadkey + SUFFIX);
+	}
+
+	private void ensureCapacity(int nodeCount) {
+		if (mNodeIds.length < nodeCount) {
+			int capacity = Math.max(nodeCount, 2 * mNodeIds.length);
+			mNodeIds = new long[capacity];
+			mLatE6 = new int[capacity];
+			mLonE6 = new int[capacity];
+		}
+	}
+}
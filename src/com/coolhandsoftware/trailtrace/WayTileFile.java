@@ -0,0 +1,264 @@
+package com.coolhandsoftware.trailtrace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary file format for one WayTileCache tile, read through a MappedByteBuffer so a tile can be searched without
+ * deserializing all of it.
+ *
+ * Layout (all fixed-size fields big-endian):
+ *
+ *   header        int magic, int version, long cells, int way count
+ *   offset table  per way: long way id, int min lat, int min lon, int max lat, int max lon (E6), int body offset
+ *   way bodies    per way: varint node count, then per node three zigzag varints - the node id, latitude and
+ *                 longitude, each as the difference from the previous node's (the first node's coordinates are
+ *                 relative to the way's minimum corner, and its id to 0)
+ *
+ * Neighbouring trail nodes are a few meters and a few ids apart, so most deltas fit in one or two bytes, and a
+ * node costs around 5 bytes instead of the 16 of raw long/int/int. The offset table's bounding boxes let a reader
+ * skip ways that miss the area it cares about without touching their bodies. The header's cells say which parts
+ * of the tile the file has every way of - see CorridorQueryPlanner.CELLS_PER_SIDE.
+ */
+public class WayTileFile {
+
+	/** first bytes of every tile file **/
+	private static final int MAGIC = 0x57415954; // "WAYT"
+
+	/** format version - files with another version are refused **/
+	private static final int VERSION = 3;
+
+	/** bytes before the offset table **/
+	private static final int HEADER_BYTES = 20;
+
+	/** bytes per offset table entry **/
+	private static final int ENTRY_BYTES = 28;
+
+	/** the mapped file **/
+	private final MappedByteBuffer mBuffer;
+
+	/** cells of the tile the file is complete for **/
+	private final long mCells;
+
+	/** number of ways in the file **/
+	private final int mWayCount;
+
+	/**
+	 * Maps a tile file for reading.
+	 * @param file the tile file
+	 * @throws IOException if the file can't be mapped or isn't a tile file of this version
+	 */
+	public WayTileFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after close
+		}
+		finally {
+			raf.close();
+		}
+		mBuffer.order(ByteOrder.BIG_ENDIAN);
+		if (mBuffer.limit() < HEADER_BYTES || mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+			throw new IOException("Not a version " + VERSION + " way tile: " + file);
+		}
+		mCells = mBuffer.getLong(8);
+		mWayCount = mBuffer.getInt(16);
+		if (mWayCount < 0 || HEADER_BYTES + (long) mWayCount * ENTRY_BYTES > mBuffer.limit()) {
+			throw new IOException("Truncated way tile: " + file);
+		}
+	}
+
+	/**
+	 * @return cells of the tile the file has every way of
+	 */
+	public long getCells() {
+		return mCells;
+	}
+
+	/**
+	 * @return number of ways in the tile
+	 */
+	public int getWayCount() {
+		return mWayCount;
+	}
+
+	/**
+	 * @param way index of the way in the tile
+	 * @return the way's OSM id
+	 */
+	public long getWayId(int way) {
+		return mBuffer.getLong(entry(way));
+	}
+
+	/**
+	 * Checks a way's bounding box against an area, using only the offset table.
+	 * @param way index of the way in the tile
+	 * @return true if the way's bounding box overlaps the area
+	 */
+	public boolean intersects(int way, int minLatE6, int minLonE6, int maxLatE6, int maxLonE6) {
+		int entry = entry(way);
+		return mBuffer.getInt(entry + 8) <= maxLatE6 && mBuffer.getInt(entry + 16) >= minLatE6
+				&& mBuffer.getInt(entry + 12) <= maxLonE6 && mBuffer.getInt(entry + 20) >= minLonE6;
+	}
+
+	/**
+	 * @param way index of the way in the tile
+	 * @return number of nodes in the way
+	 */
+	public int getNodeCount(int way) {
+		mBuffer.position(mBuffer.getInt(entry(way) + 24));
+		return readVarint();
+	}
+
+	/**
+	 * Decodes a way's nodes.
+	 * @param way index of the way in the tile
+	 * @param nodeIds filled with the nodes' OSM ids - needs room for getNodeCount(way)
+	 * @param latitudesE6 filled with the nodes' latitudes
+	 * @param longitudesE6 filled with the nodes' longitudes
+	 * @return number of nodes
+	 */
+	public int readWay(int way, long[] nodeIds, int[] latitudesE6, int[] longitudesE6) {
+		int entry = entry(way);
+		int latE6 = mBuffer.getInt(entry + 8);
+		int lonE6 = mBuffer.getInt(entry + 12);
+		long nodeId = 0;
+		mBuffer.position(mBuffer.getInt(entry + 24));
+		int count = readVarint();
+		for (int i = 0; i < count; ++i) {
+			nodeId += unzigzag(readVarLong());
+			latE6 += (int) unzigzag(readVarLong());
+			lonE6 += (int) unzigzag(readVarLong());
+			nodeIds[i] = nodeId;
+			latitudesE6[i] = latE6;
+			longitudesE6[i] = lonE6;
+		}
+		return count;
+	}
+
+	private int entry(int way) {
+		return HEADER_BYTES + way * ENTRY_BYTES;
+	}
+
+	private int readVarint() {
+		return (int) readVarLong();
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint at the buffer's position.
+	 */
+	private long readVarLong() {
+		long result = 0;
+		int shift = 0;
+		while (true) {
+			byte b = mBuffer.get();
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+			shift += 7;
+		}
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Writes ways as a tile file, leaving out nodes whose coordinates were never read.
+	 * @param file where to write
+	 * @param cells cells of the tile the ways are all of the ways of
+	 * @param nodes the table the ways refer to
+	 * @param ways the ways
+	 * @throws IOException if the file can't be written
+	 */
+	public static void write(File file, long cells, NodeTable nodes, List<Way> ways) throws IOException {
+		int wayCount = ways.size();
+		ByteBuffer table = ByteBuffer.allocate(HEADER_BYTES + wayCount * ENTRY_BYTES).order(ByteOrder.BIG_ENDIAN);
+		Encoder bodies = new Encoder();
+		int bodyStart = HEADER_BYTES + wayCount * ENTRY_BYTES;
+
+		table.putInt(MAGIC).putInt(VERSION).putLong(cells).putInt(wayCount);
+		for (int w = 0; w < wayCount; ++w) {
+			int[] wayNodes = ways.get(w).mNodeIndices;
+			int count = 0;
+			int minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE;
+			int maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE;
+			for (int i = 0; i < wayNodes.length; ++i) {
+				int node = wayNodes[i];
+				if (nodes.hasCoordinates(node)) {
+					++count;
+					minLat = Math.min(minLat, nodes.getLatitudeE6(node));
+					maxLat = Math.max(maxLat, nodes.getLatitudeE6(node));
+					minLon = Math.min(minLon, nodes.getLongitudeE6(node));
+					maxLon = Math.max(maxLon, nodes.getLongitudeE6(node));
+				}
+			}
+			if (count == 0) {
+				minLat = maxLat = minLon = maxLon = 0;
+			}
+			table.putLong(ways.get(w).mId).putInt(minLat).putInt(minLon).putInt(maxLat).putInt(maxLon);
+			table.putInt(bodyStart + bodies.size());
+
+			bodies.writeVarLong(count);
+			long previousId = 0;
+			int previousLat = minLat, previousLon = minLon;
+			for (int i = 0; i < wayNodes.length; ++i) {
+				int node = wayNodes[i];
+				if (!nodes.hasCoordinates(node)) {
+					continue;
+				}
+				bodies.writeVarLong(zigzag(nodes.getId(node) - previousId));
+				bodies.writeVarLong(zigzag(nodes.getLatitudeE6(node) - previousLat));
+				bodies.writeVarLong(zigzag(nodes.getLongitudeE6(node) - previousLon));
+				previousId = nodes.getId(node);
+				previousLat = nodes.getLatitudeE6(node);
+				previousLon = nodes.getLongitudeE6(node);
+			}
+		}
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(table.array());
+			out.write(bodies.mBytes, 0, bodies.size());
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Growable byte array that varints are appended to.
+	 */
+	private static class Encoder {
+		private byte[] mBytes = new byte[4096];
+		private int mSize = 0;
+
+		void writeVarLong(long value) {
+			if (mSize + 10 > mBytes.length) {
+				mBytes = Arrays.copyOf(mBytes, 2 * mBytes.length);
+			}
+			while ((value & ~0x7FL) != 0) {
+				mBytes[mSize++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			mBytes[mSize++] = (byte) value;
+		}
+
+		int size() {
+			return mSize;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.coolhandsoftware.trailtrace;
+
+/**
+ * Plain-Java version of the spherical ("Web") Mercator math osmdroid's TileSystem uses with 256 pixel tiles,
+ * so trace coordinates can be projected without a Projection object (or the UI thread).
+ *
+ * World pixel coordinates are absolute: (0, 0) is the north-west corner of the world at the given zoom level,
+ * and the world is 256 * 2^zoom pixels wide. Coordinates at MAX_ZOOM fit in an int, and any lower zoom level
+ * is an exact right shift away from them, so projecting once at MAX_ZOOM is enough for every zoom level.
+ */
+public class WebMercator {
+
+	/** highest zoom level we project to - same as osmdroid's projected pixels **/
+	public static final int MAX_ZOOM = 22;
+
+	/** size of a map tile in pixels, as set up in MapFragment **/
+	public static final int TILE_SIZE = 256;
+
+	/** Mercator can't show the poles - latitudes are clipped to this, like in TileSystem **/
+	public static final double MAX_LATITUDE = 85.05112878;
+
+	/** radius of the earth used by TileSystem, in meters **/
+	public static final double EARTH_RADIUS_METERS = 6378137;
+
+	/** no instances - this is a bag of static functions **/
+	private WebMercator() {
+
+	}
+
+	/**
+	 * @param zoom zoom level
+	 * @return width (and height) of the whole world in pixels at this zoom level
+	 */
+	public static long mapSize(int zoom) {
+		return (long) TILE_SIZE << zoom;
+	}
+
+	/**
+	 * @param longitudeE6 longitude, E6 format
+	 * @param zoom zoom level
+	 * @return absolute world pixel x-coordinate
+	 */
+	public static int longitudeE6ToPixelX(int longitudeE6, int zoom) {
+		long size = mapSize(zoom);
+		double x = (longitudeE6 / 1e6 + 180) / 360;
+		return (int) clip(x * size + 0.5, 0, size - 1);
+	}
+
+	/**
+	 * @param latitudeE6 latitude, E6 format
+	 * @param zoom zoom level
+	 * @return absolute world pixel y-coordinate
+	 */
+	public static int latitudeE6ToPixelY(int latitudeE6, int zoom) {
+		long size = mapSize(zoom);
+		double sinLatitude = Math.sin(Math.toRadians(clip(latitudeE6 / 1e6, -MAX_LATITUDE, MAX_LATITUDE)));
+		double y = 0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI);
+		return (int) clip(y * size + 0.5, 0, size - 1);
+	}
+
+	/**
+	 * @param pixelX absolute world pixel x-coordinate (may be fractional)
+	 * @param zoom zoom level
+	 * @return longitude, E6 format
+	 */
+	public static int pixelXToLongitudeE6(double pixelX, int zoom) {
+		long size = mapSize(zoom);
+		double x = clip(pixelX, 0, size - 1) / size - 0.5;
+		return (int) Math.round(360 * x * 1e6);
+	}
+
+	/**
+	 * @param pixelY absolute world pixel y-coordinate (may be fractional)
+	 * @param zoom zoom level
+	 * @return latitude, E6 format
+	 */
+	public static int pixelYToLatitudeE6(double pixelY, int zoom) {
+		long size = mapSize(zoom);
+		double y = 0.5 - clip(pixelY, 0, size - 1) / size;
+		return (int) Math.round((90 - 360 * Math.atan(Math.exp(-y * 2 * Math.PI)) / Math.PI) * 1e6);
+	}
+
+	/**
+	 * @param latitude latitude in degrees
+	 * @param zoom zoom level
+	 * @return how many meters on the ground one pixel covers at this latitude and zoom level
+	 */
+	public static double groundResolution(double latitude, int zoom) {
+		latitude = clip(latitude, -MAX_LATITUDE, MAX_LATITUDE);
+		return Math.cos(Math.toRadians(latitude)) * 2 * Math.PI * EARTH_RADIUS_METERS / mapSize(zoom);
+	}
+
+	/**
+	 * Clips a number to a range.
+	 * @param n the number
+	 * @param min smallest allowed value
+	 * @param max largest allowed value
+	 * @return n, clipped
+	 */
+	private static double clip(double n, double min, double max) {
+		return Math.min(Math.max(n, min), max);
+	}
+}